@@ -1,20 +1,35 @@
 package com.avacodelab.moduleplayground;
 
+import android.os.AsyncTask;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
-import android.view.View;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 
+/**
+ * Lists the modules of {@link ModuleRegistry}.
+ */
 public class MainActivity extends AppCompatActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        final ModuleRegistry registry = ModuleRegistry.getInstance();
+        registry.onLauncherCreated();
+
         setContentView(R.layout.activity_main);
 
-        findViewById(R.id.permissionChecker_textView).setOnClickListener(new View.OnClickListener() {
+        RecyclerView recyclerView = (RecyclerView) findViewById(R.id.modules_recyclerView);
+        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setAdapter(new ModuleAdapter(registry, AsyncTask.THREAD_POOL_EXECUTOR));
+
+        // Runs after the first layout and draw of the list.
+        recyclerView.post(new Runnable() {
             @Override
-            public void onClick(View view) {
-                PermissionActivity.start(MainActivity.this);
+            public void run() {
+                registry.onLauncherFirstFrame(MainActivity.this, AsyncTask.THREAD_POOL_EXECUTOR);
             }
         });
     }
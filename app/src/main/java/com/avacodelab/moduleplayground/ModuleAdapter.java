@@ -0,0 +1,63 @@
+package com.avacodelab.moduleplayground;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ *  Adapter of the module entries of {@link MainActivity}. Tapping an entry opens the module with
+ *  {@link ModuleRegistry#open(android.content.Context, ModuleEntry, Executor)}.
+ */
+
+final class ModuleAdapter extends RecyclerView.Adapter<ModuleAdapter.ViewHolder> {
+
+    private final ModuleRegistry mRegistry;
+    private final List<ModuleEntry> mModules;
+    private final Executor mWarmUpExecutor;
+
+    ModuleAdapter(ModuleRegistry registry, Executor warmUpExecutor) {
+        mRegistry = registry;
+        mModules = registry.getModules();
+        mWarmUpExecutor = warmUpExecutor;
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_module, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        holder.mTextView.setText(mModules.get(position).getName());
+    }
+
+    @Override
+    public int getItemCount() {
+        return mModules.size();
+    }
+
+    final class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        private final TextView mTextView;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            mTextView = (TextView) itemView.findViewById(R.id.module_textView);
+            mTextView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mRegistry.open(view.getContext(), mModules.get(position), mWarmUpExecutor);
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.avacodelab.moduleplayground;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Metadata of a module of the launcher. Classes are referenced by name, so they are not loaded until the module
+ * is opened or warmed up.
+ */
+final class ModuleEntry {
+
+    private final String mName;
+    private final String mActivityClassName;
+    private final String mWarmUpClassName;
+
+    /**
+     * @param activityClassName the entry activity, declared in the manifest
+     * @param warmUpClassName   a {@link ModuleWarmUp}, or null if the module needs none
+     */
+    ModuleEntry(String name, String activityClassName, String warmUpClassName) {
+        mName = name;
+        mActivityClassName = activityClassName;
+        mWarmUpClassName = warmUpClassName;
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    String getActivityClassName() {
+        return mActivityClassName;
+    }
+
+    boolean hasWarmUp() {
+        return mWarmUpClassName != null;
+    }
+
+    /**
+     * Loads and creates the warm-up of the module.
+     */
+    ModuleWarmUp newWarmUp() throws ClassNotFoundException, InstantiationException, IllegalAccessException {
+        return Class.forName(mWarmUpClassName).asSubclass(ModuleWarmUp.class).newInstance();
+    }
+
+    void start(Context context) {
+        Intent intent = new Intent();
+        intent.setClassName(context, mActivityClassName);
+        context.startActivity(intent);
+    }
+}
@@ -0,0 +1,115 @@
+package com.avacodelab.moduleplayground;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ *  The modules which the launcher lists. <br><br>
+ *
+ *  A module is declared with its name, the class name of its entry activity and optionally the class name of a
+ *  {@link ModuleWarmUp}. The launcher is built from these names only, no module class is loaded until its entry
+ *  is tapped or its warm-up runs. The warm-ups run on a background executor after the first frame of the
+ *  launcher, and again when the module is opened, because what a warm-up prepared may have been dropped since. <br><br>
+ *
+ *  New modules are added to {@link #ModuleRegistry()}. The entry activity must be declared in the manifest.
+ */
+
+public final class ModuleRegistry {
+
+    private static final String TAG = ModuleRegistry.class.getSimpleName();
+
+    private static final ModuleRegistry sInstance = new ModuleRegistry();
+
+    private final List<ModuleEntry> mModules;
+    private final StartupTiming mStartupTiming = new StartupTiming();
+
+    private ModuleRegistry() {
+        this(Collections.singletonList(
+                new ModuleEntry("PermissionHelper", "com.avacodelab.moduleplayground.PermissionActivity",
+                        "com.avacodelab.moduleplayground.PermissionWarmUp")));
+    }
+
+    ModuleRegistry(List<ModuleEntry> modules) {
+        mModules = Collections.unmodifiableList(new ArrayList<>(modules));
+    }
+
+    public static ModuleRegistry getInstance() {
+        return sInstance;
+    }
+
+    List<ModuleEntry> getModules() {
+        return mModules;
+    }
+
+    public StartupTiming getStartupTiming() {
+        return mStartupTiming;
+    }
+
+    /**
+     * Called in onCreate() of the launcher.
+     */
+    void onLauncherCreated() {
+        mStartupTiming.markLauncherCreated();
+    }
+
+    /**
+     * Called when the launcher has drawn its first frame. Starts the warm-ups on the executor the first time.
+     */
+    void onLauncherFirstFrame(Context context, Executor executor) {
+        if (! mStartupTiming.markFirstFrame()) {
+            return;
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Launcher first frame after " + mStartupTiming.getTimeToFirstFrameMillis() + " ms.");
+        }
+
+        final Context applicationContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        for (final ModuleEntry module : mModules) {
+            if (module.hasWarmUp()) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        warmUp(applicationContext, module);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Starts the entry activity of the module. Its warm-up is started on the executor first, so a running warm-up
+     * overlaps with the start of the activity.
+     */
+    void open(Context context, final ModuleEntry module, Executor executor) {
+        if (module.hasWarmUp()) {
+            final Context applicationContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warmUp(applicationContext, module);
+                }
+            });
+        }
+        module.start(context);
+    }
+
+    private void warmUp(Context context, ModuleEntry module) {
+        long start = System.nanoTime();
+        try {
+            module.newWarmUp().warmUp(context);
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+            Log.e(TAG, "Could not create the warm-up of " + module.getName(), e);
+            return;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Warm-up of " + module.getName() + " failed.", e);
+            return;
+        }
+        mStartupTiming.markWarmUp(module.getName(), System.nanoTime() - start);
+    }
+}
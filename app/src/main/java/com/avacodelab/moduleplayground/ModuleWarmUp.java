@@ -0,0 +1,16 @@
+package com.avacodelab.moduleplayground;
+
+import android.content.Context;
+
+/**
+ * Prepares a module in the background after the first frame of the launcher, e.g. loads its classes or state,
+ * so its screen opens faster. Implementations need a public no-argument constructor.
+ */
+public interface ModuleWarmUp {
+
+    /**
+     * Called on a background thread after the first frame of the launcher and again when the module is opened.
+     * It should return quickly if what it prepares is still there.
+     */
+    void warmUp(Context context);
+}
@@ -1,60 +1,74 @@
 package com.avacodelab.moduleplayground;
 
-import android.Manifest;
 import android.content.Context;
 import android.content.Intent;
-import android.graphics.Color;
 import android.support.annotation.NonNull;
-import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.View;
-import android.widget.CheckBox;
 import android.widget.Toast;
 
 import com.avacodelab.moduleplayground.module.PermissionHelper;
+import com.avacodelab.moduleplayground.module.PermissionOutcome;
+import com.avacodelab.moduleplayground.module.PermissionQuery;
+import com.avacodelab.moduleplayground.module.PermissionSet;
+import com.avacodelab.moduleplayground.module.PermissionStateMonitor;
+import com.avacodelab.moduleplayground.module.PermissionStateSnapshot;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
-public class PermissionActivity extends AppCompatActivity implements PermissionHelper.PermissionResultCallback {
+public class PermissionActivity extends AppCompatActivity
+        implements PermissionHelper.PermissionOutcomeCallback, PermissionQuery.ForegroundHost {
 
     private static final int PERMISSION_REQUEST_CODE = 2555;
 
+    private static final String KEY_CHECKED_ROWS = "checked_rows";
+
     private PermissionHelper mPermissionHelper;
+    private PermissionAdapter mAdapter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_permission);
 
-        final CheckBox cameraCheckBox = (CheckBox) findViewById(R.id.camera_checkBox);
-        final CheckBox fineLocationCheckBox = (CheckBox) findViewById(R.id.fineLocation_checkBox);
-        final CheckBox readContactsCheckBox = (CheckBox) findViewById(R.id.readContacts_checkBox);
-        final CheckBox nfcCheckBox = (CheckBox) findViewById(R.id.nfc_checkBox);
-        final CheckBox vibrateCheckBox = (CheckBox) findViewById(R.id.vibrate_checkBox);
+        mPermissionHelper = new PermissionHelper(PermissionActivity.this, savedInstanceState);
+
+        boolean[] checkedRows = savedInstanceState != null ? savedInstanceState.getBooleanArray(KEY_CHECKED_ROWS) : null;
+
+        PermissionSet permissions = getPermissions();
+        List<PermissionRow> rows = new ArrayList<>();
+        for (String permission : permissions.asList()) {
+            int i = rows.size();
+            PermissionRow row = new PermissionRow(permission, labelOf(permission));
+            if (checkedRows != null && i < checkedRows.length && checkedRows[i]) {
+                row = row.withChecked(true);
+            }
+            rows.add(row);
+        }
+
+        mAdapter = new PermissionAdapter();
+        mAdapter.setRows(rows);
+
+        RecyclerView recyclerView = (RecyclerView) findViewById(R.id.permissions_recyclerView);
+        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        recyclerView.setHasFixedSize(true);
+        recyclerView.setAdapter(mAdapter);
 
         findViewById(R.id.request_Button).setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                mPermissionHelper = new PermissionHelper(PermissionActivity.this);
-
                 List<String> permissions = new ArrayList<>();
 
-                if (cameraCheckBox.isChecked()) {
-                    permissions.add(Manifest.permission.CAMERA);
-                }
-                if (fineLocationCheckBox.isChecked()) {
-                    permissions.add(Manifest.permission.ACCESS_FINE_LOCATION);
-                }
-                if (readContactsCheckBox.isChecked()) {
-                    permissions.add(Manifest.permission.READ_CONTACTS);
-                }
-                if (nfcCheckBox.isChecked()) {
-                    permissions.add(Manifest.permission.NFC);
-                }
-                if (vibrateCheckBox.isChecked()) {
-                    permissions.add(Manifest.permission.VIBRATE);
+                for (PermissionRow row : mAdapter.getRows()) {
+                    if (row.isChecked()) {
+                        permissions.add(row.getPermission());
+                    }
                 }
 
                 //////////////////////////  The ultimate method
@@ -71,27 +85,30 @@ public class PermissionActivity extends AppCompatActivity implements PermissionH
                 PermissionHelper.openApplicationSettings(PermissionActivity.this);
             }
         });
+
+        // Permission statuses can be changed via the app settings. The monitor calls back only when a status changed.
+        // The first state comes from the check which PermissionWarmUp started ahead, if it is kept or still running.
+        PermissionStateMonitor.getInstance().subscribe(this, permissions, new PermissionStateMonitor.Listener() {
+            @Override
+            public void onPermissionStateChanged(PermissionStateSnapshot state, PermissionSet changed) {
+                updateRows(changed.asList(), state);
+            }
+        });
     }
 
     /**
-     * Permission statuses can be changed via the app settings. In case of this situation, check the
-     * permission status in onStart() method in activity and handle it.
+     * The check boxes are bound from the rows, so their checked state is saved with the rows instead of the views.
      */
     @Override
-    protected void onStart() {
-        super.onStart();
-
-        final CheckBox cameraCheckBox = (CheckBox) findViewById(R.id.camera_checkBox);
-        final CheckBox fineLocationCheckBox = (CheckBox) findViewById(R.id.fineLocation_checkBox);
-        final CheckBox readContactsCheckBox = (CheckBox) findViewById(R.id.readContacts_checkBox);
-        final CheckBox nfcCheckBox = (CheckBox) findViewById(R.id.nfc_checkBox);
-        final CheckBox vibrateCheckBox = (CheckBox) findViewById(R.id.vibrate_checkBox);
-
-        initializeCheckBox(cameraCheckBox, Manifest.permission.CAMERA);
-        initializeCheckBox(fineLocationCheckBox, Manifest.permission.ACCESS_FINE_LOCATION);
-        initializeCheckBox(readContactsCheckBox, Manifest.permission.READ_CONTACTS);
-        initializeCheckBox(nfcCheckBox, Manifest.permission.NFC);
-        initializeCheckBox(vibrateCheckBox, Manifest.permission.VIBRATE);
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+
+        List<PermissionRow> rows = mAdapter.getRows();
+        boolean[] checkedRows = new boolean[rows.size()];
+        for (int i = 0; i < checkedRows.length; i++) {
+            checkedRows[i] = rows.get(i).isChecked();
+        }
+        outState.putBooleanArray(KEY_CHECKED_ROWS, checkedRows);
     }
 
     @Override
@@ -101,122 +118,79 @@ public class PermissionActivity extends AppCompatActivity implements PermissionH
     }
 
     /**
-     * This method always called if there are any granted permissions. Including the permissions those are granted before!
+     * This method is called once with the whole answer. The granted permissions include the permissions those are granted before!
      */
     @Override
-    public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
-
-        Toast.makeText(this, "Permissions granted: " + permissionsGranted, Toast.LENGTH_LONG).show();
-
-        if (requestCode == PERMISSION_REQUEST_CODE) {
-
-            if (permissionsGranted.contains(Manifest.permission.CAMERA)) {
-                setCheckBoxPermissionGranted((CheckBox) findViewById(R.id.camera_checkBox), true);
-            }
-            if (permissionsGranted.contains(Manifest.permission.ACCESS_FINE_LOCATION)) {
-                setCheckBoxPermissionGranted((CheckBox) findViewById(R.id.fineLocation_checkBox), true);
-            }
-            if (permissionsGranted.contains(Manifest.permission.READ_CONTACTS)) {
-                setCheckBoxPermissionGranted((CheckBox) findViewById(R.id.readContacts_checkBox), true);
-            }
-            if (permissionsGranted.contains(Manifest.permission.NFC)) {
-                setCheckBoxPermissionGranted((CheckBox) findViewById(R.id.nfc_checkBox), true);
-            }
-            if (permissionsGranted.contains(Manifest.permission.VIBRATE)) {
-                setCheckBoxPermissionGranted((CheckBox) findViewById(R.id.vibrate_checkBox), true);
-            }
+    public void onPermissionOutcome(PermissionOutcome outcome) {
 
+        List<String> lines = new ArrayList<>();
+        if (! outcome.getGranted().isEmpty()) {
+            lines.add("Permissions granted: " + outcome.getGranted());
         }
-    }
-
-    @Override
-    public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
-
-        Toast.makeText(this, "Permissions denied: " + permissionsDenied, Toast.LENGTH_LONG).show();
-
-        if (requestCode == PERMISSION_REQUEST_CODE) {
-
-            if (permissionsDenied.contains(Manifest.permission.CAMERA)) {
-                setCheckBoxPermissionDeniedAtLeastOnce((CheckBox) findViewById(R.id.camera_checkBox), true);
-            }
-            if (permissionsDenied.contains(Manifest.permission.ACCESS_FINE_LOCATION)) {
-                setCheckBoxPermissionDeniedAtLeastOnce((CheckBox) findViewById(R.id.fineLocation_checkBox), true);
-            }
-            if (permissionsDenied.contains(Manifest.permission.READ_CONTACTS)) {
-                setCheckBoxPermissionDeniedAtLeastOnce((CheckBox) findViewById(R.id.readContacts_checkBox), true);
-            }
-            if (permissionsDenied.contains(Manifest.permission.NFC)) {
-                setCheckBoxPermissionDeniedAtLeastOnce((CheckBox) findViewById(R.id.nfc_checkBox), true);
-            }
-            if (permissionsDenied.contains(Manifest.permission.VIBRATE)) {
-                setCheckBoxPermissionDeniedAtLeastOnce((CheckBox) findViewById(R.id.vibrate_checkBox), true);
-            }
-
+        if (! outcome.getDenied().isEmpty()) {
+            lines.add("Permissions denied: " + outcome.getDenied());
+        }
+        if (! outcome.getNeverAskAgain().isEmpty()) {
+            lines.add("Permissions denied permanently: " + outcome.getNeverAskAgain());
         }
-    }
-
-    @Override
-    public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
-
-        Toast.makeText(this, "Permissions denied permanently: " + permissionsNeverAskAgain, Toast.LENGTH_LONG).show();
-
-        if (requestCode == PERMISSION_REQUEST_CODE) {
 
-            if (permissionsNeverAskAgain.contains(Manifest.permission.CAMERA)) {
-                setCheckBoxPermissionNeverAskAgain((CheckBox) findViewById(R.id.camera_checkBox), true);
-            }
-            if (permissionsNeverAskAgain.contains(Manifest.permission.ACCESS_FINE_LOCATION)) {
-                setCheckBoxPermissionNeverAskAgain((CheckBox) findViewById(R.id.fineLocation_checkBox), true);
-            }
-            if (permissionsNeverAskAgain.contains(Manifest.permission.READ_CONTACTS)) {
-                setCheckBoxPermissionNeverAskAgain((CheckBox) findViewById(R.id.readContacts_checkBox), true);
-            }
-            if (permissionsNeverAskAgain.contains(Manifest.permission.NFC)) {
-                setCheckBoxPermissionNeverAskAgain((CheckBox) findViewById(R.id.nfc_checkBox), true);
-            }
-            if (permissionsNeverAskAgain.contains(Manifest.permission.VIBRATE)) {
-                setCheckBoxPermissionNeverAskAgain((CheckBox) findViewById(R.id.vibrate_checkBox), true);
-            }
+        if (! lines.isEmpty()) {
+            Toast.makeText(this, TextUtils.join("\n", lines), Toast.LENGTH_LONG).show();
+        }
 
+        if (outcome.getRequestCode() == PERMISSION_REQUEST_CODE) {
+            updateRows(outcome);
         }
     }
 
-    private void initializeCheckBox(CheckBox checkBox, String permission) {
-        if (PermissionHelper.isPermissionGranted(this, permission)) {
-            setCheckBoxPermissionGranted(checkBox, false);
-        } else if (PermissionHelper.shouldShowPermissionExplanation(this, permission)){
-            setCheckBoxPermissionDeniedAtLeastOnce(checkBox, false);
+    /**
+     * Sets the state of the rows of the outcome in one pass. Only the changed rows are bound again.
+     */
+    private void updateRows(PermissionOutcome outcome) {
+        List<PermissionRow> rows = new ArrayList<>(mAdapter.getRows());
+        for (int i = 0, size = rows.size(); i < size; i++) {
+            PermissionRow row = rows.get(i);
+            String permission = row.getPermission();
+
+            if (outcome.isGranted(permission)) {
+                rows.set(i, row.withState(PermissionStateSnapshot.STATE_GRANTED, true));
+            } else if (outcome.isDenied(permission)) {
+                rows.set(i, row.withState(PermissionStateSnapshot.STATE_DENIED, true));
+            } else if (outcome.isNeverAskAgain(permission)) {
+                rows.set(i, row.withState(PermissionStateSnapshot.STATE_NEVER_ASK_AGAIN, true));
+            }
         }
+        mAdapter.setRows(rows);
     }
 
-    private void setCheckBoxPermissionGranted(CheckBox checkBox, boolean changeColor) {
-        checkBox.setEnabled(false);
-        checkBox.setChecked(true);
-        String[] split = checkBox.getText().toString().split("-");
-        checkBox.setText(split[0] + "-(ALLOWED)");
-        if (changeColor) {
-            checkBox.setTextColor(Color.BLUE);
+    /**
+     * Sets the state of the rows of the given permissions. Only the changed rows are bound again.
+     */
+    private void updateRows(List<String> permissions, PermissionStateSnapshot state) {
+        List<PermissionRow> rows = new ArrayList<>(mAdapter.getRows());
+        for (int i = 0, size = rows.size(); i < size; i++) {
+            PermissionRow row = rows.get(i);
+            if (permissions.contains(row.getPermission())) {
+                rows.set(i, row.withState(state.getState(row.getPermission()), false));
+            }
         }
+        mAdapter.setRows(rows);
     }
 
-    private void setCheckBoxPermissionDeniedAtLeastOnce(CheckBox checkBox, boolean changeColor) {
-        checkBox.setEnabled(true);
-        checkBox.setChecked(false);
-        String[] split = checkBox.getText().toString().split("-");
-        checkBox.setText(split[0] + "-(DENIED)");
-        if (changeColor) {
-            checkBox.setTextColor(ContextCompat.getColor(this, R.color.textColorDark));
-        }
+    /**
+     * Returns the permissions of the screen: every permission which the manifest of the build declares. They are
+     * checked ahead by {@link PermissionWarmUp}.
+     */
+    static PermissionSet getPermissions() {
+        return PermissionHelper.getDeclaredPermissions();
     }
 
-    private void setCheckBoxPermissionNeverAskAgain(CheckBox checkBox, boolean changeColor) {
-        checkBox.setEnabled(true);
-        checkBox.setChecked(false);
-        String[] split = checkBox.getText().toString().split("-");
-        checkBox.setText(split[0] + "-(DENIED PERMANENTLY)");
-        if (changeColor) {
-            checkBox.setTextColor(Color.RED);
-        }
+    /**
+     * Returns the label of a row, e.g. "Access fine location" for android.permission.ACCESS_FINE_LOCATION.
+     */
+    private static String labelOf(String permission) {
+        String name = permission.substring(permission.lastIndexOf('.') + 1).replace('_', ' ').toLowerCase(Locale.US);
+        return name.isEmpty() ? permission : Character.toUpperCase(name.charAt(0)) + name.substring(1);
     }
 
     public static void start(Context context) {
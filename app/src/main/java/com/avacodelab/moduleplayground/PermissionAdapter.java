@@ -0,0 +1,135 @@
+package com.avacodelab.moduleplayground;
+
+import android.content.res.ColorStateList;
+import android.graphics.Color;
+import android.support.v4.content.ContextCompat;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+
+import com.avacodelab.moduleplayground.module.PermissionStateSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  Adapter of the permission rows of {@link PermissionActivity}. <br><br>
+ *
+ *  {@link #setRows(List)} compares the new rows with the shown ones, so only the rows whose state changed are bound again.
+ */
+
+final class PermissionAdapter extends RecyclerView.Adapter<PermissionAdapter.ViewHolder> {
+
+    private List<PermissionRow> mRows = Collections.emptyList();
+
+    List<PermissionRow> getRows() {
+        return mRows;
+    }
+
+    void setRows(List<PermissionRow> rows) {
+        final List<PermissionRow> oldRows = mRows;
+        final List<PermissionRow> newRows = new ArrayList<>(rows);
+
+        DiffUtil.DiffResult result = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return oldRows.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return newRows.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldRows.get(oldItemPosition).isSameRow(newRows.get(newItemPosition));
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                return oldRows.get(oldItemPosition).equals(newRows.get(newItemPosition));
+            }
+        }, false);
+
+        mRows = newRows;
+        result.dispatchUpdatesTo(this);
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_permission, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        holder.bind(mRows.get(position));
+    }
+
+    @Override
+    public int getItemCount() {
+        return mRows.size();
+    }
+
+    final class ViewHolder extends RecyclerView.ViewHolder implements CompoundButton.OnCheckedChangeListener {
+
+        private final CheckBox mCheckBox;
+        private final ColorStateList mDefaultTextColors;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            mCheckBox = (CheckBox) itemView;
+            mDefaultTextColors = mCheckBox.getTextColors();
+        }
+
+        void bind(PermissionRow row) {
+            mCheckBox.setOnCheckedChangeListener(null);
+            mCheckBox.setChecked(row.isChecked());
+            mCheckBox.setEnabled(row.getState() != PermissionStateSnapshot.STATE_GRANTED);
+
+            switch (row.getState()) {
+                case PermissionStateSnapshot.STATE_GRANTED:
+                    mCheckBox.setText(row.getLabel() + "-(ALLOWED)");
+                    break;
+                case PermissionStateSnapshot.STATE_DENIED:
+                    mCheckBox.setText(row.getLabel() + "-(DENIED)");
+                    break;
+                case PermissionStateSnapshot.STATE_NEVER_ASK_AGAIN:
+                    mCheckBox.setText(row.getLabel() + "-(DENIED PERMANENTLY)");
+                    break;
+                default:
+                    mCheckBox.setText(row.getLabel());
+                    break;
+            }
+
+            if (! row.isHighlighted()) {
+                mCheckBox.setTextColor(mDefaultTextColors);
+            } else if (row.getState() == PermissionStateSnapshot.STATE_GRANTED) {
+                mCheckBox.setTextColor(Color.BLUE);
+            } else if (row.getState() == PermissionStateSnapshot.STATE_NEVER_ASK_AGAIN) {
+                mCheckBox.setTextColor(Color.RED);
+            } else {
+                mCheckBox.setTextColor(ContextCompat.getColor(mCheckBox.getContext(), R.color.textColorDark));
+            }
+
+            mCheckBox.setOnCheckedChangeListener(this);
+        }
+
+        /**
+         * The view already shows the new check state, only the model is updated.
+         */
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mRows.set(position, mRows.get(position).withChecked(isChecked));
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.avacodelab.moduleplayground;
+
+import com.avacodelab.moduleplayground.module.PermissionStateSnapshot;
+
+/**
+ *  Immutable model of one row of {@link PermissionActivity}. <br><br>
+ *
+ *  The state is one of the {@link PermissionStateSnapshot} constants. A row is highlighted if its state
+ *  comes from a permission result of this screen.
+ */
+
+final class PermissionRow {
+
+    private final String mPermission;
+    private final String mLabel;
+    private final int mState;
+    private final boolean mChecked;
+    private final boolean mHighlighted;
+
+    PermissionRow(String permission, String label) {
+        this(permission, label, PermissionStateSnapshot.STATE_NOT_REQUESTED, false, false);
+    }
+
+    private PermissionRow(String permission, String label, int state, boolean checked, boolean highlighted) {
+        mPermission = permission;
+        mLabel = label;
+        mState = state;
+        mChecked = checked;
+        mHighlighted = highlighted;
+    }
+
+    String getPermission() {
+        return mPermission;
+    }
+
+    String getLabel() {
+        return mLabel;
+    }
+
+    int getState() {
+        return mState;
+    }
+
+    boolean isChecked() {
+        return mChecked;
+    }
+
+    boolean isHighlighted() {
+        return mHighlighted;
+    }
+
+    /**
+     * A granted row is checked and can not be changed. A denied row is unchecked.
+     */
+    PermissionRow withState(int state, boolean highlighted) {
+        boolean checked = mChecked;
+        if (state == PermissionStateSnapshot.STATE_GRANTED) {
+            checked = true;
+        } else if (state != PermissionStateSnapshot.STATE_NOT_REQUESTED) {
+            checked = false;
+        }
+        return new PermissionRow(mPermission, mLabel, state, checked, highlighted || mHighlighted);
+    }
+
+    PermissionRow withChecked(boolean checked) {
+        return new PermissionRow(mPermission, mLabel, mState, checked, mHighlighted);
+    }
+
+    boolean isSameRow(PermissionRow other) {
+        return mPermission.equals(other.mPermission);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (! (o instanceof PermissionRow)) {
+            return false;
+        }
+        PermissionRow other = (PermissionRow) o;
+        return mState == other.mState
+                && mChecked == other.mChecked
+                && mHighlighted == other.mHighlighted
+                && mPermission.equals(other.mPermission)
+                && mLabel.equals(other.mLabel);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mPermission.hashCode();
+        result = 31 * result + mState;
+        result = 31 * result + (mChecked ? 1 : 0);
+        result = 31 * result + (mHighlighted ? 1 : 0);
+        return result;
+    }
+}
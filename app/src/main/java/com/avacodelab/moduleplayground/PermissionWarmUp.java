@@ -0,0 +1,16 @@
+package com.avacodelab.moduleplayground;
+
+import android.content.Context;
+
+import com.avacodelab.moduleplayground.module.PermissionPrewarm;
+
+/**
+ * Checks the permissions of {@link PermissionActivity} ahead, so the screen renders from the ready state.
+ */
+public final class PermissionWarmUp implements ModuleWarmUp {
+
+    @Override
+    public void warmUp(Context context) {
+        PermissionPrewarm.run(context, PermissionActivity.getPermissions());
+    }
+}
@@ -0,0 +1,60 @@
+package com.avacodelab.moduleplayground;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold start timing of the launcher: from the creation of the first launcher activity of the process until its
+ * first frame, and the duration of the last warm-up of every module. Later launches of the activity are not measured.
+ */
+public final class StartupTiming {
+
+    public static final long NOT_MEASURED = -1L;
+
+    private volatile long mLauncherCreatedAt;
+    private volatile long mFirstFrameAt;
+
+    private final Map<String, Long> mWarmUpNanos = new ConcurrentHashMap<>();
+
+    synchronized void markLauncherCreated() {
+        if (mLauncherCreatedAt == 0L) {
+            mLauncherCreatedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return true for the first frame of the process, the warm-ups start then.
+     */
+    synchronized boolean markFirstFrame() {
+        if (mLauncherCreatedAt == 0L || mFirstFrameAt != 0L) {
+            return false;
+        }
+        mFirstFrameAt = System.nanoTime();
+        return true;
+    }
+
+    void markWarmUp(String module, long durationNanos) {
+        mWarmUpNanos.put(module, durationNanos);
+    }
+
+    public long getTimeToFirstFrameMillis() {
+        long firstFrameAt = mFirstFrameAt;
+        return firstFrameAt == 0L ? NOT_MEASURED : TimeUnit.NANOSECONDS.toMillis(firstFrameAt - mLauncherCreatedAt);
+    }
+
+    public long getWarmUpMillis(String module) {
+        Long nanos = mWarmUpNanos.get(module);
+        return nanos == null ? NOT_MEASURED : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public boolean isWarmedUp(String module) {
+        return mWarmUpNanos.containsKey(module);
+    }
+
+    @Override
+    public String toString() {
+        return "StartupTiming{timeToFirstFrameMillis=" + getTimeToFirstFrameMillis()
+                + ", warmedUpModules=" + mWarmUpNanos.keySet() + "}";
+    }
+}
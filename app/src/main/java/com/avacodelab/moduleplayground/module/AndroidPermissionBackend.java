@@ -0,0 +1,34 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Build;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
+
+/**
+ *  {@link PermissionBackend} which calls the support library.
+ */
+
+public final class AndroidPermissionBackend implements PermissionBackend {
+
+    @Override
+    public int checkSelfPermission(Context context, String permission) {
+        return ContextCompat.checkSelfPermission(context, permission);
+    }
+
+    @Override
+    public void requestPermissions(Activity activity, String[] permissions, int requestCode) {
+        ActivityCompat.requestPermissions(activity, permissions, requestCode);
+    }
+
+    @Override
+    public boolean shouldShowRequestPermissionRationale(Activity activity, String permission) {
+        return ActivityCompat.shouldShowRequestPermissionRationale(activity, permission);
+    }
+
+    @Override
+    public int getSdkInt() {
+        return Build.VERSION.SDK_INT;
+    }
+}
@@ -0,0 +1,203 @@
+package com.avacodelab.moduleplayground.module;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  {@link PermissionMetrics} which keeps everything in lock-free counters. <br><br>
+ *
+ *  Dialog times are kept in a histogram of power of two millisecond buckets, the percentiles are the upper bound
+ *  of their bucket. Outcomes are counted per permission, except for the permissions which do not fit into the
+ *  {@link PermissionRegistry}. {@link #getSnapshot()} copies the counters. <br><br>
+ *
+ *    <strong>Usage:</strong> <br>
+ *
+ *    <pre>{@code
+ *
+ *    InMemoryPermissionMetrics metrics = new InMemoryPermissionMetrics();
+ *    PermissionHelper.setMetrics(metrics);
+ *
+ *    debugTextView.setText(metrics.getSnapshot().toString());
+ *  } </pre><br><br>
+ *
+ *  Can be used from any thread.
+ */
+
+public final class InMemoryPermissionMetrics implements PermissionMetrics {
+
+    /**
+     * Bucket i counts the dialogs which took less than 2^i milliseconds, the last one counts the rest.
+     */
+    static final int BUCKET_COUNT = 18;
+
+    private static final int OUTCOME_COUNT = 3;
+
+    private final AtomicLong mCheckCount = new AtomicLong();
+    private final AtomicLong mCacheHitCount = new AtomicLong();
+    private final AtomicLong mDialogCount = new AtomicLong();
+    private final AtomicLong mRequestedPermissionCount = new AtomicLong();
+    private final AtomicLong mAnsweredCount = new AtomicLong();
+    private final AtomicLong mTotalDialogNanos = new AtomicLong();
+    private final AtomicLongArray mDialogBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLongArray mOutcomes = new AtomicLongArray(PermissionRegistry.MAX_PERMISSIONS * OUTCOME_COUNT);
+
+    @Override
+    public void onPermissionsChecked(int checkCount, int cacheHitCount) {
+        mCheckCount.addAndGet(checkCount);
+        mCacheHitCount.addAndGet(cacheHitCount);
+    }
+
+    @Override
+    public void onDialogShown(int permissionCount) {
+        mDialogCount.incrementAndGet();
+        mRequestedPermissionCount.addAndGet(permissionCount);
+    }
+
+    @Override
+    public void onDialogAnswered(long durationNanos) {
+        mAnsweredCount.incrementAndGet();
+        mTotalDialogNanos.addAndGet(durationNanos);
+        mDialogBuckets.incrementAndGet(bucketOf(TimeUnit.NANOSECONDS.toMillis(durationNanos)));
+    }
+
+    @Override
+    public void onPermissionOutcome(String permission, int outcome) {
+        int slot = PermissionRegistry.trySlotOf(permission);
+        if (slot != PermissionRegistry.NO_SLOT) {
+            mOutcomes.incrementAndGet(slot * OUTCOME_COUNT + outcome);
+        }
+    }
+
+    static int bucketOf(long millis) {
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Drops all the measurements.
+     */
+    public void reset() {
+        mCheckCount.set(0L);
+        mCacheHitCount.set(0L);
+        mDialogCount.set(0L);
+        mRequestedPermissionCount.set(0L);
+        mAnsweredCount.set(0L);
+        mTotalDialogNanos.set(0L);
+        for (int i = 0; i < mDialogBuckets.length(); i++) {
+            mDialogBuckets.set(i, 0L);
+        }
+        for (int i = 0; i < mOutcomes.length(); i++) {
+            mOutcomes.set(i, 0L);
+        }
+    }
+
+    public Snapshot getSnapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = mDialogBuckets.get(i);
+        }
+        long[] outcomes = new long[mOutcomes.length()];
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = mOutcomes.get(i);
+        }
+
+        return new Snapshot(mCheckCount.get(), mCacheHitCount.get(), mDialogCount.get(), mRequestedPermissionCount.get(),
+                mAnsweredCount.get(), mTotalDialogNanos.get(), buckets, outcomes);
+    }
+
+    /**
+     * Copy of the counters. The counters are read one by one, so a snapshot taken while permissions are checked
+     * may be off by the measurements which were added meanwhile.
+     */
+    public static final class Snapshot {
+
+        private final long mCheckCount;
+        private final long mCacheHitCount;
+        private final long mDialogCount;
+        private final long mRequestedPermissionCount;
+        private final long mAnsweredCount;
+        private final long mTotalDialogNanos;
+        private final long[] mDialogBuckets;
+        private final long[] mOutcomes;
+
+        Snapshot(long checkCount, long cacheHitCount, long dialogCount, long requestedPermissionCount,
+                 long answeredCount, long totalDialogNanos, long[] dialogBuckets, long[] outcomes) {
+            mCheckCount = checkCount;
+            mCacheHitCount = cacheHitCount;
+            mDialogCount = dialogCount;
+            mRequestedPermissionCount = requestedPermissionCount;
+            mAnsweredCount = answeredCount;
+            mTotalDialogNanos = totalDialogNanos;
+            mDialogBuckets = dialogBuckets;
+            mOutcomes = outcomes;
+        }
+
+        public long getCheckCount() {
+            return mCheckCount;
+        }
+
+        public long getCacheHitCount() {
+            return mCacheHitCount;
+        }
+
+        public double getCacheHitRate() {
+            return mCheckCount == 0L ? 0d : (double) mCacheHitCount / mCheckCount;
+        }
+
+        public long getDialogCount() {
+            return mDialogCount;
+        }
+
+        public long getRequestedPermissionCount() {
+            return mRequestedPermissionCount;
+        }
+
+        public long getAnsweredDialogCount() {
+            return mAnsweredCount;
+        }
+
+        public long getAverageDialogMillis() {
+            return mAnsweredCount == 0L ? 0L : TimeUnit.NANOSECONDS.toMillis(mTotalDialogNanos / mAnsweredCount);
+        }
+
+        /**
+         * Returns the upper bound of the bucket which contains the given percentile (0 - 100) of the dialog times,
+         * or -1 if it is in the last, unbounded bucket.
+         */
+        public long getDialogMillisAtPercentile(double percentile) {
+            if (mAnsweredCount == 0L) {
+                return 0L;
+            }
+
+            long rank = (long) Math.ceil(mAnsweredCount * percentile / 100d);
+            long seen = 0L;
+            for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+                seen += mDialogBuckets[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return -1L;
+        }
+
+        /**
+         * @param outcome one of the {@link PermissionMetrics} OUTCOME constants
+         */
+        public long getOutcomeCount(String permission, int outcome) {
+            int slot = PermissionRegistry.findSlot(permission);
+            return slot < 0 ? 0L : mOutcomes[slot * OUTCOME_COUNT + outcome];
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{checkCount=" + mCheckCount
+                    + ", cacheHitRate=" + getCacheHitRate()
+                    + ", dialogCount=" + mDialogCount
+                    + ", requestedPermissionCount=" + mRequestedPermissionCount
+                    + ", averageDialogMillis=" + getAverageDialogMillis()
+                    + ", p50DialogMillis=" + getDialogMillisAtPercentile(50d)
+                    + ", p95DialogMillis=" + getDialogMillisAtPercentile(95d) + "}";
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.Context;
+
+/**
+ *  The platform calls which {@link PermissionHelper} depends on. <br><br>
+ *
+ *  {@link AndroidPermissionBackend} is used by default. FakePermissionBackend of the unit tests keeps the permission
+ *  states in memory, so the helper can be tested and benchmarked on a plain JVM. <br><br>
+ *
+ *  The backend can be replaced with {@link PermissionHelper#setBackend(PermissionBackend)}.
+ */
+
+public interface PermissionBackend {
+
+    /**
+     * Returns {@link android.content.pm.PackageManager#PERMISSION_GRANTED} or
+     * {@link android.content.pm.PackageManager#PERMISSION_DENIED}.
+     */
+    int checkSelfPermission(Context context, String permission);
+
+    void requestPermissions(Activity activity, String[] permissions, int requestCode);
+
+    boolean shouldShowRequestPermissionRationale(Activity activity, String permission);
+
+    /**
+     * Returns the SDK level of the device. See {@link android.os.Build.VERSION#SDK_INT}.
+     */
+    int getSdkInt();
+}
@@ -0,0 +1,419 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  Result of an asynchronous operation which can be chained and combined. <br><br>
+ *
+ *  Returned by {@link PermissionHelper#checkDeviceAndRequestPermissionsAsync(int, PermissionSet)}, so the
+ *  work which does not need the permissions (camera setup, cursor prefetch ...) can run while the
+ *  permission dialog is showing. <br><br>
+ *
+ *    <strong>Usage:</strong> <br>
+ *
+ *    <pre>{@code
+ *
+ *    PermissionFuture<PermissionOutcome> granted = mPermissionHelper
+ *          .checkDeviceAndRequestPermissionsAsync(PERMISSION_REQUEST_CODE, permissions)
+ *          .then(PermissionOutcome.requireAllGranted())
+ *          .timeout(30, TimeUnit.SECONDS);
+ *
+ *    PermissionFuture<Setup> setup = PermissionFuture.submit(executor, new Callable<Setup>() {
+ *          public Setup call() {
+ *              // Expensive initialization which does not need the permissions.
+ *          }
+ *    });
+ *
+ *    PermissionFuture.allOf(granted, setup).addCallback(new PermissionFuture.Callback<Void>() {
+ *
+ *          public void onSuccess(Void result) {
+ *              // Everything is granted and initialized.
+ *          }
+ *
+ *          public void onFailure(Throwable error) {
+ *              // PermissionOutcome.DeniedException, TimeoutException, CancellationException or the error of the setup.
+ *          }
+ *    }, mainThreadExecutor);
+ *  } </pre><br><br>
+ *
+ *  Callbacks without an executor run on the thread which completes the future. Permission results complete
+ *  on the main thread. <br><br>
+ *
+ *  Cancelling a future also cancels the futures it was made of by {@link #then(Transform)} or {@link #allOf},
+ *  unless they have another consumer: a pending future made of them, or a callback. A cancelled permission
+ *  request is dropped from the queue. <br><br>
+ *
+ *  <b> Do not call {@link #get()} on the main thread for a permission result, it is delivered on the main thread. </b>
+ */
+
+public final class PermissionFuture<T> implements Future<T> {
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private static final PermissionFuture<?>[] NO_SOURCES = new PermissionFuture<?>[0];
+
+    private static Handler sTimeoutHandler;
+
+    /** The futures this future was made of, they are released when it completes. */
+    private final PermissionFuture<?>[] mSources;
+
+    /** Runs once if the future is cancelled, or null. */
+    private final Runnable mCancelAction;
+
+    private final Object mLock = new Object();
+    private int mState = PENDING;
+    private T mResult;
+    private Throwable mError;
+    private List<Listener> mListeners = new ArrayList<>();
+
+    /** The pending futures made of this future and the callbacks, see {@link #releaseConsumer(boolean)}. */
+    private int mConsumers;
+
+    PermissionFuture() {
+        this(NO_SOURCES, null);
+    }
+
+    /**
+     * @param cancelAction  runs on the cancelling thread if the future is cancelled, e.g. to drop its request
+     */
+    PermissionFuture(Runnable cancelAction) {
+        this(NO_SOURCES, cancelAction);
+    }
+
+    private PermissionFuture(PermissionFuture<?>[] sources, Runnable cancelAction) {
+        mSources = sources;
+        mCancelAction = cancelAction;
+    }
+
+    /**
+     * Callback of a future. Cancellation is reported as a {@link CancellationException}.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * Transformation of a result. A thrown exception fails the transformed future.
+     */
+    public interface Transform<T, R> {
+        R apply(T value) throws Exception;
+    }
+
+    /**
+     * Returns a future which is already completed with the given result.
+     */
+    public static <T> PermissionFuture<T> completed(T result) {
+        PermissionFuture<T> future = new PermissionFuture<>();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * Runs the task on the executor. The task is skipped if the future is cancelled before it starts.
+     */
+    public static <T> PermissionFuture<T> submit(Executor executor, final Callable<T> task) {
+        final PermissionFuture<T> future = new PermissionFuture<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.complete(task.call());
+                } catch (Exception e) {
+                    future.fail(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Returns a future which succeeds when all the given futures succeed, or fails with the first failure.
+     * Cancelling it cancels the given futures which have no other consumer.
+     */
+    public static PermissionFuture<Void> allOf(final PermissionFuture<?>... futures) {
+        if (futures.length == 0) {
+            return completed(null);
+        }
+
+        final PermissionFuture<Void> all = new PermissionFuture<Void>(futures.clone(), null);
+        final AtomicInteger remaining = new AtomicInteger(futures.length);
+        for (final PermissionFuture<?> future : futures) {
+            future.addConsumer();
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    Throwable error = future.getError();
+                    if (error != null) {
+                        all.fail(error);
+                    } else if (remaining.decrementAndGet() == 0) {
+                        all.complete(null);
+                    }
+                }
+            }, null);
+        }
+        return all;
+    }
+
+    /**
+     * Calls the callback on the thread which completes the future, or immediately if it is already completed.
+     */
+    public PermissionFuture<T> addCallback(Callback<? super T> callback) {
+        return addCallback(callback, null);
+    }
+
+    public PermissionFuture<T> addCallback(final Callback<? super T> callback, Executor executor) {
+        // A callback cannot be removed, so it keeps the future from being cancelled by a cancelled consumer.
+        addConsumer();
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                Throwable error = getError();
+                if (error != null) {
+                    callback.onFailure(error);
+                } else {
+                    callback.onSuccess(mResult);
+                }
+            }
+        }, executor);
+        return this;
+    }
+
+    /**
+     * Returns a future of the transformed result. Failures and cancellation are passed on without calling the transform.
+     * Cancelling the returned future cancels this future, unless it has another consumer.
+     */
+    public <R> PermissionFuture<R> then(Transform<? super T, ? extends R> transform) {
+        return then(transform, null);
+    }
+
+    public <R> PermissionFuture<R> then(final Transform<? super T, ? extends R> transform, Executor executor) {
+        final PermissionFuture<R> next = new PermissionFuture<R>(new PermissionFuture<?>[] {this}, null);
+        addConsumer();
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (next.isDone()) {
+                    return;
+                }
+                if (isCancelled()) {
+                    next.cancel(false);
+                    return;
+                }
+
+                Throwable error = getError();
+                if (error != null) {
+                    next.fail(error);
+                    return;
+                }
+
+                try {
+                    next.complete(transform.apply(mResult));
+                } catch (Exception e) {
+                    next.fail(e);
+                }
+            }
+        }, executor);
+        return next;
+    }
+
+    /**
+     * Fails this future with a {@link TimeoutException} if it is not completed within the given time.
+     * The timer runs on the main thread.
+     */
+    public PermissionFuture<T> timeout(long time, TimeUnit unit) {
+        final Handler handler = getTimeoutHandler();
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                fail(new TimeoutException("Not completed in time."));
+            }
+        };
+
+        handler.postDelayed(timeout, unit.toMillis(time));
+        addListener(new Runnable() {
+            @Override
+            public void run() {
+                handler.removeCallbacks(timeout);
+            }
+        }, null);
+        return this;
+    }
+
+    /**
+     * Cancels the future and the futures it was made of which have no other consumer. A cancelled permission
+     * request is dropped. A permission dialog which is already showing is not closed, its result is ignored.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(CANCELLED, null, null);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        synchronized (mLock) {
+            return mState == CANCELLED;
+        }
+    }
+
+    @Override
+    public boolean isDone() {
+        synchronized (mLock) {
+            return mState != PENDING;
+        }
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized (mLock) {
+            while (mState == PENDING) {
+                mLock.wait();
+            }
+            return getResultLocked();
+        }
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mLock) {
+            while (mState == PENDING) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0L) {
+                    throw new TimeoutException();
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+            }
+            return getResultLocked();
+        }
+    }
+
+    boolean complete(T result) {
+        return finish(SUCCEEDED, result, null);
+    }
+
+    boolean fail(Throwable error) {
+        return finish(FAILED, null, error);
+    }
+
+    private T getResultLocked() throws ExecutionException {
+        if (mState == CANCELLED) {
+            throw new CancellationException();
+        }
+        if (mState == FAILED) {
+            throw new ExecutionException(mError);
+        }
+        return mResult;
+    }
+
+    /**
+     * Returns the failure of a completed future, null if it succeeded.
+     */
+    private Throwable getError() {
+        synchronized (mLock) {
+            if (mState == CANCELLED) {
+                return new CancellationException();
+            }
+            return mError;
+        }
+    }
+
+    private boolean finish(int state, T result, Throwable error) {
+        List<Listener> listeners;
+        synchronized (mLock) {
+            if (mState != PENDING) {
+                return false;
+            }
+            mState = state;
+            mResult = result;
+            mError = error;
+            listeners = mListeners;
+            mListeners = null;
+            mLock.notifyAll();
+        }
+
+        for (int i = 0, size = listeners.size(); i < size; i++) {
+            listeners.get(i).run();
+        }
+        for (PermissionFuture<?> source : mSources) {
+            source.releaseConsumer(state == CANCELLED);
+        }
+        if (state == CANCELLED && mCancelAction != null) {
+            mCancelAction.run();
+        }
+        return true;
+    }
+
+    private void addConsumer() {
+        synchronized (mLock) {
+            mConsumers++;
+        }
+    }
+
+    /**
+     * Called when a future made of this future completes before this future. This future is cancelled if the
+     * consumer was cancelled and it was the last one.
+     */
+    private void releaseConsumer(boolean cancelled) {
+        synchronized (mLock) {
+            if (mState != PENDING || --mConsumers > 0 || ! cancelled) {
+                return;
+            }
+        }
+        cancel(false);
+    }
+
+    private void addListener(Runnable runnable, Executor executor) {
+        Listener listener = new Listener(runnable, executor);
+        synchronized (mLock) {
+            if (mState == PENDING) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private static synchronized Handler getTimeoutHandler() {
+        if (sTimeoutHandler == null) {
+            sTimeoutHandler = new Handler(Looper.getMainLooper());
+        }
+        return sTimeoutHandler;
+    }
+
+    private static final class Listener {
+        final Runnable mRunnable;
+        final Executor mExecutor;
+
+        Listener(Runnable runnable, Executor executor) {
+            mRunnable = runnable;
+            mExecutor = executor;
+        }
+
+        void run() {
+            if (mExecutor != null) {
+                mExecutor.execute(mRunnable);
+            } else {
+                mRunnable.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Runs tasks when the permissions they need are granted. <br><br>
+ *
+ *  A task is queued together with its {@link PermissionSet}. Whenever the permission state may have changed
+ *  (a permission result arrives or the app comes back to the foreground, see {@link PermissionStateCache}),
+ *  the queued permissions are checked once and every task whose permissions are all granted runs in one batch
+ *  on the executor. The checks run on the executor too. <br><br>
+ *
+ *  The scheduler does not request permissions, it only waits for them. <br><br>
+ *
+ *  The process-wide {@link PermissionStateCache} holds the scheduler weakly. A scheduler which is not referenced
+ *  anymore is collected with its queued tasks, even if {@link #shutdown()} is not called. So the owner keeps a
+ *  reference to it while tasks are queued. <br><br>
+ *
+ *    <strong>Usage:</strong> <br>
+ *
+ *    <pre>{@code
+ *
+ *    mScheduler = new PermissionGatedScheduler(context, AsyncTask.THREAD_POOL_EXECUTOR, 32);
+ *
+ *    mScheduler.schedule(PermissionSet.of(Manifest.permission.READ_CONTACTS), new Runnable() {
+ *          public void run() {
+ *              // Runs on the executor once READ_CONTACTS is granted.
+ *          }
+ *    });
+ *
+ *    mScheduler.shutdown(); // When the owner is destroyed. Queued tasks are dropped.
+ *  } </pre><br><br>
+ *
+ *  Can be used from any thread.
+ */
+
+public final class PermissionGatedScheduler {
+
+    private static final String TAG = PermissionGatedScheduler.class.getSimpleName();
+
+    private final Context mContext;
+    private final Executor mExecutor;
+    private final int mMaxQueueSize;
+
+    private final List<Task> mQueue = new ArrayList<>();
+
+    private boolean mDrainScheduled;
+    private boolean mShutdown;
+
+    private long mRunCount;
+    private long mRejectedCount;
+    private long mBatchCount;
+    private long mTotalWaitNanos;
+    private long mMaxWaitNanos;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final PermissionStateCache.InvalidationListener mInvalidationListener = new WeakInvalidationListener(this);
+
+    /**
+     * @param executor      runs the permission checks and the tasks. Should not be the main thread.
+     * @param maxQueueSize  tasks which do not fit are rejected
+     */
+    public PermissionGatedScheduler(Context context, @NonNull Executor executor, int maxQueueSize) {
+        if (maxQueueSize <= 0) {
+            throw new IllegalArgumentException("maxQueueSize must be positive: " + maxQueueSize);
+        }
+
+        Context applicationContext = context.getApplicationContext();
+        mContext = applicationContext != null ? applicationContext : context;
+        mExecutor = executor;
+        mMaxQueueSize = maxQueueSize;
+
+        PermissionStateCache.getInstance().addInvalidationListener(mInvalidationListener);
+    }
+
+    /**
+     * Queues the task until all the permissions are granted. If they are already granted, the task runs
+     * with the next batch.
+     *
+     * @return false if the queue is full or the scheduler is shut down.
+     */
+    public boolean schedule(@NonNull PermissionSet permissions, @NonNull Runnable task) {
+        synchronized (this) {
+            if (mShutdown || mQueue.size() >= mMaxQueueSize) {
+                mRejectedCount++;
+                Log.w(TAG, "Task rejected, the queue is " + (mShutdown ? "shut down." : "full."));
+                return false;
+            }
+            mQueue.add(new Task(permissions.mask(), task, System.nanoTime()));
+        }
+
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Removes a queued task. Returns false if it is not queued (already run or never scheduled).
+     */
+    public synchronized boolean cancel(Runnable task) {
+        for (int i = 0, size = mQueue.size(); i < size; i++) {
+            if (mQueue.get(i).mRunnable == task) {
+                mQueue.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the queued tasks and stops listening to permission changes.
+     */
+    public void shutdown() {
+        PermissionStateCache.getInstance().removeInvalidationListener(mInvalidationListener);
+
+        synchronized (this) {
+            mShutdown = true;
+            mQueue.clear();
+        }
+    }
+
+    public synchronized int getQueueSize() {
+        return mQueue.size();
+    }
+
+    /**
+     * Returns the counters and the wait times of the tasks which have run so far.
+     */
+    public synchronized Metrics getMetrics() {
+        return new Metrics(mQueue.size(), mRunCount, mRejectedCount, mBatchCount, mTotalWaitNanos, mMaxWaitNanos);
+    }
+
+    private void scheduleDrain() {
+        synchronized (this) {
+            if (mDrainScheduled || mShutdown || mQueue.isEmpty()) {
+                return;
+            }
+            mDrainScheduled = true;
+        }
+        mExecutor.execute(mDrain);
+    }
+
+    /**
+     * Checks the permissions of the queued tasks once and runs the tasks which are granted.
+     */
+    private void drain() {
+        long needed = 0L;
+        synchronized (this) {
+            mDrainScheduled = false;
+            if (mQueue.isEmpty()) {
+                return;
+            }
+            for (int i = 0, size = mQueue.size(); i < size; i++) {
+                needed |= mQueue.get(i).mPermissions;
+            }
+        }
+
+        long granted = PermissionHelper.grantedMask(mContext, needed);
+
+        List<Task> batch = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            for (int i = mQueue.size() - 1; i >= 0; i--) {
+                Task task = mQueue.get(i);
+                if ((task.mPermissions & ~granted) == 0L) {
+                    mQueue.remove(i);
+                    batch.add(task);
+
+                    long wait = now - task.mQueuedAt;
+                    mTotalWaitNanos += wait;
+                    mMaxWaitNanos = Math.max(mMaxWaitNanos, wait);
+                }
+            }
+
+            if (batch.isEmpty()) {
+                return;
+            }
+            mRunCount += batch.size();
+            mBatchCount++;
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Running " + batch.size() + " task(s) for " + PermissionSet.fromMask(granted));
+        }
+
+        // Queued order, the oldest task first.
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            try {
+                batch.get(i).mRunnable.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Task failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Tells the scheduler about invalidations while it is referenced, and removes itself from the cache after the
+     * scheduler is collected.
+     */
+    private static final class WeakInvalidationListener implements PermissionStateCache.InvalidationListener {
+
+        private final WeakReference<PermissionGatedScheduler> mScheduler;
+
+        WeakInvalidationListener(PermissionGatedScheduler scheduler) {
+            mScheduler = new WeakReference<>(scheduler);
+        }
+
+        @Override
+        public void onInvalidated() {
+            PermissionGatedScheduler scheduler = mScheduler.get();
+            if (scheduler != null) {
+                scheduler.scheduleDrain();
+            } else {
+                PermissionStateCache.getInstance().removeInvalidationListener(this);
+            }
+        }
+    }
+
+    private static final class Task {
+        final long mPermissions;
+        final Runnable mRunnable;
+        final long mQueuedAt;
+
+        Task(long permissions, Runnable runnable, long queuedAt) {
+            mPermissions = permissions;
+            mRunnable = runnable;
+            mQueuedAt = queuedAt;
+        }
+    }
+
+    /**
+     * Snapshot of the counters of a scheduler. Wait time is the time from schedule() until the batch of the task starts.
+     */
+    public static final class Metrics {
+
+        private final int mQueueSize;
+        private final long mRunCount;
+        private final long mRejectedCount;
+        private final long mBatchCount;
+        private final long mTotalWaitNanos;
+        private final long mMaxWaitNanos;
+
+        Metrics(int queueSize, long runCount, long rejectedCount, long batchCount, long totalWaitNanos, long maxWaitNanos) {
+            mQueueSize = queueSize;
+            mRunCount = runCount;
+            mRejectedCount = rejectedCount;
+            mBatchCount = batchCount;
+            mTotalWaitNanos = totalWaitNanos;
+            mMaxWaitNanos = maxWaitNanos;
+        }
+
+        public int getQueueSize() {
+            return mQueueSize;
+        }
+
+        public long getRunCount() {
+            return mRunCount;
+        }
+
+        public long getRejectedCount() {
+            return mRejectedCount;
+        }
+
+        public long getBatchCount() {
+            return mBatchCount;
+        }
+
+        public long getAverageWaitMillis() {
+            return mRunCount == 0L ? 0L : TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos / mRunCount);
+        }
+
+        public long getMaxWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "Metrics{queueSize=" + mQueueSize
+                    + ", runCount=" + mRunCount
+                    + ", rejectedCount=" + mRejectedCount
+                    + ", batchCount=" + mBatchCount
+                    + ", averageWaitMillis=" + getAverageWaitMillis()
+                    + ", maxWaitMillis=" + getMaxWaitMillis() + "}";
+        }
+    }
+}
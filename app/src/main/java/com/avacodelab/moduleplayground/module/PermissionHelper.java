@@ -5,19 +5,20 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.Settings;
 import android.support.annotation.NonNull;
-import android.support.v4.app.ActivityCompat;
-import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  *  This class contains various of methods that helps to grant permissions for the application. <br><br>
@@ -33,7 +34,7 @@ import java.util.Map;
  *
  *    <pre>{@code
  *
- *    mPermissionHelper = new PermissionHelper(PermissionActivity.this);
+ *    mPermissionHelper = new PermissionHelper(PermissionActivity.this, savedInstanceState);
  *
  *    mPermissionHelper.checkDeviceAndRequestPermissions(PERMISSION_REQUEST_CODE, new String[] {
  *
@@ -72,6 +73,27 @@ import java.util.Map;
  *  <a href="https://developer.android.com/training/permissions/requesting.html">Requesting Permissions at Run Time</a> <br><br>
  *
  *
+ *  Permissions are kept in a {@link PermissionSet}. The String array and List overloads are adapters to it. <br><br>
+ *
+ *  A {@link PermissionOutcomeCallback} receives the whole answer at once, so the host can update its views in
+ *  one pass instead of three. <br><br>
+ *
+ *  The answers of the dialogs are kept in a {@link PermissionJournal}. A request whose permissions were all denied
+ *  with "Never ask again" is answered immediately, without a dialog. <br><br>
+ *
+ *  The answers are also published to the other processes of the app in a {@link PermissionSnapshotFile}. A
+ *  permission which it has as granted is not checked again in any process. <br><br>
+ *
+ *  Services, receivers and jobs which have no activity use {@link PermissionQuery} instead. <br><br>
+ *
+ *  <b> Threading: </b> The static query methods (isPermissionGranted() ...) can be called from any thread, they
+ *  do not lock. See {@link PermissionStateCache}. Requests and onRequestPermissionsResult() must be called on the
+ *  main thread, they throw IllegalStateException otherwise. <br><br>
+ *
+ *  checkDeviceAndRequestPermissionsAsync() returns a {@link PermissionFuture} of the {@link PermissionOutcome} instead,
+ *  so work can be started while the permission dialog is showing. <br><br>
+ *
+ *
  *  Created by orcan on 13.06.2017.
  */
 
@@ -79,13 +101,31 @@ public final class PermissionHelper {
 
     private static final String TAG = PermissionHelper.class.getSimpleName();
 
-    private Activity mActivity;
-    private List<String> mPermissionsAlreadyGranted;
-    private PermissionResultCallback mPermissionResultCallback;
-    private ArrayList<String> mPermissionsNeeded;
+    private static final String[] NO_PERMISSIONS = new String[0];
+    private static final int[] NO_GRANT_RESULTS = new int[0];
 
+    private static volatile PermissionBackend sBackend;
+    private static volatile PermissionMetrics sMetrics = PermissionMetrics.NO_OP;
+
+    private final WeakReference<Activity> mActivity;
+
+    /**
+     * The activity is weakly held, a helper which outlives its activity does not keep it in memory.
+     * Pending requests are released when the activity is destroyed, see {@link PermissionRequestEngine}.
+     */
     public PermissionHelper(Activity activity) {
-        mActivity = activity;
+        mActivity = new WeakReference<>(activity);
+    }
+
+    /**
+     * Creates the helper in Activity.onCreate(). If the process was killed while a permission dialog was showing,
+     * the requests of the activity are restored from the saved state, so the result finishes them without a second dialog.
+     *
+     * @param savedInstanceState the bundle given to Activity.onCreate(), may be null
+     */
+    public PermissionHelper(Activity activity, Bundle savedInstanceState) {
+        this(activity);
+        PermissionRequestEngine.getInstance().onActivityCreated(activity, savedInstanceState);
     }
 
     /**
@@ -95,63 +135,272 @@ public final class PermissionHelper {
      *
      * Callback methods called immediately after the permission check. <br>
      * <b>If permissions already granted before, permissionsGranted() callback called anyway.
-     * Do your job which needs permission in permissionsGranted() method. </b>
+     * Do your job which needs permission in permissionsGranted() method. </b> <br><br>
+     *
+     * Multiple requests can be in flight at the same time. If a permission dialog is already showing,
+     * the request waits for it or is merged into the next dialog. See {@link PermissionRequestEngine}.
      *
      * @param requestCode   Request specific code which is created arbitrarily in the code.
      *                      This code returns in callback methods <br><br>
      *
-     * @param permissions   Permission strings which will be checked and requested if necessary <br><br>
+     * @param permissions   Permissions which will be checked and requested if necessary <br><br>
      *
      * @param callback      The {@link PermissionResultCallback} callback. <br>
      *                      <b> If permissions already granted before, permissionsGranted() callback called anyway. </b>
      */
+    public void checkDeviceAndRequestPermissions(int requestCode, @NonNull PermissionSet permissions, PermissionResultCallback callback) {
+        checkDeviceAndRequestPermissions(requestCode, permissions, PermissionSet.NO_NAMES, callback);
+    }
+
+    /**
+     * Same as {@link #checkDeviceAndRequestPermissions(int, PermissionSet, PermissionResultCallback)}. A permission
+     * which is not declared in the manifest and gets no slot in {@link PermissionRegistry} is reported as denied.
+     */
     public void checkDeviceAndRequestPermissions(int requestCode, @NonNull List<String> permissions, PermissionResultCallback callback) {
+        checkDeviceAndRequestPermissions(requestCode, PermissionSet.ofRegistered(permissions), PermissionSet.unregistered(permissions), callback);
+    }
 
-        mPermissionsAlreadyGranted = permissions;
-        mPermissionResultCallback = callback;
+    public void checkDeviceAndRequestPermissions(int requestCode, @NonNull String[] permissions, PermissionResultCallback callback) {
+        checkDeviceAndRequestPermissions(requestCode, Arrays.asList(permissions), callback);
+    }
 
-        if (permissions.isEmpty()) {
-            Log.w(TAG, "Permission list is empty.");
-            mPermissionResultCallback.permissionsGranted(requestCode, permissions);
-        } else {
-            if (isDeviceSupportsRuntimePermissions()) {
-                if (checkAndRequestPermissions(permissions, requestCode)) {
-                    Log.i(TAG, "All permissions granted.");
-                    mPermissionResultCallback.permissionsGranted(requestCode, permissions);
-                } else {
-                    Log.d(TAG, "Permissions requested.");
-                }
-            } else {
-                Log.i(TAG, "Device does not support Runtime Permissions. All permissions granted.");
-                mPermissionResultCallback.permissionsGranted(requestCode, permissions);
+    /**
+     * @param undeclared    the requested permissions without a slot, they are reported as denied without a request
+     */
+    private void checkDeviceAndRequestPermissions(int requestCode, PermissionSet permissions, String[] undeclared,
+                                                  PermissionResultCallback callback) {
+        checkMainThread();
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
+        long needed = checkDevicePermissions(activity, permissions);
+
+        if (needed == 0L) {
+            if (! permissions.isEmpty() || undeclared.length == 0) {
+                callback.permissionsGranted(requestCode, PermissionSet.newList(permissions.mask(), permissions.order()));
+            }
+            if (undeclared.length != 0) {
+                callback.permissionsDenied(requestCode, new ArrayList<>(Arrays.asList(undeclared)));
             }
+        } else {
+            requestPermissions(activity, requestCode, permissions, needed,
+                    new PermissionRequestEngine.CallbackListener(callback, permissions.order(), undeclared));
         }
     }
 
-    public void checkDeviceAndRequestPermissions(int requestCode, @NonNull String[] permissions, PermissionResultCallback callback) {
+    /**
+     * Same as {@link #checkDeviceAndRequestPermissions(int, PermissionSet, PermissionResultCallback)}, but the
+     * whole answer is delivered with one call. <br><br>
+     *
+     * If the permissions are already granted, the callback is called immediately.
+     */
+    public void checkDeviceAndRequestPermissions(int requestCode, @NonNull PermissionSet permissions, PermissionOutcomeCallback callback) {
+        checkMainThread();
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
+
+        long needed = checkDevicePermissions(activity, permissions);
+
+        if (needed == 0L) {
+            callback.onPermissionOutcome(new PermissionOutcome(requestCode, permissions.mask(), 0L, 0L, permissions.mask()));
+        } else {
+            requestPermissions(activity, requestCode, permissions, needed, new PermissionRequestEngine.OutcomeCallbackListener(callback));
+        }
+    }
+
+    /**
+     * Same as {@link #checkDeviceAndRequestPermissions(int, PermissionSet, PermissionOutcomeCallback)}. A permission
+     * which is not declared in the manifest and gets no slot in {@link PermissionRegistry} is reported as denied,
+     * see {@link PermissionOutcome#getUndeclared()}.
+     */
+    public void checkDeviceAndRequestPermissions(int requestCode, @NonNull List<String> permissions, PermissionOutcomeCallback callback) {
+        checkDeviceAndRequestPermissions(requestCode, PermissionSet.ofRegistered(permissions),
+                withUndeclared(callback, PermissionSet.unregistered(permissions)));
+    }
+
+    public void checkDeviceAndRequestPermissions(int requestCode, @NonNull String[] permissions, PermissionOutcomeCallback callback) {
         checkDeviceAndRequestPermissions(requestCode, Arrays.asList(permissions), callback);
     }
 
+    private static PermissionOutcomeCallback withUndeclared(final PermissionOutcomeCallback callback, final String[] undeclared) {
+        if (undeclared.length == 0) {
+            return callback;
+        }
+        return new PermissionOutcomeCallback() {
+            @Override
+            public void onPermissionOutcome(PermissionOutcome outcome) {
+                callback.onPermissionOutcome(outcome.withUndeclared(undeclared));
+            }
+        };
+    }
+
     /**
-     * This method finds which permission is not granted and requests them.
+     * Same as {@link #checkDeviceAndRequestPermissions(int, PermissionSet, PermissionOutcomeCallback)}, but the
+     * dialogs are planned by the {@link PermissionRequestPlanner}. The callback is called once, after the last
+     * stage. <br><br>
+     *
+     * The permissions which are known as never ask again are not asked, they are reported as never ask again. The
+     * permissions of the stages which are not asked after a denial are reported as denied. If a dialog is closed
+     * without an answer or the activity is finishing or destroyed, the callback is called with the answers of the
+     * finished stages, and the permissions of the interrupted and the remaining stages are reported as denied.
      */
-    private boolean checkAndRequestPermissions(List<String> permissions, int requestCode) {
-        mPermissionsNeeded = new ArrayList<>();
-        mPermissionsAlreadyGranted = new ArrayList<>();
+    public void checkDeviceAndRequestPermissions(int requestCode, @NonNull PermissionSet permissions,
+                                                 @NonNull PermissionRequestPlanner planner, PermissionOutcomeCallback callback) {
+        checkMainThread();
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
 
-        for (String permission : permissions) {
-            if (! isPermissionGranted(mActivity, permission)) {
-                mPermissionsNeeded.add(permission);
-            } else {
-                mPermissionsAlreadyGranted.add(permission);
+        long needed = checkDevicePermissions(activity, permissions);
+
+        if (needed == 0L) {
+            callback.onPermissionOutcome(new PermissionOutcome(requestCode, permissions.mask(), 0L, 0L, permissions.mask()));
+            return;
+        }
+
+        long alreadyGranted = permissions.mask() & ~needed;
+        long neverAskAgain = knownNeverAskAgain(activity, needed);
+        long[] stages = planner.plan(needed, neverAskAgain, alreadyGranted);
+        new StagedRequest(requestCode, stages, planner.isStopOnDenial(), alreadyGranted, neverAskAgain, callback)
+                .requestNext(activity);
+    }
+
+    /**
+     * Same as {@link #checkDeviceAndRequestPermissions(int, PermissionSet, PermissionResultCallback)}, but the
+     * whole answer is returned as a future. <br><br>
+     *
+     * The future is completed on the main thread. It is completed immediately if no request is needed, and
+     * cancelled if the dialog is closed without an answer or the activity is destroyed. See {@link PermissionFuture}
+     * for chaining and timeouts.
+     */
+    public PermissionFuture<PermissionOutcome> checkDeviceAndRequestPermissionsAsync(int requestCode, @NonNull PermissionSet permissions) {
+        checkMainThread();
+        Activity activity = getActivity();
+        if (activity == null) {
+            PermissionFuture<PermissionOutcome> future = new PermissionFuture<>();
+            future.cancel(false);
+            return future;
+        }
+
+        long needed = checkDevicePermissions(activity, permissions);
+
+        if (needed == 0L) {
+            return PermissionFuture.completed(new PermissionOutcome(requestCode, permissions.mask(), 0L, 0L, permissions.mask()));
+        }
+
+        OutcomeListener listener = new OutcomeListener();
+        requestPermissions(activity, requestCode, permissions, needed, listener);
+        return listener.mFuture;
+    }
+
+    /**
+     * Same as {@link #checkDeviceAndRequestPermissionsAsync(int, PermissionSet)}. A permission which is not declared
+     * in the manifest and gets no slot in {@link PermissionRegistry} is reported as denied, see
+     * {@link PermissionOutcome#getUndeclared()}.
+     */
+    public PermissionFuture<PermissionOutcome> checkDeviceAndRequestPermissionsAsync(int requestCode, @NonNull List<String> permissions) {
+        final String[] undeclared = PermissionSet.unregistered(permissions);
+        PermissionFuture<PermissionOutcome> future = checkDeviceAndRequestPermissionsAsync(requestCode, PermissionSet.ofRegistered(permissions));
+        if (undeclared.length == 0) {
+            return future;
+        }
+        return future.then(new PermissionFuture.Transform<PermissionOutcome, PermissionOutcome>() {
+            @Override
+            public PermissionOutcome apply(PermissionOutcome outcome) {
+                return outcome.withUndeclared(undeclared);
             }
+        });
+    }
+
+    public PermissionFuture<PermissionOutcome> checkDeviceAndRequestPermissionsAsync(int requestCode, @NonNull String[] permissions) {
+        return checkDeviceAndRequestPermissionsAsync(requestCode, Arrays.asList(permissions));
+    }
+
+    /**
+     * Returns the permissions which must be requested, or 0 if all of them are granted.
+     */
+    private static long checkDevicePermissions(Activity activity, PermissionSet permissions) {
+        if (permissions.isEmpty()) {
+            Log.w(TAG, "Permission list is empty.");
+            return 0L;
         }
-        if (! mPermissionsNeeded.isEmpty()) {
-            Log.i(TAG, "Requesting permissions: " + mPermissionsNeeded);
-            ActivityCompat.requestPermissions(mActivity, mPermissionsNeeded.toArray(new String[mPermissionsNeeded.size()]), requestCode);
-            return false;
-        } else {
-            return true;
+
+        if (! isDeviceSupportsRuntimePermissions()) {
+            Log.i(TAG, "Device does not support Runtime Permissions. All permissions granted.");
+            return 0L;
+        }
+
+        long needed = permissions.mask() & ~grantedMask(activity, permissions.mask());
+
+        if (needed == 0L) {
+            Log.i(TAG, "All permissions granted.");
+        } else if (Log.isLoggable(TAG, Log.WARN)) {
+            long undeclared = PermissionManifest.undeclaredMask(needed, getBackend().getSdkInt());
+            if (undeclared != 0L) {
+                Log.w(TAG, "Permissions are not declared in the manifest, they are denied: " + PermissionSet.fromMask(undeclared));
+            }
+        }
+        return needed;
+    }
+
+    /**
+     * This method requests the needed permissions. The others are reported as granted together with the result. <br><br>
+     *
+     * The permissions which are not declared in the manifest are not asked, they are reported as denied. If the
+     * other needed permissions are known as never ask again, the system would close the dialog without asking.
+     * So the result is delivered immediately instead.
+     */
+    private static void requestPermissions(Activity activity, int requestCode, PermissionSet permissions, long needed, PermissionRequestEngine.ResultListener listener) {
+        long asked = needed & ~PermissionManifest.undeclaredMask(needed, getBackend().getSdkInt());
+        long neverAskAgain = knownNeverAskAgain(activity, asked);
+        if (neverAskAgain == asked) {
+            Log.i(TAG, "Permissions are denied permanently or not declared, no dialog is shown.");
+            if (listener != null) {
+                PermissionResult result = PermissionResult.obtain();
+                result.classify(NO_PERMISSIONS, NO_GRANT_RESULTS, needed);
+                result.markNeverAskAgainMask(neverAskAgain);
+                result.addGranted(permissions.mask() & ~needed);
+                listener.onPermissionResult(requestCode, result);
+                result.recycle();
+            }
+            return;
+        }
+
+        PermissionRequestEngine.getInstance().submit(activity, requestCode, needed, permissions.mask() & ~needed, listener);
+        Log.d(TAG, "Permissions requested.");
+    }
+
+    /**
+     * Returns the permissions of the mask whose last answer was never ask again, see {@link PermissionJournal}.
+     * A permission which shows the rationale was reset in the app settings meanwhile and is not returned.
+     */
+    private static long knownNeverAskAgain(Activity activity, long permissions) {
+        long neverAskAgain = PermissionJournal.getInstance(activity).getNeverAskAgainMask() & permissions;
+        for (long mask = neverAskAgain; mask != 0L; mask &= mask - 1) {
+            int slot = Long.numberOfTrailingZeros(mask);
+            if (shouldShowPermissionExplanation(activity, PermissionRegistry.nameOf(slot))) {
+                neverAskAgain &= ~PermissionSet.bit(slot);
+            }
+        }
+        return neverAskAgain;
+    }
+
+    /**
+     * Requests a permission request deferred by {@link PermissionQuery#requestOnNextForeground(int, PermissionSet)}
+     * from the given foreground activity. The result is delivered to the activity if it implements one of the callbacks.
+     * Nothing is requested if the permissions were granted in the meantime.
+     */
+    static void requestDeferred(Activity activity, int requestCode, PermissionSet permissions) {
+        checkMainThread();
+
+        long needed = checkDevicePermissions(activity, permissions);
+        if (needed != 0L) {
+            requestPermissions(activity, requestCode, permissions, needed, PermissionRequestEngine.listenerOf(activity));
         }
     }
 
@@ -165,53 +414,59 @@ public final class PermissionHelper {
      * @param grantResults  request responses
      */
     public void onRequestPermissionsResult(int requestCode, String permissions[], int[] grantResults) {
-        if(grantResults.length > 0) {
-            Map<String, Integer> permissionPairs = new HashMap<>();
-
-            for (int i = 0; i < permissions.length; i++) {
-                permissionPairs.put(permissions[i], grantResults[i]);
-            }
+        checkMainThread();
+        PermissionPrewarm.clear();
+        PermissionStateCache.getInstance().invalidate();
 
-            ArrayList<String> permissionsGranted = new ArrayList<>();
-            ArrayList<String> permissionsDenied = new ArrayList<>();
-            ArrayList<String> permissionsNeverAskAgain = new ArrayList<>();
-
-            for (String permission : mPermissionsNeeded) {
-                if (permissionPairs.get(permission) != PackageManager.PERMISSION_GRANTED) {
-                    if(shouldShowPermissionExplanation(mActivity, permission))
-                        permissionsDenied.add(permission);
-                    else {
-                        permissionsNeverAskAgain.add(permission);
-                    }
-                } else {
-                    permissionsGranted.add(permission);
-                }
-            }
-
-            permissionsGranted.addAll(mPermissionsAlreadyGranted);
+        Activity activity = getActivity();
+        if (activity == null) {
+            return;
+        }
 
-            if (! permissionsGranted.isEmpty()) {
-                Log.i(TAG, "Permissions granted: " + permissionsGranted);
-                mPermissionResultCallback.permissionsGranted(requestCode, permissionsGranted);
-            }
+        if (! PermissionRequestEngine.getInstance().onRequestPermissionsResult(activity, requestCode, permissions, grantResults)) {
+            Log.w(TAG, "No pending permission request for request code " + requestCode);
+        }
+    }
 
-            if (! permissionsDenied.isEmpty()) {
-                Log.i(TAG, "Permissions denied: " + permissionsDenied);
-                mPermissionResultCallback.permissionsDenied(requestCode, permissionsDenied);
-            }
+    /**
+     * Requests and results are handled by {@link PermissionRequestEngine}, which is confined to the main thread.
+     */
+    private static void checkMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException("Permission requests must be made on the main thread.");
+        }
+    }
 
-            if (! permissionsNeverAskAgain.isEmpty()) {
-                Log.i(TAG, "Permissions never ask again: " + permissionsNeverAskAgain);
-                mPermissionResultCallback.permissionsNeverAskAgain(requestCode, permissionsNeverAskAgain);
-            }
+    /**
+     * Returns the activity of the helper, or null if it is garbage collected.
+     */
+    private Activity getActivity() {
+        Activity activity = mActivity.get();
+        if (activity == null) {
+            Log.w(TAG, "The activity of the helper is destroyed.");
         }
+        return activity;
     }
 
     /**
      * If the permission denied once and and user did not check "Never ask again" then this method returns true.
      */
     public static boolean shouldShowPermissionExplanation(Activity activity, String permission) {
-        return ActivityCompat.shouldShowRequestPermissionRationale(activity, permission);
+        return getBackend().shouldShowRequestPermissionRationale(activity, permission);
+    }
+
+    /**
+     * Returns true if the permission was denied with "Never ask again" in an earlier dialog, also in an earlier
+     * process. Requesting it would not show a dialog, send the user to {@link #openApplicationSettings(Context)} instead. <br><br>
+     *
+     * The journal only keeps the permissions which fit into the {@link PermissionRegistry}, false for the others.
+     */
+    public static boolean isPermissionDeniedPermanently(Activity activity, String permission) {
+        int slot = PermissionRegistry.trySlotOf(permission);
+        if (slot == PermissionRegistry.NO_SLOT) {
+            return false;
+        }
+        return ! isPermissionGranted(activity, slot) && knownNeverAskAgain(activity, PermissionSet.bit(slot)) != 0L;
     }
 
     /**
@@ -220,39 +475,182 @@ public final class PermissionHelper {
      *  Runtime permissions came to Android with Marshmallow (6.0)
      */
     public static boolean isDeviceSupportsRuntimePermissions() {
-        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        return getBackend().getSdkInt() >= Build.VERSION_CODES.M;
     }
 
     /**
-     Returns a boolean which represents if given permission is granted.
+     *  Returns the permissions which the manifest of the build declares for the SDK level of the device, sorted by
+     *  name. The permissions of a debug manifest are declared only in a debug build.
+     */
+    public static PermissionSet getDeclaredPermissions() {
+        return PermissionSet.of(PermissionManifest.declaredNames(getBackend().getSdkInt()));
+    }
+
+    /**
+     Returns a boolean which represents if given permission is granted. <br><br>
+
+     Results are cached process-wide until a permission result arrives or the app comes
+     back to the foreground. See {@link PermissionStateCache}. <br><br>
+
+     Normal permissions declared in the manifest are granted and permissions which are not declared
+     are denied without a runtime check. See {@link PermissionManifest}.
      @param permission Permission string can be retrieved from {@link Manifest.permission} class.
      */
     public static boolean isPermissionGranted(Context context, String permission) {
-        return  isDeviceSupportsRuntimePermissions() &&
-                ContextCompat.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+        int slot = PermissionRegistry.trySlotOf(permission);
+        if (slot == PermissionRegistry.NO_SLOT) {
+            return checkUncached(context, permission);
+        }
+        return isPermissionGranted(context, slot);
+    }
+
+    /**
+     * Checks a permission which does not fit into the {@link PermissionRegistry}, without the cache.
+     */
+    static boolean checkUncached(Context context, String permission) {
+        PermissionBackend backend = getBackend();
+        return backend.getSdkInt() >= Build.VERSION_CODES.M
+                && backend.checkSelfPermission(context, permission) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private static boolean isPermissionGranted(Context context, int slot) {
+        return grantedMask(context, PermissionSet.bit(slot)) != 0L;
+    }
+
+    /**
+     * Returns the permissions of the mask which are granted. <br><br>
+     *
+     * The cache is read once for the whole mask, only the permissions which are not cached are checked.
+     */
+    static long grantedMask(Context context, long permissions) {
+        return grantedMask(context, permissions, true);
     }
 
     /**
-     Returns a boolean which represents if given permission is granted.
+     * @param cachedDenials false to check the permissions which are cached as denied again. A grant in the app
+     *                      settings is only noticed when the app comes back, so components which run without
+     *                      an activity use this.
+     */
+    static long grantedMask(Context context, long permissions, boolean cachedDenials) {
+        PermissionBackend backend = getBackend();
+        int sdkInt = backend.getSdkInt();
+        if (sdkInt < Build.VERSION_CODES.M) {
+            return 0L;
+        }
+
+        PermissionStateCache cache = PermissionStateCache.getInstance();
+        cache.registerLifecycle(context);
+        PermissionStateCache.Snapshot snapshot = cache.snapshot();
+
+        long granted = 0L;
+        long sharedGranted = 0L;
+        boolean sharedRead = false;
+        int checkCount = 0;
+        int cacheHitCount = 0;
+        for (long mask = permissions; mask != 0L; mask &= mask - 1) {
+            int slot = Long.numberOfTrailingZeros(mask);
+
+            int protectionLevel = PermissionManifest.protectionLevelOf(slot, sdkInt);
+            if (protectionLevel == PermissionManifest.NOT_DECLARED) {
+                continue;
+            }
+
+            int state = protectionLevel == PermissionInfo.PROTECTION_NORMAL
+                    ? PermissionStateCache.STATE_GRANTED
+                    : snapshot.get(slot);
+            if (state == PermissionStateCache.STATE_DENIED && ! cachedDenials) {
+                state = PermissionStateCache.STATE_UNKNOWN;
+            }
+
+            if (protectionLevel != PermissionInfo.PROTECTION_NORMAL) {
+                checkCount++;
+                if (state != PermissionStateCache.STATE_UNKNOWN) {
+                    cacheHitCount++;
+                }
+            }
+
+            if (state == PermissionStateCache.STATE_UNKNOWN) {
+                if (! sharedRead) {
+                    sharedGranted = PermissionSnapshotFile.getInstance(context).grantedMask(permissions);
+                    sharedRead = true;
+                }
+                boolean checked = (sharedGranted & PermissionSet.bit(slot)) != 0L
+                        || backend.checkSelfPermission(context, PermissionRegistry.nameOf(slot)) == PackageManager.PERMISSION_GRANTED;
+                cache.put(slot, checked, snapshot.mEpoch);
+                state = checked ? PermissionStateCache.STATE_GRANTED : PermissionStateCache.STATE_DENIED;
+            }
+
+            if (state == PermissionStateCache.STATE_GRANTED) {
+                granted |= PermissionSet.bit(slot);
+            }
+        }
+
+        if (checkCount != 0) {
+            sMetrics.onPermissionsChecked(checkCount, cacheHitCount);
+        }
+        return granted;
+    }
+
+    /**
+     Returns a boolean which represents if given permission is granted. <br><br>
+
+     The permissions are checked in one pass, see {@link #isPermissionGranted(Context, String)}.
      @param permissions Multiple permission strings.
      */
     public static boolean isPermissionGranted(Context context, String[] permissions) {
+        long mask = 0L;
         for (String permission : permissions) {
-            if (! isPermissionGranted(context, permission)) {
+            int slot = PermissionRegistry.trySlotOf(permission);
+            if (slot != PermissionRegistry.NO_SLOT) {
+                mask |= PermissionSet.bit(slot);
+            } else if (! checkUncached(context, permission)) {
                 return false;
             }
         }
+        return grantedMask(context, mask) == mask;
+    }
 
-        return true;
+    /**
+     *  Replaces the platform calls of the helper. Passing null restores the default {@link AndroidPermissionBackend}. <br><br>
+     *
+     *  Intended for tests and benchmarks. Must be called before any permission is checked.
+     */
+    public static void setBackend(PermissionBackend backend) {
+        sBackend = backend;
+    }
+
+    /**
+     *  Replaces the sink of the measurements of the module. Passing null restores {@link PermissionMetrics#NO_OP}.
+     */
+    public static void setMetrics(PermissionMetrics metrics) {
+        sMetrics = metrics != null ? metrics : PermissionMetrics.NO_OP;
+    }
+
+    static PermissionMetrics getMetrics() {
+        return sMetrics;
+    }
+
+    static PermissionBackend getBackend() {
+        PermissionBackend backend = sBackend;
+        if (backend == null) {
+            backend = new AndroidPermissionBackend();
+            sBackend = backend;
+        }
+        return backend;
     }
 
     /**
      *  <b> This method opens settings and navigates to application details page. </b> <br><br>
      *
      *  Runtime permissions can not be revoked programmatically. So it must be reset from
-     *  application settings manually
+     *  application settings manually. <br><br>
+     *
+     *  The never ask again answers are forgotten, the user may reset them in the settings.
      */
     public static void openApplicationSettings(Context context) {
+        PermissionJournal.getInstance(context).clearNeverAskAgain();
+        PermissionPrewarm.clear();
+
         Intent intent = new Intent();
         intent.setAction(Settings.ACTION_APPLICATION_DETAILS_SETTINGS);
         Uri uri = Uri.fromParts("package", context.getPackageName(), null);
@@ -261,7 +659,139 @@ public final class PermissionHelper {
     }
 
     /**
-     * Callback for permission status.
+     * Asks the stages of a planned request one after the other and delivers one outcome for all of them.
+     */
+    private static final class StagedRequest implements PermissionRequestEngine.ResultListener {
+
+        final int mRequestCode;
+        final long[] mStages;
+        final boolean mStopOnDenial;
+        final long mAlreadyGranted;
+        final PermissionOutcomeCallback mCallback;
+
+        int mNextStage;
+        long mGranted;
+        long mDenied;
+        long mNeverAskAgain;
+
+        /** The activity which requests the current stage, while its request is sent. */
+        Activity mRequestingHost;
+
+        StagedRequest(int requestCode, long[] stages, boolean stopOnDenial,
+                      long alreadyGranted, long neverAskAgain, PermissionOutcomeCallback callback) {
+            mRequestCode = requestCode;
+            mStages = stages;
+            mStopOnDenial = stopOnDenial;
+            mAlreadyGranted = alreadyGranted;
+            mGranted = alreadyGranted;
+            mNeverAskAgain = neverAskAgain;
+            mCallback = callback;
+        }
+
+        void requestNext(Activity activity) {
+            if (mNextStage == mStages.length) {
+                deliver();
+                return;
+            }
+
+            long stage = mStages[mNextStage++];
+            mRequestingHost = activity;
+            try {
+                requestPermissions(activity, mRequestCode, PermissionSet.fromMask(stage), stage, this);
+            } finally {
+                mRequestingHost = null;
+            }
+        }
+
+        @Override
+        public void onPermissionResult(int requestCode, PermissionResult result) {
+            mGranted |= result.getGranted();
+            mDenied |= result.getDenied();
+            mNeverAskAgain |= result.getNeverAskAgain();
+
+            if (mStopOnDenial && (result.getDenied() | result.getNeverAskAgain()) != 0L) {
+                for (int i = mNextStage; i < mStages.length; i++) {
+                    mDenied |= mStages[i];
+                }
+                mNextStage = mStages.length;
+            }
+
+            // A stage which needs no dialog is answered while it is requested. The answer of a dialog comes from the
+            // engine, with the activity of the request unless it is finishing or destroyed.
+            Activity activity = mRequestingHost != null
+                    ? mRequestingHost
+                    : PermissionRequestEngine.getInstance().getResultHost();
+            if (activity != null) {
+                requestNext(activity);
+            } else {
+                interrupt();
+            }
+        }
+
+        @Override
+        public void onPermissionRequestInterrupted(int requestCode) {
+            interrupt();
+        }
+
+        /**
+         * Delivers the answers so far. The permissions which got no answer are denied, so the outcome is not all granted.
+         */
+        private void interrupt() {
+            Log.w(TAG, "Staged request was interrupted, " + (mStages.length - mNextStage) + " stage(s) not asked.");
+            long answered = mGranted | mDenied | mNeverAskAgain;
+            for (long stage : mStages) {
+                mDenied |= stage & ~answered;
+            }
+            mNextStage = mStages.length;
+            deliver();
+        }
+
+        private void deliver() {
+            PermissionOutcome outcome = new PermissionOutcome(mRequestCode, mGranted, mDenied, mNeverAskAgain, mAlreadyGranted);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, outcome.toString());
+            }
+            mCallback.onPermissionOutcome(outcome);
+        }
+    }
+
+    /**
+     * Completes a {@link PermissionFuture} with the {@link PermissionOutcome} of a request. The request is dropped
+     * if the future is cancelled.
+     */
+    private static final class OutcomeListener implements PermissionRequestEngine.ResultListener, Runnable {
+
+        final PermissionFuture<PermissionOutcome> mFuture = new PermissionFuture<>(this);
+
+        @Override
+        public void onPermissionResult(int requestCode, PermissionResult result) {
+            mFuture.complete(PermissionOutcome.from(requestCode, result));
+        }
+
+        @Override
+        public void onPermissionRequestInterrupted(int requestCode) {
+            mFuture.cancel(false);
+        }
+
+        /**
+         * Cancel action of the future, it can be cancelled on any thread. The engine has no request of the listener
+         * any more if it interrupted the request.
+         */
+        @Override
+        public void run() {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                PermissionRequestEngine.getInstance().cancel(this);
+            } else {
+                new Handler(Looper.getMainLooper()).post(this);
+            }
+        }
+    }
+
+    /**
+     * Callback for permission status. <br><br>
+     *
+     * Every method gets its own list, in the order of the requested permissions. The lists can be kept and changed
+     * after the method returns.
      */
     public interface PermissionResultCallback {
         /**
@@ -271,4 +801,14 @@ public final class PermissionHelper {
         void permissionsDenied(int requestCode, List<String> permissionsDenied);
         void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain);
     }
+
+    /**
+     * Callback for the whole answer of a request. <br><br>
+     *
+     * Called once per request with the granted, denied and never ask again permissions together. If the activity
+     * implements both callbacks and is recreated while the dialog is showing, this one receives the result.
+     */
+    public interface PermissionOutcomeCallback {
+        void onPermissionOutcome(PermissionOutcome outcome);
+    }
 }
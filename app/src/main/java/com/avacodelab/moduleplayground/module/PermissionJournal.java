@@ -0,0 +1,524 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ *  On-disk journal of the answers of the permission dialogs. <br><br>
+ *
+ *  shouldShowRequestPermissionRationale() is false both for a permission which was never asked and for a
+ *  permission which is denied with "Never ask again". Only a dialog round trip tells them apart, and that answer
+ *  is lost when the process dies. The journal keeps, per permission, when it was first asked, its last answer and
+ *  whether never ask again was ever seen. So {@link PermissionHelper} reports a permanently denied permission
+ *  immediately instead of showing a dialog which the system closes without asking. <br><br>
+ *
+ *  The file is append-only. Every record is the permission name, the event and the time. The records are
+ *  replayed on a background thread when the journal is created, and the file is rewritten with one record set per
+ *  permission when it has grown too long. A record which was cut off by a process death is ignored. Until the file
+ *  is replayed the journal is empty, so a caller on the main thread never waits for the disk. The records of that
+ *  time are applied after the replayed ones. <br><br>
+ *
+ *  New records are kept in memory and written in batches on the same background thread. The writers of all the
+ *  processes of the app are serialized with a file lock. A separate lock file is locked, because the journal
+ *  itself is replaced when it is compacted. <br><br>
+ *
+ *  A never ask again answer is forgotten by {@link #clearNeverAskAgain()} when the user is sent to the app settings,
+ *  because the user can reset the permission there. <br><br>
+ *
+ *  If the files directory is not available (e.g. in unit tests), the journal keeps nothing. <br><br>
+ *
+ *  Can be used from any thread.
+ */
+
+final class PermissionJournal {
+
+    private static final String TAG = PermissionJournal.class.getSimpleName();
+
+    private static final String FILE_NAME = "permission_journal";
+    private static final String LOCK_SUFFIX = ".lock";
+
+    private static final int MAGIC = 0x504a0001;
+
+    static final int RESULT_NONE = 0;
+    static final int RESULT_GRANTED = 1;
+    static final int RESULT_DENIED = 2;
+    static final int RESULT_NEVER_ASK_AGAIN = 3;
+
+    private static final byte EVENT_ASKED = 0;
+    private static final byte EVENT_CLEARED = 4;
+
+    /**
+     * The file is compacted when it has more records than this many per permission.
+     */
+    private static final int COMPACT_RATIO = 4;
+
+    /**
+     * Serializes the file access of the journals of this process. A file lock is held by the process, not by a thread.
+     */
+    private static final Object sFileLock = new Object();
+
+    private static volatile PermissionJournal sInstance;
+
+    private final Context mContext;
+    private final Executor mExecutor;
+
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private final List<Record> mPending = new ArrayList<>();
+
+    private File mFile;
+    private boolean mLoaded;
+    private boolean mFlushScheduled;
+    private long mNeverAskAgainMask;
+
+    private final Runnable mLoad = new Runnable() {
+        @Override
+        public void run() {
+            load();
+        }
+    };
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param file  the journal file, null to keep nothing
+     */
+    @VisibleForTesting
+    PermissionJournal(File file, Executor executor) {
+        this(null, file, executor);
+    }
+
+    /**
+     * @param context   the application context, whose files directory has the journal file. Only looked up when
+     *                  the file is loaded, it may touch the disk.
+     */
+    private PermissionJournal(Context context, File file, Executor executor) {
+        mContext = context;
+        mFile = file;
+        mExecutor = executor;
+        mExecutor.execute(mLoad);
+    }
+
+    static PermissionJournal getInstance(Context context) {
+        PermissionJournal journal = sInstance;
+        if (journal == null) {
+            synchronized (PermissionJournal.class) {
+                journal = sInstance;
+                if (journal == null) {
+                    Context applicationContext = context.getApplicationContext();
+                    if (applicationContext != null) {
+                        journal = new PermissionJournal(applicationContext, null, Executors.newSingleThreadExecutor());
+                    } else {
+                        // The component is not kept, its files directory is looked up now.
+                        File filesDir = context.getFilesDir();
+                        journal = new PermissionJournal(null, filesDir != null ? new File(filesDir, FILE_NAME) : null,
+                                Executors.newSingleThreadExecutor());
+                    }
+                    sInstance = journal;
+                }
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Replaces the process-wide journal. Passing null creates a new one from the files directory on next use.
+     */
+    @VisibleForTesting
+    static void setInstance(PermissionJournal journal) {
+        sInstance = journal;
+    }
+
+    /**
+     * Records that the permissions of the mask are shown in a dialog.
+     */
+    void onAsked(long permissions) {
+        append(permissions, EVENT_ASKED);
+    }
+
+    /**
+     * Records the answer of a dialog. The masks must not overlap.
+     */
+    void onAnswered(long granted, long denied, long neverAskAgain) {
+        append(granted, (byte) RESULT_GRANTED);
+        append(denied, (byte) RESULT_DENIED);
+        append(neverAskAgain, (byte) RESULT_NEVER_ASK_AGAIN);
+    }
+
+    /**
+     * Forgets the never ask again answers. The user may reset them in the app settings.
+     */
+    void clearNeverAskAgain() {
+        long neverAskAgain;
+        synchronized (this) {
+            if (! mLoaded) {
+                // Which permissions are never ask again is known when the file is replayed.
+                mPending.add(new Record(null, EVENT_CLEARED, System.currentTimeMillis()));
+                return;
+            }
+            neverAskAgain = mNeverAskAgainMask;
+        }
+        append(neverAskAgain, EVENT_CLEARED);
+    }
+
+    /**
+     * Returns the permissions whose last answer was never ask again.
+     */
+    synchronized long getNeverAskAgainMask() {
+        return mNeverAskAgainMask;
+    }
+
+    /**
+     * Returns one of the RESULT constants. {@link #RESULT_NONE} if the permission was never answered.
+     */
+    synchronized int getLastResult(String permission) {
+        Entry entry = mEntries.get(permission);
+        return entry != null ? entry.mLastResult : RESULT_NONE;
+    }
+
+    /**
+     * Returns the time the permission was first shown in a dialog, or 0 if it never was.
+     */
+    synchronized long getFirstAskedAt(String permission) {
+        Entry entry = mEntries.get(permission);
+        return entry != null ? entry.mFirstAskedAt : 0L;
+    }
+
+    synchronized boolean isNeverAskAgainSeen(String permission) {
+        Entry entry = mEntries.get(permission);
+        return entry != null && entry.mNeverAskAgainSeen;
+    }
+
+    private void append(long permissions, byte event) {
+        if (permissions == 0L) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (mLoaded && mFile == null) {
+                return;
+            }
+
+            for (long mask = permissions; mask != 0L; mask &= mask - 1) {
+                Record record = new Record(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(mask)), event, now);
+                if (mLoaded) {
+                    apply(record);
+                }
+                mPending.add(record);
+            }
+
+            // The records of the time before the file is replayed are written after it.
+            if (mFlushScheduled || ! mLoaded) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mExecutor.execute(mFlush);
+    }
+
+    /**
+     * Replays the file and applies the records which were added in the meantime. Runs on the executor.
+     */
+    @VisibleForTesting
+    void load() {
+        File file = mFile;
+        if (file == null && mContext != null) {
+            File filesDir = mContext.getFilesDir();
+            file = filesDir != null ? new File(filesDir, FILE_NAME) : null;
+        }
+
+        Map<String, Entry> entries = new HashMap<>();
+        if (file != null && file.exists()) {
+            synchronized (sFileLock) {
+                try {
+                    FileChannel lock = openLock(file);
+                    try {
+                        lock.lock();
+                        if (replay(file, entries)) {
+                            compact(file, entries);
+                        }
+                    } finally {
+                        lock.close();
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not read the permission journal.", e);
+                }
+            }
+        }
+
+        synchronized (this) {
+            mFile = file;
+            mLoaded = true;
+            if (file == null) {
+                mPending.clear();
+                return;
+            }
+
+            mEntries.putAll(entries);
+            Record[] pending = mPending.toArray(new Record[mPending.size()]);
+            mPending.clear();
+            for (Record record : pending) {
+                if (record.mPermission != null) {
+                    apply(record);
+                    mPending.add(record);
+                    continue;
+                }
+
+                // A clear of the never ask again answers.
+                List<String> neverAskAgain = new ArrayList<>();
+                for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                    if (entry.getValue().mLastResult == RESULT_NEVER_ASK_AGAIN) {
+                        neverAskAgain.add(entry.getKey());
+                    }
+                }
+                for (String permission : neverAskAgain) {
+                    Record cleared = new Record(permission, EVENT_CLEARED, record.mTime);
+                    apply(cleared);
+                    mPending.add(cleared);
+                }
+            }
+
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                updateNeverAskAgainMask(entry.getKey(), entry.getValue());
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Writes the pending records in one append.
+     */
+    @VisibleForTesting
+    void flush() {
+        Record[] records;
+        File file;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (! mLoaded || mFile == null || mPending.isEmpty()) {
+                return;
+            }
+            records = mPending.toArray(new Record[mPending.size()]);
+            mPending.clear();
+            file = mFile;
+        }
+
+        synchronized (sFileLock) {
+            try {
+                FileChannel lock = openLock(file);
+                try {
+                    lock.lock();
+                    boolean newFile = ! file.exists() || file.length() == 0L;
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+                    try {
+                        if (newFile) {
+                            out.writeInt(MAGIC);
+                        }
+                        for (Record record : records) {
+                            record.writeTo(out);
+                        }
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    lock.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not write the permission journal.", e);
+            }
+        }
+    }
+
+    /**
+     * Opens the lock file of the journal. The lock is released when the channel is closed.
+     */
+    private static FileChannel openLock(File file) throws IOException {
+        return new RandomAccessFile(file.getPath() + LOCK_SUFFIX, "rw").getChannel();
+    }
+
+    /**
+     * Replays the file into the entries. Must hold the file lock.
+     *
+     * @return true if the file should be compacted.
+     */
+    private static boolean replay(File file, Map<String, Entry> entries) throws IOException {
+        if (! file.exists()) {
+            // Deleted by another process before the lock was taken.
+            return false;
+        }
+
+        int count = 0;
+        long length = 4L;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                Log.w(TAG, "Unknown permission journal format, starting a new one.");
+                file.delete();
+                return false;
+            }
+            while (true) {
+                Record record = Record.readFrom(in);
+                apply(entries, record);
+                length += record.size();
+                count++;
+            }
+        } catch (EOFException e) {
+            // End of the file, or a record which was cut off.
+        } finally {
+            in.close();
+        }
+
+        // A record which was cut off would corrupt the records appended after it.
+        return length != file.length() || count > COMPACT_RATIO * (entries.size() + 1);
+    }
+
+    /**
+     * Rewrites the file with the records which are needed to replay the entries. Must hold the file lock.
+     */
+    private static void compact(File file, Map<String, Entry> entries) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    entry.getValue().writeTo(entry.getKey(), out);
+                }
+            } finally {
+                out.close();
+            }
+
+            if (! temp.renameTo(file)) {
+                Log.w(TAG, "Could not replace the permission journal.");
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not compact the permission journal.", e);
+            temp.delete();
+        }
+    }
+
+    private void apply(Record record) {
+        updateNeverAskAgainMask(record.mPermission, apply(mEntries, record));
+    }
+
+    private static Entry apply(Map<String, Entry> entries, Record record) {
+        Entry entry = entries.get(record.mPermission);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(record.mPermission, entry);
+        }
+
+        switch (record.mEvent) {
+            case EVENT_ASKED:
+                if (entry.mFirstAskedAt == 0L) {
+                    entry.mFirstAskedAt = record.mTime;
+                }
+                break;
+            case EVENT_CLEARED:
+                if (entry.mLastResult == RESULT_NEVER_ASK_AGAIN) {
+                    entry.mLastResult = RESULT_NONE;
+                }
+                break;
+            default:
+                entry.mLastResult = record.mEvent;
+                entry.mLastResultAt = record.mTime;
+                entry.mNeverAskAgainSeen |= record.mEvent == RESULT_NEVER_ASK_AGAIN;
+                break;
+        }
+        return entry;
+    }
+
+    private void updateNeverAskAgainMask(String permission, Entry entry) {
+        int slot = PermissionRegistry.trySlotOf(permission);
+        if (slot == PermissionRegistry.NO_SLOT) {
+            // The entry is kept by name, only the never ask again mask needs a slot.
+            return;
+        }
+        long bit = PermissionSet.bit(slot);
+        if (entry.mLastResult == RESULT_NEVER_ASK_AGAIN) {
+            mNeverAskAgainMask |= bit;
+        } else {
+            mNeverAskAgainMask &= ~bit;
+        }
+    }
+
+    private static final class Entry {
+        long mFirstAskedAt;
+        int mLastResult = RESULT_NONE;
+        long mLastResultAt;
+        boolean mNeverAskAgainSeen;
+
+        void writeTo(String permission, DataOutputStream out) throws IOException {
+            if (mFirstAskedAt != 0L) {
+                new Record(permission, EVENT_ASKED, mFirstAskedAt).writeTo(out);
+            }
+            if (mNeverAskAgainSeen && mLastResult != RESULT_NEVER_ASK_AGAIN) {
+                new Record(permission, (byte) RESULT_NEVER_ASK_AGAIN, mLastResultAt).writeTo(out);
+                if (mLastResult == RESULT_NONE) {
+                    new Record(permission, EVENT_CLEARED, mLastResultAt).writeTo(out);
+                }
+            }
+            if (mLastResult != RESULT_NONE) {
+                new Record(permission, (byte) mLastResult, mLastResultAt).writeTo(out);
+            }
+        }
+    }
+
+    private static final class Record {
+        final String mPermission;
+        final byte mEvent;
+        final long mTime;
+
+        Record(String permission, byte event, long time) {
+            mPermission = permission;
+            mEvent = event;
+            mTime = time;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(mPermission);
+            out.writeByte(mEvent);
+            out.writeLong(mTime);
+        }
+
+        /**
+         * Returns the number of bytes written by {@link #writeTo(DataOutputStream)}, the name is modified UTF-8.
+         */
+        int size() {
+            int utfLength = 0;
+            for (int i = 0; i < mPermission.length(); i++) {
+                char c = mPermission.charAt(i);
+                utfLength += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+            }
+            return 2 + utfLength + 1 + 8;
+        }
+
+        static Record readFrom(DataInputStream in) throws IOException {
+            return new Record(in.readUTF(), in.readByte(), in.readLong());
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.content.pm.PermissionInfo;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ *  Permissions declared in the merged manifest of the application. <br><br>
+ *
+ *  The table is generated at build time by the generate[Variant]PermissionTable task of app/build.gradle,
+ *  see {@link ManifestPermissionTable}. So the helper knows without any binder call that: <br>
+ *
+ *  - A normal permission (e.g. NFC, VIBRATE) is granted at install and never has to be checked or requested. <br>
+ *  - A permission which is not declared for the SDK level of the device can never be granted, it is reported
+ *    as denied without a dialog. <br>
+ *  - Which permission group a dangerous permission belongs to, see {@link PermissionRequestPlanner}. <br><br>
+ *
+ *  uses-permission-sdk-23 declarations only count on Marshmallow and above, maxSdkVersion is taken into account. <br><br>
+ *
+ *  The table entry of a slot is looked up once, when the slot is first asked. Lookups do not lock, two threads
+ *  which resolve the same slot at the same time store the same index. <br><br>
+ *
+ *  Tests replace the generated table with {@link #setTable(Table)}, so they do not depend on the manifest of the
+ *  variant under test.
+ */
+
+final class PermissionManifest {
+
+    static final int NOT_DECLARED = -1;
+
+    private static final int NOT_RESOLVED = -2;
+
+    private static volatile Table sTable = Table.generated();
+
+    private PermissionManifest() {
+    }
+
+    /**
+     * Returns the protection level ({@link PermissionInfo#PROTECTION_NORMAL}, {@link PermissionInfo#PROTECTION_DANGEROUS} ...)
+     * of the given permission slot, or {@link #NOT_DECLARED} if the permission is not declared for the given SDK level.
+     */
+    static int protectionLevelOf(int slot, int sdkInt) {
+        return sTable.protectionLevelOf(slot, sdkInt);
+    }
+
+    /**
+     * Returns the permissions of the mask which are not declared for the given SDK level. They are denied
+     * without a dialog, the system would not ask them.
+     */
+    static long undeclaredMask(long permissions, int sdkInt) {
+        Table table = sTable;
+        long undeclared = 0L;
+        for (long mask = permissions; mask != 0L; mask &= mask - 1) {
+            int slot = Long.numberOfTrailingZeros(mask);
+            if (table.protectionLevelOf(slot, sdkInt) == NOT_DECLARED) {
+                undeclared |= PermissionSet.bit(slot);
+            }
+        }
+        return undeclared;
+    }
+
+    /**
+     * Returns true if the permission is declared and granted at install, so it must not be checked or requested.
+     */
+    static boolean isGrantedAtInstall(int slot, int sdkInt) {
+        return protectionLevelOf(slot, sdkInt) == PermissionInfo.PROTECTION_NORMAL;
+    }
+
+    /**
+     * Returns the permission group of the given permission slot, or null if it has none (e.g. a normal permission).
+     */
+    static String groupOf(int slot) {
+        return sTable.groupOf(slot);
+    }
+
+    /**
+     * Returns the permissions which are declared for the given SDK level, sorted by name.
+     */
+    static String[] declaredNames(int sdkInt) {
+        return sTable.declaredNames(sdkInt);
+    }
+
+    /**
+     * Replaces the generated table. Passing null restores it.
+     */
+    @VisibleForTesting
+    static void setTable(Table table) {
+        sTable = table != null ? table : Table.generated();
+    }
+
+    /**
+     * The declared permissions and the permission groups. Separate from the manifest so a table can be given in tests.
+     */
+    static final class Table {
+
+        private final String[] mNames;
+        private final int[] mProtectionLevels;
+        private final int[] mMinSdkVersions;
+        private final int[] mMaxSdkVersions;
+        private final String[] mGroupedNames;
+        private final String[] mGroups;
+        private final AtomicIntegerArray mTableIndices = newIndices();
+        private final AtomicIntegerArray mGroupIndices = newIndices();
+
+        /**
+         * The arrays are kept, not copied. See {@link ManifestPermissionTable} for their meaning.
+         */
+        Table(String[] names, int[] protectionLevels, int[] minSdkVersions, int[] maxSdkVersions,
+              String[] groupedNames, String[] groups) {
+            mNames = names;
+            mProtectionLevels = protectionLevels;
+            mMinSdkVersions = minSdkVersions;
+            mMaxSdkVersions = maxSdkVersions;
+            mGroupedNames = groupedNames;
+            mGroups = groups;
+        }
+
+        static Table generated() {
+            return new Table(ManifestPermissionTable.NAMES, ManifestPermissionTable.PROTECTION_LEVELS,
+                    ManifestPermissionTable.MIN_SDK_VERSIONS, ManifestPermissionTable.MAX_SDK_VERSIONS,
+                    ManifestPermissionTable.GROUPED_NAMES, ManifestPermissionTable.GROUPS);
+        }
+
+        int protectionLevelOf(int slot, int sdkInt) {
+            int index = indexOf(mTableIndices, slot, mNames);
+            if (index == NOT_DECLARED || sdkInt < mMinSdkVersions[index] || sdkInt > mMaxSdkVersions[index]) {
+                return NOT_DECLARED;
+            }
+            return mProtectionLevels[index];
+        }
+
+        String groupOf(int slot) {
+            int index = indexOf(mGroupIndices, slot, mGroupedNames);
+            return index == NOT_DECLARED ? null : mGroups[index];
+        }
+
+        String[] declaredNames(int sdkInt) {
+            List<String> names = new ArrayList<>(mNames.length);
+            for (int i = 0; i < mNames.length; i++) {
+                if (sdkInt >= mMinSdkVersions[i] && sdkInt <= mMaxSdkVersions[i]) {
+                    names.add(mNames[i]);
+                }
+            }
+            return names.toArray(new String[names.size()]);
+        }
+
+        private static AtomicIntegerArray newIndices() {
+            AtomicIntegerArray indices = new AtomicIntegerArray(PermissionRegistry.MAX_PERMISSIONS);
+            for (int i = 0; i < indices.length(); i++) {
+                indices.set(i, NOT_RESOLVED);
+            }
+            return indices;
+        }
+
+        private static int indexOf(AtomicIntegerArray indices, int slot, String[] names) {
+            int index = indices.get(slot);
+            if (index == NOT_RESOLVED) {
+                index = NOT_DECLARED;
+                String permission = PermissionRegistry.nameOf(slot);
+                for (int i = 0; i < names.length; i++) {
+                    if (names[i].equals(permission)) {
+                        index = i;
+                        break;
+                    }
+                }
+                indices.set(slot, index);
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.avacodelab.moduleplayground.module;
+
+/**
+ *  Sink of the measurements of the permission module. <br><br>
+ *
+ *  The methods are called on the hot paths, with primitives and the registered permission names only. So a
+ *  sink which ignores them adds no allocation, which is what {@link #NO_OP} does by default. They may be called
+ *  from any thread and must not block. {@link InMemoryPermissionMetrics} keeps counters and a dialog time
+ *  histogram which tests and debug screens can read. <br><br>
+ *
+ *  The sink can be replaced with {@link PermissionHelper#setMetrics(PermissionMetrics)}.
+ */
+
+public interface PermissionMetrics {
+
+    int OUTCOME_GRANTED = 0;
+    int OUTCOME_DENIED = 1;
+    int OUTCOME_NEVER_ASK_AGAIN = 2;
+
+    PermissionMetrics NO_OP = new PermissionMetrics() {
+        @Override
+        public void onPermissionsChecked(int checkCount, int cacheHitCount) {
+        }
+
+        @Override
+        public void onDialogShown(int permissionCount) {
+        }
+
+        @Override
+        public void onDialogAnswered(long durationNanos) {
+        }
+
+        @Override
+        public void onPermissionOutcome(String permission, int outcome) {
+        }
+    };
+
+    /**
+     * Called once per check pass with the number of runtime permissions which were checked and how many of
+     * them were answered by {@link PermissionStateCache}. Normal and undeclared permissions are not counted.
+     */
+    void onPermissionsChecked(int checkCount, int cacheHitCount);
+
+    /**
+     * Called when a permission dialog is requested from the system.
+     */
+    void onDialogShown(int permissionCount);
+
+    /**
+     * Called with the time from requesting the dialog until its result arrived. Not called for a dialog which
+     * was closed without an answer, or which was requested before the process was restarted.
+     */
+    void onDialogAnswered(long durationNanos);
+
+    /**
+     * Called for every permission of an answered dialog.
+     *
+     * @param outcome one of the OUTCOME constants
+     */
+    void onPermissionOutcome(String permission, int outcome);
+}
@@ -0,0 +1,152 @@
+package com.avacodelab.moduleplayground.module;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  The complete answer of one permission request: the granted, denied and never ask again permissions together. <br><br>
+ *
+ *  Permissions which were granted before the request are in the granted set too, {@link #getAlreadyGranted()}
+ *  returns them separately. <br><br>
+ *
+ *  Unlike the lists of {@link PermissionHelper.PermissionResultCallback}, an outcome is immutable and can be kept.
+ */
+
+public final class PermissionOutcome {
+
+    private static final PermissionFuture.Transform<PermissionOutcome, PermissionOutcome> REQUIRE_ALL_GRANTED =
+            new PermissionFuture.Transform<PermissionOutcome, PermissionOutcome>() {
+                @Override
+                public PermissionOutcome apply(PermissionOutcome outcome) throws DeniedException {
+                    if (! outcome.isAllGranted()) {
+                        throw new DeniedException(outcome);
+                    }
+                    return outcome;
+                }
+            };
+
+    private final int mRequestCode;
+    private final PermissionSet mGranted;
+    private final PermissionSet mDenied;
+    private final PermissionSet mNeverAskAgain;
+    private final PermissionSet mAlreadyGranted;
+    private final List<String> mUndeclared;
+
+    PermissionOutcome(int requestCode, long granted, long denied, long neverAskAgain, long alreadyGranted) {
+        this(requestCode, PermissionSet.fromMask(granted), PermissionSet.fromMask(denied), PermissionSet.fromMask(neverAskAgain),
+                PermissionSet.fromMask(alreadyGranted), Collections.<String>emptyList());
+    }
+
+    private PermissionOutcome(int requestCode, PermissionSet granted, PermissionSet denied, PermissionSet neverAskAgain,
+                              PermissionSet alreadyGranted, List<String> undeclared) {
+        mRequestCode = requestCode;
+        mGranted = granted;
+        mDenied = denied;
+        mNeverAskAgain = neverAskAgain;
+        mAlreadyGranted = alreadyGranted;
+        mUndeclared = undeclared;
+    }
+
+    /**
+     * Copies a pooled result, the outcome stays valid after the result is recycled.
+     */
+    static PermissionOutcome from(int requestCode, PermissionResult result) {
+        return new PermissionOutcome(requestCode, result.getGranted(), result.getDenied(), result.getNeverAskAgain(),
+                result.getAlreadyGranted());
+    }
+
+    /**
+     * Returns this outcome with the given permissions denied as undeclared, see {@link #getUndeclared()}.
+     */
+    PermissionOutcome withUndeclared(String[] undeclared) {
+        if (undeclared.length == 0) {
+            return this;
+        }
+        return new PermissionOutcome(mRequestCode, mGranted, mDenied, mNeverAskAgain, mAlreadyGranted,
+                Collections.unmodifiableList(Arrays.asList(undeclared.clone())));
+    }
+
+    /**
+     * Returns a transform for {@link PermissionFuture#then(PermissionFuture.Transform)} which fails with
+     * {@link DeniedException} unless every requested permission is granted.
+     */
+    public static PermissionFuture.Transform<PermissionOutcome, PermissionOutcome> requireAllGranted() {
+        return REQUIRE_ALL_GRANTED;
+    }
+
+    public int getRequestCode() {
+        return mRequestCode;
+    }
+
+    public PermissionSet getGranted() {
+        return mGranted;
+    }
+
+    public PermissionSet getDenied() {
+        return mDenied;
+    }
+
+    public PermissionSet getNeverAskAgain() {
+        return mNeverAskAgain;
+    }
+
+    /**
+     * Returns the granted permissions which were not asked in the dialog, because they were granted before.
+     */
+    public PermissionSet getAlreadyGranted() {
+        return mAlreadyGranted;
+    }
+
+    /**
+     * Returns the denied permissions which are not declared in the manifest and were requested by name. They are
+     * not asked and not in {@link #getDenied()}, because {@link PermissionRegistry} has no slot for them.
+     */
+    public List<String> getUndeclared() {
+        return mUndeclared;
+    }
+
+    public boolean isDenied(String permission) {
+        return mDenied.contains(permission) || mUndeclared.contains(permission);
+    }
+
+    public boolean isNeverAskAgain(String permission) {
+        return mNeverAskAgain.contains(permission);
+    }
+
+    public boolean isGranted(String permission) {
+        return mGranted.contains(permission);
+    }
+
+    public boolean isAllGranted() {
+        return mDenied.isEmpty() && mNeverAskAgain.isEmpty() && mUndeclared.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionOutcome{requestCode=" + mRequestCode
+                + ", granted=" + mGranted
+                + ", denied=" + mDenied
+                + ", neverAskAgain=" + mNeverAskAgain
+                + ", alreadyGranted=" + mAlreadyGranted
+                + (mUndeclared.isEmpty() ? "" : ", undeclared=" + mUndeclared) + "}";
+    }
+
+    /**
+     * Thrown by {@link #requireAllGranted()} if a permission is denied.
+     */
+    public static final class DeniedException extends Exception {
+
+        private final PermissionOutcome mOutcome;
+
+        DeniedException(PermissionOutcome outcome) {
+            super("Permissions denied: " + outcome.getDenied() + ", never ask again: " + outcome.getNeverAskAgain()
+                    + (outcome.getUndeclared().isEmpty() ? "" : ", undeclared: " + outcome.getUndeclared()));
+            mOutcome = outcome;
+        }
+
+        public PermissionOutcome getOutcome() {
+            return mOutcome;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *  Checks permissions on a background thread before the screen which shows them is opened. <br><br>
+ *
+ *  A screen which subscribes to {@link PermissionStateMonitor} checks its permissions on the main thread before
+ *  its first frame. If the permissions were checked ahead with {@link #run(Context, PermissionSet)}, the monitor
+ *  takes that result instead. If the check is still running, the monitor waits for it instead of checking the
+ *  permissions a second time. The journal of the dialog answers starts loading ahead too. <br><br>
+ *
+ *  The result is kept while the app stays in the foreground, the permissions can not change then. It is dropped
+ *  when the app goes to the background (e.g. to the app settings) and when a permission dialog is answered. It is
+ *  only stored in the cache epoch in which the check started, so a result which was checked before an invalidation
+ *  (e.g. in the background, before the app came back) is not used.
+ *  shouldShowRequestPermissionRationale() needs the activity, so it is still asked on the main thread for the
+ *  permissions which are not granted. <br><br>
+ *
+ *    <strong>Usage:</strong> <br>
+ *
+ *    <pre>{@code
+ *
+ *    // On a background thread, e.g. when the launcher is idle or the entry of the screen is pressed.
+ *    PermissionPrewarm.run(context, permissions);
+ *  } </pre><br><br>
+ *
+ *  Can be used from any thread.
+ */
+
+public final class PermissionPrewarm {
+
+    private static final AtomicReference<PermissionPrewarm> sCurrent = new AtomicReference<>();
+    private static final AtomicBoolean sLifecycleRegistered = new AtomicBoolean();
+
+    private final long mMask;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    // Written before mDone is counted down.
+    private int mEpoch;
+    private long mGranted;
+    private boolean mSucceeded;
+
+    private PermissionPrewarm(long mask) {
+        mMask = mask;
+    }
+
+    /**
+     * Checks the permissions on the calling thread, unless a kept or running check covers them already.
+     *
+     * <b> Do not call this method on the main thread. </b>
+     */
+    public static void run(@NonNull Context context, @NonNull PermissionSet permissions) {
+        if (! PermissionHelper.isDeviceSupportsRuntimePermissions()) {
+            return;
+        }
+        registerLifecycle(context);
+
+        long mask = permissions.mask();
+        PermissionPrewarm prewarm;
+        for (;;) {
+            PermissionPrewarm current = sCurrent.get();
+            if (current != null && (current.mMask & mask) == mask) {
+                return;
+            }
+
+            prewarm = new PermissionPrewarm(current != null ? current.mMask | mask : mask);
+            if (sCurrent.compareAndSet(current, prewarm)) {
+                break;
+            }
+        }
+
+        try {
+            // Starts loading the journal, if it was not created yet.
+            PermissionJournal.getInstance(context);
+            prewarm.mEpoch = PermissionStateCache.getInstance().snapshot().mEpoch;
+            prewarm.mGranted = PermissionHelper.grantedMask(context, prewarm.mMask, false);
+            prewarm.mSucceeded = true;
+        } finally {
+            prewarm.mDone.countDown();
+            if (! prewarm.mSucceeded) {
+                sCurrent.compareAndSet(prewarm, null);
+            }
+        }
+    }
+
+    /**
+     * Called on the main thread before the permissions of the mask are checked. Waits for a running check of them
+     * and stores its result in {@link PermissionStateCache}, so they are served from the cache. The result is
+     * dropped if the cache was invalidated since the check started.
+     */
+    static void await(long mask) {
+        PermissionPrewarm prewarm = sCurrent.get();
+        if (prewarm == null || (prewarm.mMask & mask) == 0L) {
+            return;
+        }
+
+        try {
+            prewarm.mDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        if (prewarm.mSucceeded && sCurrent.get() == prewarm) {
+            PermissionStateCache.getInstance().putAll(prewarm.mMask, prewarm.mGranted, prewarm.mEpoch);
+        }
+    }
+
+    /**
+     * Drops the kept result. Called when the permission state may have changed.
+     */
+    static void clear() {
+        sCurrent.set(null);
+    }
+
+    private static void registerLifecycle(Context context) {
+        if (sLifecycleRegistered.get() || ! sLifecycleRegistered.compareAndSet(false, true)) {
+            return;
+        }
+
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext instanceof Application) {
+            ((Application) applicationContext).registerActivityLifecycleCallbacks(new ForegroundCallbacks());
+        }
+    }
+
+    /**
+     * Drops the kept result when the app goes to the background. Starting another activity of the app resumes it
+     * before the previous one stops, so that does not count. The callbacks may be registered while an activity
+     * is resumed, whose pause is then not counted.
+     */
+    static final class ForegroundCallbacks extends ActivityLifecycleAdapter {
+
+        private int mResumedCount;
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+            mResumedCount++;
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+            if (mResumedCount > 0) {
+                mResumedCount--;
+            }
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            if (mResumedCount == 0 && ! activity.isChangingConfigurations()) {
+                clear();
+            }
+        }
+    }
+}
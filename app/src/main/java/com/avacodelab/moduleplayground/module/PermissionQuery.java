@@ -0,0 +1,168 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  Permission checks for components which have no activity: the Application, services, broadcast receivers
+ *  and jobs. <br><br>
+ *
+ *  Shares the process-wide {@link PermissionStateCache} with {@link PermissionHelper}, so a permission which is
+ *  granted is answered without a package manager call. A permission which is cached as denied is checked again,
+ *  because a grant in the app settings is only noticed when the app comes back. Batch checks read
+ *  the cache once for the whole set. <br><br>
+ *
+ *  A background component can not show the permission dialog. {@link #requestOnNextForeground(int, PermissionSet)}
+ *  queues the request instead, it is shown when an activity of the app which implements {@link ForegroundHost} is
+ *  resumed next. The other activities do not forward the result to a {@link PermissionHelper}, so the request stays
+ *  queued while they are resumed. The result goes to the host if it implements
+ *  {@link PermissionHelper.PermissionOutcomeCallback} or {@link PermissionHelper.PermissionResultCallback}.
+ *  Use a {@link PermissionGatedScheduler} to run the work once the permissions are granted. <br><br>
+ *
+ *    <strong>Usage:</strong> <br>
+ *
+ *    <pre>{@code
+ *
+ *    PermissionQuery query = PermissionQuery.from(jobService);
+ *
+ *    if (! query.isGranted(permissions)) {
+ *          query.requestOnNextForeground(SYNC_REQUEST_CODE, query.getMissing(permissions));
+ *          return false;
+ *    }
+ *  } </pre><br><br>
+ *
+ *  Can be used from any thread.
+ */
+
+public final class PermissionQuery {
+
+    private static final String TAG = PermissionQuery.class.getSimpleName();
+
+    private static final Map<Integer, Long> sDeferredRequests = new LinkedHashMap<>();
+    private static final AtomicBoolean sLifecycleRegistered = new AtomicBoolean();
+
+    private final Context mContext;
+
+    private PermissionQuery(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * An activity which makes the requests deferred by {@link #requestOnNextForeground(int, PermissionSet)}.
+     * It must call {@link PermissionHelper#onRequestPermissionsResult(int, String[], int[])} in its
+     * onRequestPermissionsResult().
+     */
+    public interface ForegroundHost {
+    }
+
+    /**
+     * Returns a query bound to the application context of the given context. Does not keep the component.
+     */
+    public static PermissionQuery from(@NonNull Context context) {
+        Context applicationContext = context.getApplicationContext();
+        return new PermissionQuery(applicationContext != null ? applicationContext : context);
+    }
+
+    public boolean isGranted(String permission) {
+        int slot = PermissionRegistry.trySlotOf(permission);
+        if (slot == PermissionRegistry.NO_SLOT) {
+            return PermissionHelper.checkUncached(mContext, permission);
+        }
+        return isGranted(PermissionSet.fromMask(PermissionSet.bit(slot)));
+    }
+
+    /**
+     * Returns true if all the permissions are granted.
+     */
+    public boolean isGranted(@NonNull PermissionSet permissions) {
+        return grantedMask(permissions) == permissions.mask();
+    }
+
+    public PermissionSet getGranted(@NonNull PermissionSet permissions) {
+        return PermissionSet.fromMask(grantedMask(permissions));
+    }
+
+    public PermissionSet getMissing(@NonNull PermissionSet permissions) {
+        return PermissionSet.fromMask(permissions.mask() & ~grantedMask(permissions));
+    }
+
+    /**
+     * Queues a request which is made when a {@link ForegroundHost} activity of the app is resumed next. Requests with the same
+     * requestCode are merged, so a job which runs again before the app is opened does not queue it twice.
+     *
+     * @return false if the permissions are already granted and nothing was queued.
+     */
+    public boolean requestOnNextForeground(int requestCode, @NonNull PermissionSet permissions) {
+        long missing = permissions.mask() & ~grantedMask(permissions);
+        if (missing == 0L) {
+            return false;
+        }
+
+        registerLifecycle(mContext);
+
+        synchronized (sDeferredRequests) {
+            Long queued = sDeferredRequests.get(requestCode);
+            sDeferredRequests.put(requestCode, queued != null ? queued | missing : missing);
+        }
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Request deferred to the next foreground activity: " + PermissionSet.fromMask(missing));
+        }
+        return true;
+    }
+
+    private long grantedMask(PermissionSet permissions) {
+        return PermissionHelper.grantedMask(mContext, permissions.mask(), false);
+    }
+
+    /**
+     * Makes the deferred requests from the resumed activity if it is a {@link ForegroundHost}. Called on the main thread.
+     */
+    static void onActivityResumed(Activity activity) {
+        if (! (activity instanceof ForegroundHost) || activity.isFinishing()) {
+            return;
+        }
+
+        Map<Integer, Long> requests;
+        synchronized (sDeferredRequests) {
+            if (sDeferredRequests.isEmpty()) {
+                return;
+            }
+            requests = new LinkedHashMap<>(sDeferredRequests);
+            sDeferredRequests.clear();
+        }
+
+        for (Map.Entry<Integer, Long> request : requests.entrySet()) {
+            PermissionHelper.requestDeferred(activity, request.getKey(), PermissionSet.fromMask(request.getValue()));
+        }
+    }
+
+    @VisibleForTesting
+    static int getDeferredRequestCount() {
+        synchronized (sDeferredRequests) {
+            return sDeferredRequests.size();
+        }
+    }
+
+    private static void registerLifecycle(Context context) {
+        if (sLifecycleRegistered.get() || ! (context instanceof Application)
+                || ! sLifecycleRegistered.compareAndSet(false, true)) {
+            return;
+        }
+
+        ((Application) context).registerActivityLifecycleCallbacks(new ActivityLifecycleAdapter() {
+            @Override
+            public void onActivityResumed(Activity activity) {
+                PermissionQuery.onActivityResumed(activity);
+            }
+        });
+    }
+}
@@ -0,0 +1,151 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ *  Maps permission strings to small int slots, so a set of permissions can be kept in a single
+ *  long mask. See {@link PermissionSet}. <br><br>
+ *
+ *  Slots are assigned in the order the permissions are first seen and never change while the
+ *  process lives. They must not be persisted, use the permission names instead. <br><br>
+ *
+ *  At most {@link #MAX_PERMISSIONS} distinct permissions get a slot. The queries take any string, so a permission
+ *  which comes after the slots are taken gets {@link #NO_SLOT} from {@link #trySlotOf(String)} and is checked
+ *  directly, without the cache. The permissions declared in the manifest always get a slot, their slots are kept
+ *  free until they are first seen. So a permission without a slot is not declared, and a request denies it. <br><br>
+ *
+ *  Lookups do not lock. Only the registration of a new permission is synchronized, and the name of a slot
+ *  is stored before the slot is published.
+ */
+
+final class PermissionRegistry {
+
+    static final int MAX_PERMISSIONS = 64;
+
+    static final int NO_SLOT = -1;
+
+    private static final Table PROCESS_TABLE = new Table(MAX_PERMISSIONS, ManifestPermissionTable.NAMES);
+
+    private static volatile Table sTable = PROCESS_TABLE;
+
+    private PermissionRegistry() {
+    }
+
+    /**
+     * Returns the slot of the given permission. Registers the permission if it is seen for the first time.
+     *
+     * @throws IllegalStateException if more than {@link #MAX_PERMISSIONS} permissions are registered.
+     */
+    static int slotOf(String permission) {
+        return sTable.slotOf(permission);
+    }
+
+    /**
+     * Same as {@link #slotOf(String)}, but returns {@link #NO_SLOT} instead of throwing if all the slots are taken.
+     */
+    static int trySlotOf(String permission) {
+        return sTable.trySlotOf(permission);
+    }
+
+    /**
+     * Returns the slot of the given permission or -1 if it is not registered.
+     */
+    static int findSlot(String permission) {
+        return sTable.findSlot(permission);
+    }
+
+    static String nameOf(int slot) {
+        return sTable.nameOf(slot);
+    }
+
+    /**
+     * Replaces the table of the process, so a test can fill a table with fewer slots. Passing null restores it.
+     * The sets and the caches made with the replaced table must not be used afterwards.
+     */
+    @VisibleForTesting
+    static void setTable(Table table) {
+        sTable = table != null ? table : PROCESS_TABLE;
+    }
+
+    /**
+     * The slots of the registry. Separate from it so a table with fewer slots can be filled in tests.
+     */
+    static final class Table {
+
+        private final int mCapacity;
+        private final Set<String> mReserved;
+        private final ConcurrentHashMap<String, Integer> mSlots = new ConcurrentHashMap<>();
+        private final AtomicReferenceArray<String> mNames;
+        private int mSize;
+        private int mFreeReserved;
+
+        Table(int capacity) {
+            this(capacity, new String[0]);
+        }
+
+        /**
+         * @param reserved  permissions which get a slot even if the other permissions took the rest of them
+         */
+        Table(int capacity, String[] reserved) {
+            if (reserved.length > capacity) {
+                throw new IllegalArgumentException(reserved.length + " reserved permissions, at most " + capacity + " are supported");
+            }
+            mCapacity = capacity;
+            mReserved = new HashSet<>(Arrays.asList(reserved));
+            mNames = new AtomicReferenceArray<>(capacity);
+            mFreeReserved = mReserved.size();
+        }
+
+        int slotOf(String permission) {
+            int slot = trySlotOf(permission);
+            if (slot == NO_SLOT) {
+                throw new IllegalStateException("Too many permissions, at most " + mCapacity + " are supported: " + permission);
+            }
+            return slot;
+        }
+
+        int trySlotOf(String permission) {
+            Integer slot = mSlots.get(permission);
+            return slot != null ? slot : register(permission);
+        }
+
+        private synchronized int register(String permission) {
+            Integer slot = mSlots.get(permission);
+            if (slot != null) {
+                return slot;
+            }
+
+            boolean reserved = mReserved.contains(permission);
+            if (! reserved && mSize + mFreeReserved == mCapacity) {
+                return NO_SLOT;
+            }
+            if (reserved) {
+                mFreeReserved--;
+            }
+
+            int newSlot = mSize++;
+            mNames.set(newSlot, permission);
+            mSlots.put(permission, newSlot);
+            return newSlot;
+        }
+
+        int findSlot(String permission) {
+            Integer slot = mSlots.get(permission);
+            return slot != null ? slot : NO_SLOT;
+        }
+
+        String nameOf(int slot) {
+            String name = slot >= 0 && slot < mCapacity ? mNames.get(slot) : null;
+            if (name == null) {
+                throw new IndexOutOfBoundsException("Unknown permission slot: " + slot);
+            }
+            return name;
+        }
+    }
+}
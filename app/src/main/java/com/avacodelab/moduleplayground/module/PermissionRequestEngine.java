@@ -0,0 +1,842 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Bundle;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  Process-wide table of outstanding permission requests. <br><br>
+ *
+ *  Android shows one permission dialog at a time. If a second request is started before the result of
+ *  the first one arrives, the system drops it. So every {@link PermissionHelper} hands its request to
+ *  this engine: <br>
+ *
+ *  - If no dialog is showing, the request is sent to the system and its requestCode becomes the dialog's code. <br>
+ *  - If a dialog is showing and it already contains every needed permission, the request waits for that dialog. <br>
+ *  - Otherwise the request is queued. When the showing dialog is answered, all queued requests are merged
+ *    into one new dialog. It is shown by an activity which has a queued request, preferably the one which got
+ *    the result. If none of them is alive, the dialog waits until one of them is resumed. <br><br>
+ *
+ *  When a dialog is answered, every waiting request gets its own partition of the shared result with its own requestCode. <br><br>
+ *
+ *  Results are delivered to a {@link ResultListener}. {@link OutcomeCallbackListener} adapts it to
+ *  {@link PermissionHelper.PermissionOutcomeCallback} and {@link CallbackListener} to
+ *  {@link PermissionHelper.PermissionResultCallback}. <br><br>
+ *
+ *  Every request is bound to the activity which submitted it. When that activity is destroyed, the listener
+ *  of its requests is released, so the engine never keeps a destroyed activity. If the activity is recreated
+ *  for a configuration change and it was the callback itself, the result is delivered to the new instance. <br><br>
+ *
+ *  The requests of an activity and the dialog it shows are also written to its saved state, see {@link SavedState}.
+ *  If the process is killed while the dialog is showing, the requests are restored in the recreated activity and
+ *  the result finishes them without a second dialog. <br><br>
+ *
+ *  <b> The engine is confined to the main thread. </b>
+ */
+
+final class PermissionRequestEngine {
+
+    private static final String TAG = PermissionRequestEngine.class.getSimpleName();
+
+    private static final int NO_DIALOG = -1;
+
+    private static final int[] NO_GRANT_RESULTS = new int[0];
+
+    private static final PermissionRequestEngine sInstance = new PermissionRequestEngine();
+
+    private final List<PendingRequest> mPendingRequests = new ArrayList<>();
+    private final List<PendingRequest> mDispatchQueue = new ArrayList<>();
+
+    private int mDialogRequestCode = NO_DIALOG;
+    private long mDialogMask;
+    private long mDialogShownAt;
+    private Class<?> mDialogHostClass;
+    private Activity mDialogHost;
+    private boolean mLifecycleRegistered;
+    private boolean mDispatching;
+    private Activity mResultHost;
+
+    private PermissionRequestEngine() {
+    }
+
+    /**
+     * Receives the result of one request. The result is recycled after the method returns.
+     */
+    interface ResultListener {
+        void onPermissionResult(int requestCode, PermissionResult result);
+
+        /**
+         * Called if the dialog was closed without an answer (grantResults is empty), or the activity of
+         * the request was destroyed. The listener is released after this call.
+         */
+        void onPermissionRequestInterrupted(int requestCode);
+    }
+
+    static PermissionRequestEngine getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Adds a request to the table and shows the dialog if no dialog is showing.
+     *
+     * @param needed            permissions which are not granted yet, at least one of them must be declared
+     * @param alreadyGranted    permissions which are reported as granted together with the result
+     */
+    void submit(Activity activity, int requestCode, long needed, long alreadyGranted, ResultListener listener) {
+        registerLifecycle(activity);
+
+        PendingRequest request = new PendingRequest(activity, requestCode, needed, alreadyGranted, listener);
+        mPendingRequests.add(request);
+
+        if (mDialogRequestCode == NO_DIALOG) {
+            // Also takes the queued requests which wait for a host.
+            showQueuedDialog(activity);
+            dispatchQueue(PermissionSet.NO_NAMES, NO_GRANT_RESULTS, 0L);
+        } else if ((asked(needed) & ~mDialogMask) == 0L) {
+            Log.d(TAG, "Request joined the showing dialog.");
+            request.mInDialog = true;
+        } else {
+            Log.d(TAG, "Request queued until the showing dialog is answered.");
+        }
+    }
+
+    /**
+     * Drops the request of the listener, e.g. its future was cancelled. A request in the showing dialog does not
+     * close the dialog, the result is not delivered to it. A queued request is not asked. Does nothing if the
+     * request was delivered or interrupted.
+     */
+    void cancel(ResultListener listener) {
+        for (int i = mPendingRequests.size() - 1; i >= 0; i--) {
+            if (mPendingRequests.get(i).mListener == listener) {
+                mPendingRequests.remove(i);
+                return;
+            }
+        }
+        for (int i = mDispatchQueue.size() - 1; i >= 0; i--) {
+            if (mDispatchQueue.get(i).mListener == listener) {
+                mDispatchQueue.remove(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Delivers the result of the showing dialog to every request waiting for it, then shows the
+     * merged dialog of the queued requests if there are any.
+     *
+     * @return false if the requestCode does not belong to the showing dialog.
+     */
+    boolean onRequestPermissionsResult(Activity activity, int requestCode, String[] permissions, int[] grantResults) {
+        if (mDialogRequestCode == NO_DIALOG || requestCode != mDialogRequestCode) {
+            return false;
+        }
+
+        long dialogMask = mDialogMask;
+        long dialogShownAt = mDialogShownAt;
+        mDialogRequestCode = NO_DIALOG;
+        mDialogMask = 0L;
+        mDialogShownAt = 0L;
+        mDialogHostClass = null;
+        mDialogHost = null;
+
+        for (int i = mPendingRequests.size() - 1; i >= 0; i--) {
+            PendingRequest request = mPendingRequests.get(i);
+            if (request.mInDialog) {
+                mPendingRequests.remove(i);
+                mDispatchQueue.add(request);
+            }
+        }
+
+        long neverAskAgain = 0L;
+
+        if (grantResults.length == 0) {
+            Log.w(TAG, "Permission request was interrupted. Dropping " + mDispatchQueue.size() + " request(s).");
+            try {
+                while (! mDispatchQueue.isEmpty()) {
+                    PendingRequest request = mDispatchQueue.remove(mDispatchQueue.size() - 1);
+                    if (request.mListener != null) {
+                        request.mListener.onPermissionRequestInterrupted(request.mRequestCode);
+                    }
+                }
+            } finally {
+                mDispatchQueue.clear();
+            }
+        } else {
+            PermissionResult dialogResult = PermissionResult.obtain();
+            dialogResult.classify(permissions, grantResults, dialogMask);
+
+            for (long mask = dialogResult.getDenied(); mask != 0L; mask &= mask - 1) {
+                int slot = Long.numberOfTrailingZeros(mask);
+                if (! PermissionHelper.shouldShowPermissionExplanation(activity, PermissionRegistry.nameOf(slot))) {
+                    neverAskAgain |= PermissionSet.bit(slot);
+                }
+            }
+            PermissionStateMonitor.getInstance().onPermissionsDenied(dialogResult.getDenied(), neverAskAgain);
+            dialogResult.markNeverAskAgainMask(neverAskAgain);
+            recordDialog(dialogResult, dialogShownAt);
+            PermissionJournal.getInstance(activity).onAnswered(dialogResult.getGranted(), dialogResult.getDenied(), neverAskAgain);
+            PermissionSnapshotFile.getInstance(activity).publish(dialogResult.getGranted(), dialogResult.getDenied(), neverAskAgain);
+
+            long grantedByDialog = dialogResult.getGranted();
+            dialogResult.recycle();
+
+            for (int i = 0, size = mPendingRequests.size(); i < size; i++) {
+                PendingRequest request = mPendingRequests.get(i);
+                request.mAlreadyGranted |= request.mNeeded & grantedByDialog;
+                request.mNeeded &= ~grantedByDialog;
+            }
+        }
+
+        showQueuedDialog(activity);
+        dispatchQueue(permissions, grantResults, neverAskAgain);
+
+        return true;
+    }
+
+    /**
+     * Delivers the result to the requests of the dispatch queue: the requests of the answered dialog and the
+     * requests which have nothing left to ask. The latter are classified against the dialog too, their needed
+     * permissions are not in it, so they are reported as denied. <br><br>
+     *
+     * A request is removed before its listener is called. If a listener submits a request which is dispatched
+     * right away, the running dispatch delivers it. If a listener throws, the rest of the queue is dropped, so it
+     * is not delivered later with the result of another dialog.
+     */
+    private void dispatchQueue(String[] permissions, int[] grantResults, long neverAskAgain) {
+        if (mDispatching) {
+            return;
+        }
+
+        mDispatching = true;
+        try {
+            while (! mDispatchQueue.isEmpty()) {
+                PendingRequest request = mDispatchQueue.remove(mDispatchQueue.size() - 1);
+                if (request.mListener == null) {
+                    continue;
+                }
+
+                PermissionResult result = PermissionResult.obtain();
+                result.classify(permissions, grantResults, request.mNeeded);
+                result.markNeverAskAgainMask(neverAskAgain);
+                result.addGranted(request.mAlreadyGranted);
+                mResultHost = request.mHost;
+                try {
+                    request.mListener.onPermissionResult(request.mRequestCode, result);
+                } finally {
+                    mResultHost = null;
+                    result.recycle();
+                }
+            }
+        } finally {
+            mDispatching = false;
+            mDispatchQueue.clear();
+        }
+    }
+
+    /**
+     * Returns the activity of the request whose result is being delivered, or null if it was destroyed or is
+     * finishing. Valid only in {@link ResultListener#onPermissionResult(int, PermissionResult)}, a listener which
+     * asks more permissions after the result shows them with this activity.
+     */
+    Activity getResultHost() {
+        Activity host = mResultHost;
+        return host != null && ! host.isFinishing() ? host : null;
+    }
+
+    private static void recordDialog(PermissionResult result, long shownAt) {
+        PermissionMetrics metrics = PermissionHelper.getMetrics();
+        if (shownAt != 0L) {
+            metrics.onDialogAnswered(System.nanoTime() - shownAt);
+        }
+
+        recordOutcomes(metrics, result.getGranted(), PermissionMetrics.OUTCOME_GRANTED);
+        recordOutcomes(metrics, result.getDenied(), PermissionMetrics.OUTCOME_DENIED);
+        recordOutcomes(metrics, result.getNeverAskAgain(), PermissionMetrics.OUTCOME_NEVER_ASK_AGAIN);
+    }
+
+    private static void recordOutcomes(PermissionMetrics metrics, long permissions, int outcome) {
+        for (long mask = permissions; mask != 0L; mask &= mask - 1) {
+            metrics.onPermissionOutcome(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(mask)), outcome);
+        }
+    }
+
+    /**
+     * Moves the queued requests which have nothing left to ask to the dispatch queue and shows one merged
+     * dialog for the rest. The caller dispatches the queue, see {@link #dispatchQueue(String[], int[], long)}. <br><br>
+     *
+     * The dialog is shown by the given activity if it has a queued request, otherwise by another live activity
+     * which has one. If there is none, e.g. the activities are being recreated, the requests stay queued until
+     * one of their activities is resumed.
+     */
+    private void showQueuedDialog(Activity activity) {
+        if (mDialogRequestCode != NO_DIALOG) {
+            return;
+        }
+
+        long merged = 0L;
+        PendingRequest hostRequest = null;
+
+        for (int i = mPendingRequests.size() - 1; i >= 0; i--) {
+            PendingRequest request = mPendingRequests.get(i);
+            long asked = asked(request.mNeeded);
+            if (asked == 0L) {
+                mPendingRequests.remove(i);
+                mDispatchQueue.add(request);
+            } else {
+                merged |= asked;
+                if (request.mHost == activity || (request.mHost != null && (hostRequest == null || hostRequest.mHost != activity))) {
+                    hostRequest = request;
+                }
+            }
+        }
+
+        if (merged == 0L) {
+            return;
+        }
+        if (hostRequest == null) {
+            Log.d(TAG, "Queued requests wait for a resumed activity.");
+            return;
+        }
+
+        for (int i = 0, size = mPendingRequests.size(); i < size; i++) {
+            mPendingRequests.get(i).mInDialog = true;
+        }
+        Log.d(TAG, "Merged queued requests into one dialog.");
+        showDialog(hostRequest.mHost, hostRequest.mRequestCode, merged);
+    }
+
+    /**
+     * Returns the needed permissions which the dialog asks. The permissions which are not declared in the manifest
+     * stay in the needed mask of the request, so its result reports them as denied.
+     */
+    private static long asked(long needed) {
+        return needed & ~PermissionManifest.undeclaredMask(needed, PermissionHelper.getBackend().getSdkInt());
+    }
+
+    /**
+     * Shows the dialog of the queued requests if they wait for a host and the resumed activity has one of them.
+     */
+    void onActivityResumed(Activity activity) {
+        if (mDialogRequestCode != NO_DIALOG) {
+            return;
+        }
+
+        for (int i = 0, size = mPendingRequests.size(); i < size; i++) {
+            if (mPendingRequests.get(i).mHost == activity) {
+                showQueuedDialog(activity);
+                dispatchQueue(PermissionSet.NO_NAMES, NO_GRANT_RESULTS, 0L);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Releases the listeners of the requests of a destroyed activity. <br><br>
+     *
+     * The requests in the showing dialog are kept until the dialog is answered. If the activity is the callback
+     * and it is destroyed for a configuration change, its requests wait for the recreated instance. <br><br>
+     *
+     * If the activity shows the dialog and is not destroyed for a configuration change, e.g. it was finished or the
+     * system destroyed it with "Don't keep activities", the dialog result never comes to the engine. The dialog is
+     * dropped and its requests are interrupted. A recreated activity restores its requests from the saved state.
+     */
+    void onActivityDestroyed(Activity activity) {
+        boolean changingConfigurations = activity.isChangingConfigurations();
+        List<PendingRequest> interrupted = new ArrayList<>();
+
+        for (int i = mPendingRequests.size() - 1; i >= 0; i--) {
+            PendingRequest request = mPendingRequests.get(i);
+            if (request.mHost != activity) {
+                continue;
+            }
+
+            request.mHost = null;
+            if (changingConfigurations && callbackOf(request.mListener) == activity) {
+                request.mHostClass = activity.getClass();
+                request.mListener = null;
+            } else if (request.mListener != null) {
+                interrupted.add(request);
+            }
+
+            if (! request.mInDialog && request.mHostClass == null) {
+                mPendingRequests.remove(i);
+            }
+        }
+
+        if (mDialogHost == activity) {
+            mDialogHost = null;
+            if (! changingConfigurations) {
+                dropDialog(interrupted);
+            }
+        }
+        interrupt(interrupted);
+    }
+
+    /**
+     * Drops the showing dialog and adds its requests to the interrupted requests.
+     */
+    private void dropDialog(List<PendingRequest> interrupted) {
+        Log.w(TAG, "Activity of the permission dialog was destroyed. Dropping the dialog.");
+        mDialogRequestCode = NO_DIALOG;
+        mDialogMask = 0L;
+        mDialogShownAt = 0L;
+        mDialogHostClass = null;
+
+        for (int i = mPendingRequests.size() - 1; i >= 0; i--) {
+            PendingRequest request = mPendingRequests.get(i);
+            if (! request.mInDialog) {
+                continue;
+            }
+
+            mPendingRequests.remove(i);
+            if (request.mListener != null && ! interrupted.contains(request)) {
+                interrupted.add(request);
+            }
+        }
+    }
+
+    /**
+     * Releases the listeners of the requests and tells them that they are interrupted. The listeners are called
+     * after the table is updated, so a listener can cancel or submit requests.
+     */
+    private static void interrupt(List<PendingRequest> requests) {
+        for (int i = 0, size = requests.size(); i < size; i++) {
+            PendingRequest request = requests.get(i);
+            ResultListener listener = request.mListener;
+            request.mListener = null;
+            if (listener != null) {
+                listener.onPermissionRequestInterrupted(request.mRequestCode);
+            }
+        }
+    }
+
+    /**
+     * Gives the requests which are waiting for a recreated activity to the new instance. If there are none and
+     * the saved state contains requests, the process was killed and the requests are restored from it. <br><br>
+     *
+     * Can be called more than once for the same activity.
+     */
+    void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        registerLifecycle(activity);
+
+        boolean attached = false;
+        for (int i = 0, size = mPendingRequests.size(); i < size; i++) {
+            PendingRequest request = mPendingRequests.get(i);
+            if (request.mHostClass == activity.getClass()) {
+                Log.d(TAG, "Request reattached to the recreated activity.");
+                request.mHost = activity;
+                request.mHostClass = null;
+                request.mListener = listenerOf(activity);
+            }
+            attached |= request.mHost == activity;
+        }
+        if (mDialogRequestCode != NO_DIALOG && mDialogHost == null && mDialogHostClass == activity.getClass()) {
+            mDialogHost = activity;
+        }
+
+        if (! attached && savedInstanceState != null) {
+            SavedState state = SavedState.readFrom(savedInstanceState);
+            if (state != null) {
+                restoreState(activity, state);
+            }
+        }
+    }
+
+    void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        SavedState state = saveState(activity);
+        if (state != null) {
+            state.writeTo(outState);
+        }
+    }
+
+    /**
+     * Returns the requests of the given activity and the showing dialog if the activity shows it, or null if it
+     * has neither. <br><br>
+     *
+     * The dialog is saved even if none of its requests is left, e.g. because they were released by a configuration
+     * change. The restored engine still waits for its result, so it does not show a second dialog.
+     */
+    SavedState saveState(Activity activity) {
+        boolean hostsDialog = mDialogRequestCode != NO_DIALOG && mDialogHostClass == activity.getClass();
+        long union = hostsDialog ? mDialogMask : 0L;
+        int count = 0;
+        for (int i = 0, size = mPendingRequests.size(); i < size; i++) {
+            PendingRequest request = mPendingRequests.get(i);
+            if (request.mHost == activity) {
+                union |= request.mNeeded | request.mAlreadyGranted;
+                count++;
+            }
+        }
+
+        if (count == 0 && ! hostsDialog) {
+            return null;
+        }
+
+        SavedState state = new SavedState(PermissionSet.fromMask(union).toArray(), count);
+        if (hostsDialog) {
+            state.mDialogRequestCode = mDialogRequestCode;
+            state.mDialogMask = SavedState.compress(mDialogMask, union);
+        }
+        for (int i = 0, size = mPendingRequests.size(), j = 0; i < size; i++) {
+            PendingRequest request = mPendingRequests.get(i);
+            if (request.mHost == activity && j < state.mRequestCodes.length) {
+                state.mRequestCodes[j] = request.mRequestCode;
+                state.mNeeded[j] = SavedState.compress(request.mNeeded, union);
+                state.mAlreadyGranted[j] = SavedState.compress(request.mAlreadyGranted, union);
+                if (request.mInDialog) {
+                    state.mInDialog |= 1L << j;
+                }
+                j++;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Adds the saved requests to the table. The requests which were in the dialog wait for its result, unless
+     * another dialog is already showing. Then they are queued.
+     */
+    void restoreState(Activity activity, SavedState state) {
+        long[] slots = new long[state.mNames.length];
+        for (int i = 0; i < slots.length; i++) {
+            int slot = PermissionRegistry.trySlotOf(state.mNames[i]);
+            slots[i] = slot != PermissionRegistry.NO_SLOT ? PermissionSet.bit(slot) : 0L;
+        }
+
+        ResultListener listener = listenerOf(activity);
+        boolean joinDialog = mDialogRequestCode == NO_DIALOG;
+        if (joinDialog && state.mDialogRequestCode != NO_DIALOG) {
+            mDialogRequestCode = state.mDialogRequestCode;
+            mDialogMask = SavedState.expand(state.mDialogMask, slots);
+            mDialogHostClass = activity.getClass();
+            mDialogHost = activity;
+        }
+
+        for (int i = 0; i < state.mRequestCodes.length; i++) {
+            PendingRequest request = new PendingRequest(activity, state.mRequestCodes[i],
+                    SavedState.expand(state.mNeeded[i], slots), SavedState.expand(state.mAlreadyGranted[i], slots), listener);
+
+            if (joinDialog && (state.mInDialog & (1L << i)) != 0L) {
+                request.mInDialog = true;
+                if (mDialogRequestCode == NO_DIALOG) {
+                    // Saved without the dialog.
+                    mDialogRequestCode = request.mRequestCode;
+                    mDialogHostClass = activity.getClass();
+                    mDialogHost = activity;
+                }
+                mDialogMask |= asked(request.mNeeded);
+            }
+            mPendingRequests.add(request);
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Restored " + state.mRequestCodes.length + " request(s) of the killed process.");
+        }
+    }
+
+    /**
+     * Drops every request. Same as the state of a new process.
+     */
+    @VisibleForTesting
+    void clear() {
+        mPendingRequests.clear();
+        mDialogRequestCode = NO_DIALOG;
+        mDialogMask = 0L;
+        mDialogShownAt = 0L;
+        mDialogHostClass = null;
+        mDialogHost = null;
+    }
+
+    private void registerLifecycle(Activity activity) {
+        if (mLifecycleRegistered) {
+            return;
+        }
+
+        Application application = activity.getApplication();
+        if (application != null) {
+            application.registerActivityLifecycleCallbacks(new HostCallbacks());
+            mLifecycleRegistered = true;
+        }
+    }
+
+    private void showDialog(Activity activity, int requestCode, long permissions) {
+        mDialogRequestCode = requestCode;
+        mDialogMask = permissions;
+        mDialogShownAt = System.nanoTime();
+        mDialogHostClass = activity.getClass();
+        mDialogHost = activity;
+        PermissionHelper.getMetrics().onDialogShown(Long.bitCount(permissions));
+        PermissionJournal.getInstance(activity).onAsked(permissions);
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Requesting permissions: " + PermissionSet.fromMask(permissions));
+        }
+        PermissionHelper.getBackend().requestPermissions(activity, PermissionSet.fromMask(permissions).toArray(), requestCode);
+    }
+
+    /**
+     * Returns the listener which delivers to the given callback, or null if it is not a callback.
+     * A {@link PermissionHelper.PermissionOutcomeCallback} is preferred if both are implemented.
+     */
+    static ResultListener listenerOf(Object callback) {
+        if (callback instanceof PermissionHelper.PermissionOutcomeCallback) {
+            return new OutcomeCallbackListener((PermissionHelper.PermissionOutcomeCallback) callback);
+        } else if (callback instanceof PermissionHelper.PermissionResultCallback) {
+            return new CallbackListener((PermissionHelper.PermissionResultCallback) callback, null, PermissionSet.NO_NAMES);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the callback which the listener delivers to, or null if it is not a callback listener.
+     */
+    private static Object callbackOf(ResultListener listener) {
+        if (listener instanceof OutcomeCallbackListener) {
+            return ((OutcomeCallbackListener) listener).mCallback;
+        } else if (listener instanceof CallbackListener) {
+            return ((CallbackListener) listener).mCallback;
+        }
+        return null;
+    }
+
+    /**
+     * Delivers the whole result as one {@link PermissionOutcome}.
+     */
+    static final class OutcomeCallbackListener implements ResultListener {
+
+        final PermissionHelper.PermissionOutcomeCallback mCallback;
+
+        OutcomeCallbackListener(PermissionHelper.PermissionOutcomeCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onPermissionResult(int requestCode, PermissionResult result) {
+            PermissionOutcome outcome = PermissionOutcome.from(requestCode, result);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, outcome.toString());
+            }
+            mCallback.onPermissionOutcome(outcome);
+        }
+
+        @Override
+        public void onPermissionRequestInterrupted(int requestCode) {
+        }
+    }
+
+    /**
+     * Delivers the result to the three methods of a {@link PermissionHelper.PermissionResultCallback}.
+     * Only the non empty partitions are delivered, in the order of the requested permissions. Every call gets a
+     * new list, which belongs to the callback.
+     */
+    static final class CallbackListener implements ResultListener {
+
+        final PermissionHelper.PermissionResultCallback mCallback;
+        final byte[] mOrder;
+        final String[] mUndeclared;
+
+        /**
+         * @param order         the order of the requested permissions, see {@link PermissionSet#order()}
+         * @param undeclared    the permissions without a slot, they are added to the denied permissions,
+         *                      see {@link PermissionSet#unregistered(java.util.Collection)}
+         */
+        CallbackListener(PermissionHelper.PermissionResultCallback callback, byte[] order, String[] undeclared) {
+            mCallback = callback;
+            mOrder = order;
+            mUndeclared = undeclared;
+        }
+
+        @Override
+        public void onPermissionResult(int requestCode, PermissionResult result) {
+            dispatch(requestCode, result, mOrder, mUndeclared, mCallback);
+        }
+
+        @Override
+        public void onPermissionRequestInterrupted(int requestCode) {
+        }
+    }
+
+    private static void dispatch(int requestCode, PermissionResult result, byte[] order, String[] undeclared,
+                                 PermissionHelper.PermissionResultCallback callback) {
+        boolean loggable = Log.isLoggable(TAG, Log.DEBUG);
+
+        if (result.getGranted() != 0L) {
+            List<String> granted = PermissionSet.newList(result.getGranted(), order);
+            if (loggable) {
+                Log.d(TAG, "Permissions granted: " + granted);
+            }
+            callback.permissionsGranted(requestCode, granted);
+        }
+
+        if (result.getDenied() != 0L || undeclared.length != 0) {
+            List<String> denied = PermissionSet.newList(result.getDenied(), order);
+            Collections.addAll(denied, undeclared);
+            if (loggable) {
+                Log.d(TAG, "Permissions denied: " + denied);
+            }
+            callback.permissionsDenied(requestCode, denied);
+        }
+
+        if (result.getNeverAskAgain() != 0L) {
+            List<String> neverAskAgain = PermissionSet.newList(result.getNeverAskAgain(), order);
+            if (loggable) {
+                Log.d(TAG, "Permissions never ask again: " + neverAskAgain);
+            }
+            callback.permissionsNeverAskAgain(requestCode, neverAskAgain);
+        }
+    }
+
+    private final class HostCallbacks extends ActivityLifecycleAdapter {
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            if (savedInstanceState != null) {
+                PermissionRequestEngine.this.onActivityCreated(activity, savedInstanceState);
+            }
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+            PermissionRequestEngine.this.onActivityResumed(activity);
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            PermissionRequestEngine.this.onActivityDestroyed(activity);
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            PermissionRequestEngine.this.onActivitySaveInstanceState(activity, outState);
+        }
+    }
+
+    /**
+     * Compact form of the requests of one activity, which is kept in its saved instance state. <br><br>
+     *
+     * Slots are not stable across processes, so the permissions are saved once by name and the masks of the
+     * requests refer to the index of the name. The requests are parallel arrays, a request is in the dialog
+     * if its bit is set in the in dialog mask. The showing dialog is saved as its request code and its
+     * permissions, its result comes with that code.
+     */
+    static final class SavedState {
+
+        private static final String KEY_NAMES = "com.avacodelab.moduleplayground.module.PermissionRequestEngine.names";
+        private static final String KEY_REQUEST_CODES = "com.avacodelab.moduleplayground.module.PermissionRequestEngine.requestCodes";
+        private static final String KEY_MASKS = "com.avacodelab.moduleplayground.module.PermissionRequestEngine.masks";
+        private static final String KEY_DIALOG = "com.avacodelab.moduleplayground.module.PermissionRequestEngine.dialog";
+
+        /** At most 64 requests fit into the in dialog mask. */
+        private static final int MAX_REQUESTS = 64;
+
+        final String[] mNames;
+        final int[] mRequestCodes;
+        final long[] mNeeded;
+        final long[] mAlreadyGranted;
+        long mInDialog;
+        int mDialogRequestCode = NO_DIALOG;
+        long mDialogMask;
+
+        SavedState(String[] names, int count) {
+            count = Math.min(count, MAX_REQUESTS);
+            mNames = names;
+            mRequestCodes = new int[count];
+            mNeeded = new long[count];
+            mAlreadyGranted = new long[count];
+        }
+
+        /**
+         * Returns the saved state in the bundle, or null if there is none.
+         */
+        static SavedState readFrom(Bundle bundle) {
+            String[] names = bundle.getStringArray(KEY_NAMES);
+            int[] requestCodes = bundle.getIntArray(KEY_REQUEST_CODES);
+            long[] masks = bundle.getLongArray(KEY_MASKS);
+            if (names == null || requestCodes == null || masks == null || masks.length != requestCodes.length * 2 + 1) {
+                return null;
+            }
+
+            SavedState state = new SavedState(names, requestCodes.length);
+            System.arraycopy(requestCodes, 0, state.mRequestCodes, 0, state.mRequestCodes.length);
+            for (int i = 0; i < state.mRequestCodes.length; i++) {
+                state.mNeeded[i] = masks[i * 2];
+                state.mAlreadyGranted[i] = masks[i * 2 + 1];
+            }
+            state.mInDialog = masks[masks.length - 1];
+            long[] dialog = bundle.getLongArray(KEY_DIALOG);
+            if (dialog != null && dialog.length == 2) {
+                state.mDialogRequestCode = (int) dialog[0];
+                state.mDialogMask = dialog[1];
+            }
+            return state;
+        }
+
+        void writeTo(Bundle bundle) {
+            long[] masks = new long[mRequestCodes.length * 2 + 1];
+            for (int i = 0; i < mRequestCodes.length; i++) {
+                masks[i * 2] = mNeeded[i];
+                masks[i * 2 + 1] = mAlreadyGranted[i];
+            }
+            masks[masks.length - 1] = mInDialog;
+
+            bundle.putStringArray(KEY_NAMES, mNames);
+            bundle.putIntArray(KEY_REQUEST_CODES, mRequestCodes);
+            bundle.putLongArray(KEY_MASKS, masks);
+            if (mDialogRequestCode != NO_DIALOG) {
+                bundle.putLongArray(KEY_DIALOG, new long[] {mDialogRequestCode, mDialogMask});
+            }
+        }
+
+        /**
+         * Maps a slot mask to the indices of the set bits of the union mask.
+         */
+        static long compress(long mask, long union) {
+            long compressed = 0L;
+            int index = 0;
+            for (long remaining = union; remaining != 0L; remaining &= remaining - 1, index++) {
+                if ((mask & Long.lowestOneBit(remaining)) != 0L) {
+                    compressed |= 1L << index;
+                }
+            }
+            return compressed;
+        }
+
+        /**
+         * Maps a compressed mask back to slots. slots[i] is the slot bit of the i'th saved name.
+         */
+        static long expand(long compressed, long[] slots) {
+            long mask = 0L;
+            for (long remaining = compressed; remaining != 0L; remaining &= remaining - 1) {
+                mask |= slots[Long.numberOfTrailingZeros(remaining)];
+            }
+            return mask;
+        }
+    }
+
+    private static final class PendingRequest {
+        final int mRequestCode;
+        long mNeeded;
+        long mAlreadyGranted;
+        boolean mInDialog;
+
+        /** Null after the activity is destroyed. */
+        Activity mHost;
+        ResultListener mListener;
+
+        /** Set while the request waits for its activity to be recreated. */
+        Class<?> mHostClass;
+
+        PendingRequest(Activity host, int requestCode, long needed, long alreadyGranted, ResultListener listener) {
+            mHost = host;
+            mRequestCode = requestCode;
+            mNeeded = needed;
+            mAlreadyGranted = alreadyGranted;
+            mListener = listener;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.avacodelab.moduleplayground.module;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  Plans the dialogs of a request: which permissions are asked, in which order and in how many stages. <br><br>
+ *
+ *  The platform shows one page per permission group, and a permission of a group which already has a granted
+ *  permission is granted without a page. So the planner: <br>
+ *
+ *  - skips the permissions which are known as denied with "Never ask again" (see {@link PermissionJournal}), the
+ *    platform would deny them without a page. <br>
+ *  - keeps the permissions of a group together. The groups are in slot order, which is the order in which the
+ *    permissions were first used. <br>
+ *  - asks the groups which already have a granted permission in the first stage, they cost no page. <br>
+ *  - puts at most the given number of other groups into a stage. A stage is asked when the previous one is answered,
+ *    and the request can stop at the first stage with a denied permission. <br><br>
+ *
+ *    <strong>Usage:</strong> <br>
+ *
+ *    <pre>{@code
+ *
+ *    // Two pages per dialog, the onboarding stops at the first denial to show its explanation.
+ *    mPermissionHelper.checkDeviceAndRequestPermissions(ONBOARDING_REQUEST_CODE, permissions,
+ *          PermissionRequestPlanner.staged(2, true), this);
+ *  } </pre><br><br>
+ *
+ *  A planner is immutable and can be shared.
+ */
+
+public final class PermissionRequestPlanner {
+
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private static final PermissionRequestPlanner ALL_AT_ONCE = new PermissionRequestPlanner(UNLIMITED, false);
+
+    private final int mGroupsPerStage;
+    private final boolean mStopOnDenial;
+
+    private PermissionRequestPlanner(int groupsPerStage, boolean stopOnDenial) {
+        mGroupsPerStage = groupsPerStage;
+        mStopOnDenial = stopOnDenial;
+    }
+
+    /**
+     * Asks all the groups in one dialog.
+     */
+    public static PermissionRequestPlanner allAtOnce() {
+        return ALL_AT_ONCE;
+    }
+
+    /**
+     * @param groupsPerStage    the maximum number of groups which show a page in one dialog, or {@link #UNLIMITED}
+     * @param stopOnDenial      true to not ask the remaining stages after a permission is denied. They are reported
+     *                          as denied.
+     */
+    public static PermissionRequestPlanner staged(int groupsPerStage, boolean stopOnDenial) {
+        if (groupsPerStage < 1) {
+            throw new IllegalArgumentException("groupsPerStage must be at least 1: " + groupsPerStage);
+        }
+        return new PermissionRequestPlanner(groupsPerStage, stopOnDenial);
+    }
+
+    boolean isStopOnDenial() {
+        return mStopOnDenial;
+    }
+
+    /**
+     * Returns the permissions of each stage, in the order they are asked.
+     *
+     * @param needed        permissions which are not granted
+     * @param neverAskAgain permissions which are known as never ask again, they are not asked
+     * @param granted       permissions which are granted
+     */
+    long[] plan(long needed, long neverAskAgain, long granted) {
+        Map<String, Long> groups = new LinkedHashMap<>();
+        for (long mask = needed & ~neverAskAgain; mask != 0L; mask &= mask - 1) {
+            int slot = Long.numberOfTrailingZeros(mask);
+            String group = groupKeyOf(slot);
+            Long groupMask = groups.get(group);
+            groups.put(group, (groupMask != null ? groupMask : 0L) | PermissionSet.bit(slot));
+        }
+
+        long grantedGroupMembers = 0L;
+        for (long mask = granted; mask != 0L; mask &= mask - 1) {
+            Long groupMask = groups.get(groupKeyOf(Long.numberOfTrailingZeros(mask)));
+            if (groupMask != null) {
+                grantedGroupMembers |= groupMask;
+            }
+        }
+
+        List<Long> stages = new ArrayList<>();
+        long stage = grantedGroupMembers;
+        int stageGroups = 0;
+        for (long groupMask : groups.values()) {
+            if ((groupMask & grantedGroupMembers) != 0L) {
+                continue;
+            }
+            if (stageGroups == mGroupsPerStage) {
+                stages.add(stage);
+                stage = 0L;
+                stageGroups = 0;
+            }
+            stage |= groupMask;
+            stageGroups++;
+        }
+        if (stage != 0L) {
+            stages.add(stage);
+        }
+
+        long[] result = new long[stages.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = stages.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * A permission without a group is a group of its own.
+     */
+    private static String groupKeyOf(int slot) {
+        String group = PermissionManifest.groupOf(slot);
+        return group != null ? group : PermissionRegistry.nameOf(slot);
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionRequestPlanner{groupsPerStage=" + (mGroupsPerStage == UNLIMITED ? "unlimited" : mGroupsPerStage)
+                + ", stopOnDenial=" + mStopOnDenial + "}";
+    }
+}
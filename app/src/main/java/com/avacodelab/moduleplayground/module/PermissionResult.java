@@ -0,0 +1,140 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.content.pm.PackageManager;
+
+/**
+ *  Reusable holder of a classified permission result. <br><br>
+ *
+ *  {@link PermissionHelper#onRequestPermissionsResult(int, String[], int[])} runs on the main thread
+ *  right after the permission dialog is closed. So the result is classified directly from the
+ *  permissions and grantResults arrays into a pooled holder, instead of allocating maps and lists
+ *  for every result. <br><br>
+ *
+ *  The holder is internal to the module. The callbacks are given their own lists or outcome, which stay
+ *  valid after the holder is recycled. <br><br>
+ *
+ *  Only the classification is allocation-free. The rest of onRequestPermissionsResult() still allocates: the
+ *  cache snapshot, the journal records, the changes of the snapshot file and the lists or outcome of the callback.
+ */
+
+final class PermissionResult {
+
+    private static final int MAX_POOL_SIZE = 4;
+
+    private static final Object sPoolSync = new Object();
+    private static PermissionResult sPool;
+    private static int sPoolSize;
+
+    private PermissionResult mNext;
+
+    private long mGranted;
+    private long mDenied;
+    private long mNeverAskAgain;
+    private long mAlreadyGranted;
+
+    private PermissionResult() {
+    }
+
+    /**
+     * Returns a holder from the pool, or a new one if the pool is empty.
+     */
+    static PermissionResult obtain() {
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                PermissionResult result = sPool;
+                sPool = result.mNext;
+                result.mNext = null;
+                sPoolSize--;
+                return result;
+            }
+        }
+        return new PermissionResult();
+    }
+
+    /**
+     * Clears the holder and returns it to the pool. The holder must not be used after this call.
+     */
+    void recycle() {
+        mGranted = 0L;
+        mDenied = 0L;
+        mNeverAskAgain = 0L;
+        mAlreadyGranted = 0L;
+
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * Classifies the parallel permissions and grantResults arrays. <br><br>
+     *
+     * Only the permissions in the needed mask are taken into account. Every needed permission which is
+     * not granted is marked as denied, see {@link #markNeverAskAgain(int)}.
+     */
+    void classify(String[] permissions, int[] grantResults, long needed) {
+        long granted = 0L;
+        int count = Math.min(permissions.length, grantResults.length);
+
+        for (int i = 0; i < count; i++) {
+            if (grantResults[i] == PackageManager.PERMISSION_GRANTED) {
+                int slot = PermissionRegistry.findSlot(permissions[i]);
+                if (slot >= 0) {
+                    granted |= PermissionSet.bit(slot);
+                }
+            }
+        }
+
+        mGranted = needed & granted;
+        mDenied = needed & ~granted;
+        mNeverAskAgain = 0L;
+        mAlreadyGranted = 0L;
+    }
+
+    /**
+     * Moves a denied permission to the never ask again partition.
+     */
+    void markNeverAskAgain(int slot) {
+        long bit = PermissionSet.bit(slot);
+        mDenied &= ~bit;
+        mNeverAskAgain |= bit;
+    }
+
+    /**
+     * Moves the denied permissions in the given mask to the never ask again partition.
+     */
+    void markNeverAskAgainMask(long mask) {
+        mNeverAskAgain |= mDenied & mask;
+        mDenied &= ~mask;
+    }
+
+    /**
+     * Adds the permissions which were granted before the request.
+     */
+    void addGranted(long granted) {
+        mGranted |= granted;
+        mAlreadyGranted |= granted;
+    }
+
+    long getGranted() {
+        return mGranted;
+    }
+
+    long getDenied() {
+        return mDenied;
+    }
+
+    long getNeverAskAgain() {
+        return mNeverAskAgain;
+    }
+
+    /**
+     * Returns the granted permissions which were not answered by the dialog of this result.
+     */
+    long getAlreadyGranted() {
+        return mAlreadyGranted;
+    }
+}
@@ -0,0 +1,357 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.support.annotation.NonNull;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ *  Immutable set of permissions backed by a single long mask. <br><br>
+ *
+ *  Every permission is mapped to a bit by {@link PermissionRegistry}. So union, difference and
+ *  contains are plain bit operations, there is no string hashing or boxing after the set is created. <br><br>
+ *
+ *  A set which is created from permission names iterates them in the order they were given, without the duplicates.
+ *  The sets of the operations keep the order of this set, union appends the new permissions of the other set. A set
+ *  which is created from a mask iterates in the registration order of the permissions. <br><br>
+ *
+ *    <strong>Usage:</strong> <br>
+ *
+ *    <pre>{@code
+ *
+ *    PermissionSet permissions = PermissionSet.of(Manifest.permission.CAMERA, Manifest.permission.READ_CONTACTS);
+ *
+ *    if (permissions.contains(Manifest.permission.CAMERA)) {
+ *        // ...
+ *    }
+ *  } </pre>
+ */
+
+public final class PermissionSet {
+
+    public static final PermissionSet EMPTY = new PermissionSet(0L, null);
+
+    static final String[] NO_NAMES = new String[0];
+
+    private final long mMask;
+
+    /** The slots in the order of iteration, or null for the registration order. */
+    private final byte[] mOrder;
+
+    private PermissionSet(long mask, byte[] order) {
+        mMask = mask;
+        mOrder = order;
+    }
+
+    public static PermissionSet of(@NonNull String... permissions) {
+        long mask = 0L;
+        byte[] order = new byte[Math.min(permissions.length, PermissionRegistry.MAX_PERMISSIONS)];
+        int size = 0;
+        for (String permission : permissions) {
+            int slot = PermissionRegistry.slotOf(permission);
+            if ((mask & bit(slot)) == 0L) {
+                mask |= bit(slot);
+                order[size++] = (byte) slot;
+            }
+        }
+        return fromOrder(mask, order, size);
+    }
+
+    public static PermissionSet of(@NonNull Collection<String> permissions) {
+        if (permissions instanceof PermissionList) {
+            PermissionList list = (PermissionList) permissions;
+            return list.mMask == 0L ? EMPTY : new PermissionSet(list.mMask, list.mOrder);
+        }
+        return of(permissions.toArray(new String[permissions.size()]));
+    }
+
+    /**
+     * Same as {@link #of(Collection)}, but skips the permissions which get no slot in {@link PermissionRegistry}
+     * instead of throwing. {@link #unregistered(Collection)} returns them.
+     */
+    static PermissionSet ofRegistered(@NonNull Collection<String> permissions) {
+        if (permissions instanceof PermissionList) {
+            return of(permissions);
+        }
+
+        long mask = 0L;
+        byte[] order = new byte[Math.min(permissions.size(), PermissionRegistry.MAX_PERMISSIONS)];
+        int size = 0;
+        for (String permission : permissions) {
+            int slot = PermissionRegistry.trySlotOf(permission);
+            if (slot != PermissionRegistry.NO_SLOT && (mask & bit(slot)) == 0L) {
+                mask |= bit(slot);
+                order[size++] = (byte) slot;
+            }
+        }
+        return fromOrder(mask, order, size);
+    }
+
+    /**
+     * Returns the permissions which get no slot in {@link PermissionRegistry}, without the duplicates, or
+     * {@link #NO_NAMES} if there are none. The slots of the declared permissions are kept for them, so these
+     * permissions are not declared in the manifest.
+     */
+    static String[] unregistered(@NonNull Collection<String> permissions) {
+        if (permissions instanceof PermissionList) {
+            return NO_NAMES;
+        }
+
+        List<String> unregistered = null;
+        for (String permission : permissions) {
+            if (PermissionRegistry.trySlotOf(permission) == PermissionRegistry.NO_SLOT) {
+                if (unregistered == null) {
+                    unregistered = new ArrayList<>();
+                }
+                if (! unregistered.contains(permission)) {
+                    unregistered.add(permission);
+                }
+            }
+        }
+        return unregistered == null ? NO_NAMES : unregistered.toArray(new String[unregistered.size()]);
+    }
+
+    static PermissionSet fromMask(long mask) {
+        return mask == 0L ? EMPTY : new PermissionSet(mask, null);
+    }
+
+    /**
+     * Returns the set of the first size slots of the order. The order is dropped if it is the registration order.
+     */
+    private static PermissionSet fromOrder(long mask, byte[] order, int size) {
+        for (int i = 1; i < size; i++) {
+            if (order[i] < order[i - 1]) {
+                return new PermissionSet(mask, size == order.length ? order : Arrays.copyOf(order, size));
+            }
+        }
+        return fromMask(mask);
+    }
+
+    static long bit(int slot) {
+        return 1L << slot;
+    }
+
+    long mask() {
+        return mMask;
+    }
+
+    public boolean contains(String permission) {
+        int slot = PermissionRegistry.findSlot(permission);
+        return slot >= 0 && (mMask & bit(slot)) != 0L;
+    }
+
+    public boolean containsAll(PermissionSet other) {
+        return (other.mMask & ~mMask) == 0L;
+    }
+
+    public PermissionSet union(PermissionSet other) {
+        long mask = mMask | other.mMask;
+        if (mOrder == null && other.mOrder == null) {
+            return fromMask(mask);
+        }
+
+        byte[] order = new byte[Long.bitCount(mask)];
+        int size = copySlots(order, 0, mMask);
+        size = other.copySlots(order, size, other.mMask & ~mMask);
+        return fromOrder(mask, order, size);
+    }
+
+    public PermissionSet difference(PermissionSet other) {
+        return subset(mMask & ~other.mMask);
+    }
+
+    public PermissionSet intersect(PermissionSet other) {
+        return subset(mMask & other.mMask);
+    }
+
+    /**
+     * Returns the permissions of the mask in the order of this set. The mask must be a subset of this set.
+     */
+    private PermissionSet subset(long mask) {
+        if (mOrder == null || mask == mMask) {
+            return mask == mMask ? this : fromMask(mask);
+        }
+
+        byte[] order = new byte[Long.bitCount(mask)];
+        return fromOrder(mask, order, copySlots(order, 0, mask));
+    }
+
+    /**
+     * Copies the slots of the mask in the order of this set, returns the new size.
+     */
+    private int copySlots(byte[] slots, int size, long mask) {
+        for (PermissionCursor cursor = new PermissionCursor(mask, mOrder); cursor.hasNext(); ) {
+            slots[size++] = (byte) cursor.nextSlot();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the slots in the order of iteration, or null for the registration order.
+     */
+    byte[] order() {
+        return mOrder;
+    }
+
+    public boolean isEmpty() {
+        return mMask == 0L;
+    }
+
+    public int size() {
+        return Long.bitCount(mMask);
+    }
+
+    public String[] toArray() {
+        String[] permissions = new String[size()];
+        int i = 0;
+        for (PermissionCursor cursor = new PermissionCursor(mMask, mOrder); cursor.hasNext(); ) {
+            permissions[i++] = PermissionRegistry.nameOf(cursor.nextSlot());
+        }
+        return permissions;
+    }
+
+    /**
+     * Returns a read-only list view of this set, in the order of the set. {@link List#contains(Object)} of the
+     * view is a mask lookup.
+     */
+    public List<String> asList() {
+        return new PermissionList(mMask, mOrder);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o == this || (o instanceof PermissionSet && ((PermissionSet) o).mMask == mMask);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mMask ^ (mMask >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return asList().toString();
+    }
+
+    /**
+     * Returns a new modifiable list of the permissions of the mask in the given order of slots, see
+     * {@link PermissionCursor}.
+     */
+    static List<String> newList(long mask, byte[] order) {
+        ArrayList<String> permissions = new ArrayList<>(Long.bitCount(mask));
+        for (PermissionCursor cursor = new PermissionCursor(mask, order); cursor.hasNext(); ) {
+            permissions.add(PermissionRegistry.nameOf(cursor.nextSlot()));
+        }
+        return permissions;
+    }
+
+    /**
+     * Walks the slots of a mask in the given order. The slots of the mask which are not in the order follow in
+     * registration order.
+     */
+    static final class PermissionCursor {
+
+        private final byte[] mOrder;
+        private long mRemaining;
+        private int mPosition;
+
+        PermissionCursor(long mask, byte[] order) {
+            mRemaining = mask;
+            mOrder = order;
+        }
+
+        boolean hasNext() {
+            return mRemaining != 0L;
+        }
+
+        int nextSlot() {
+            if (mRemaining == 0L) {
+                throw new NoSuchElementException();
+            }
+            if (mOrder != null) {
+                while (mPosition < mOrder.length) {
+                    int slot = mOrder[mPosition++];
+                    if ((mRemaining & bit(slot)) != 0L) {
+                        mRemaining &= ~bit(slot);
+                        return slot;
+                    }
+                }
+            }
+            int slot = Long.numberOfTrailingZeros(mRemaining);
+            mRemaining &= mRemaining - 1;
+            return slot;
+        }
+    }
+
+    /**
+     * Read-only list view of a set. The permissions are in the given order of slots, see {@link PermissionCursor}.
+     */
+    static final class PermissionList extends AbstractList<String> {
+
+        final long mMask;
+        final byte[] mOrder;
+
+        PermissionList(long mask, byte[] order) {
+            mMask = mask;
+            mOrder = order;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            PermissionCursor cursor = new PermissionCursor(mMask, mOrder);
+            for (int i = 0; i < index; i++) {
+                cursor.nextSlot();
+            }
+            return PermissionRegistry.nameOf(cursor.nextSlot());
+        }
+
+        @Override
+        public int size() {
+            return Long.bitCount(mMask);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (! (o instanceof String)) {
+                return false;
+            }
+            int slot = PermissionRegistry.findSlot((String) o);
+            return slot >= 0 && (mMask & bit(slot)) != 0L;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return mMask == 0L;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private final PermissionCursor mCursor = new PermissionCursor(mMask, mOrder);
+
+                @Override
+                public boolean hasNext() {
+                    return mCursor.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return PermissionRegistry.nameOf(mCursor.nextSlot());
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
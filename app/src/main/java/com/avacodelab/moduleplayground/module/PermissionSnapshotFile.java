@@ -0,0 +1,489 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.content.Context;
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ *  Permission state which the processes of the app share through a small memory-mapped file. <br><br>
+ *
+ *  Every process of the app (the UI, a :sync or a :media process ...) would otherwise check the same permissions
+ *  with its own binder calls. The process which shows the permission dialogs publishes their answers here, the
+ *  others read them with a few memory loads. <br><br>
+ *
+ *  Only the process which receives onRequestPermissionsResult() writes, see {@link PermissionRequestEngine}.
+ *  Writers are serialized with a file lock. Readers do not lock: the header holds a sequence counter which is odd
+ *  while a write is in progress and a CRC of the content. A read which saw an odd or a changed sequence, or whose
+ *  content does not match the CRC, is torn and retried. The version of the state is half the sequence. <br><br>
+ *
+ *  Only the granted answers are used in place of a check. Revoking a permission in the app settings kills all
+ *  the processes of the app, so a state is trusted only while the process which wrote it is alive. The writer is
+ *  identified by its pid and its start time, because the pid of a dead process is reused. A writer does not merge
+ *  the granted answers of a state which it does not trust into its own. A permission which is granted in the app
+ *  settings does not kill the processes, so the denied answers are never trusted. <br><br>
+ *
+ *  The file is opened, mapped and read on the executor, and the trust of its writer is checked there too. A check
+ *  only reads the state which the executor parsed last, see {@link #grantedMask(long)}, so it does no file I/O
+ *  on the main thread. <br><br>
+ *
+ *  If the files directory is not available (e.g. in unit tests), nothing is shared. <br><br>
+ *
+ *  Can be used from any thread.
+ */
+
+final class PermissionSnapshotFile {
+
+    private static final String TAG = PermissionSnapshotFile.class.getSimpleName();
+
+    private static final String FILE_NAME = "permission_snapshot";
+
+    private static final int MAGIC = 0x50530002;
+
+    static final int SIZE = 4096;
+
+    static final int OFFSET_MAGIC = 0;
+    static final int OFFSET_SEQUENCE = 4;
+    static final int OFFSET_LENGTH = 12;
+    static final int OFFSET_CRC = 16;
+    static final int OFFSET_CONTENT = 24;
+
+    private static final int CAPACITY = SIZE - OFFSET_CONTENT;
+
+    private static final int MAX_READ_ATTEMPTS = 8;
+
+    private static volatile PermissionSnapshotFile sInstance;
+
+    /**
+     * The start time is field 22 of /proc/<pid>/stat, in clock ticks after boot.
+     */
+    private static final int STAT_START_TIME = 22;
+
+    private static final long UNKNOWN_START_TIME = -1L;
+
+    private final int mPid;
+    private final Executor mExecutor;
+    private final AtomicBoolean mReadScheduled = new AtomicBoolean();
+
+    /** The context of the files directory, until the file is resolved from it on the executor. */
+    private Context mFilesContext;
+    private File mFile;
+    private long mStartTime;
+
+    private volatile MappedByteBuffer mReadBuffer;
+    private volatile State mLastRead;
+
+    /**
+     * @param file  the shared file, null to share nothing
+     * @param pid   the id of this process
+     */
+    @VisibleForTesting
+    PermissionSnapshotFile(File file, int pid, Executor executor) {
+        this(file, pid, UNKNOWN_START_TIME, executor);
+    }
+
+    /**
+     * @param startTime the start time of this process, see {@link #startTimeOf(int)}
+     */
+    @VisibleForTesting
+    PermissionSnapshotFile(File file, int pid, long startTime, Executor executor) {
+        mFile = file;
+        mPid = pid;
+        mStartTime = startTime;
+        mExecutor = executor;
+    }
+
+    /**
+     * The file is resolved from the files directory of the context on the executor.
+     */
+    private PermissionSnapshotFile(Context filesContext, int pid, Executor executor) {
+        this((File) null, pid, UNKNOWN_START_TIME, executor);
+        mFilesContext = filesContext;
+    }
+
+    /**
+     * Returns the process-wide instance. It is created without any I/O, the executor starts to read the published
+     * state right away.
+     */
+    static PermissionSnapshotFile getInstance(Context context) {
+        PermissionSnapshotFile snapshotFile = sInstance;
+        if (snapshotFile == null) {
+            synchronized (PermissionSnapshotFile.class) {
+                snapshotFile = sInstance;
+                if (snapshotFile == null) {
+                    Context applicationContext = context.getApplicationContext();
+                    snapshotFile = new PermissionSnapshotFile(applicationContext != null ? applicationContext : context,
+                            Process.myPid(), Executors.newSingleThreadExecutor());
+                    snapshotFile.scheduleRead();
+                    sInstance = snapshotFile;
+                }
+            }
+        }
+        return snapshotFile;
+    }
+
+    /**
+     * Replaces the process-wide instance. Passing null creates a new one from the files directory on next use.
+     */
+    @VisibleForTesting
+    static void setInstance(PermissionSnapshotFile snapshotFile) {
+        sInstance = snapshotFile;
+    }
+
+    /**
+     * Publishes the answer of a dialog on the executor. The other permissions keep their published state.
+     */
+    void publish(long granted, long denied, long neverAskAgain) {
+        if ((granted | denied | neverAskAgain) == 0L || ! isShared()) {
+            return;
+        }
+
+        final Map<String, Integer> changes = new LinkedHashMap<>();
+        put(changes, granted, PermissionStateSnapshot.STATE_GRANTED);
+        put(changes, denied, PermissionStateSnapshot.STATE_DENIED);
+        put(changes, neverAskAgain, PermissionStateSnapshot.STATE_NEVER_ASK_AGAIN);
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (getFile() != null) {
+                    write(changes);
+                }
+            }
+        });
+    }
+
+    private synchronized boolean isShared() {
+        return mFile != null || mFilesContext != null;
+    }
+
+    /**
+     * Returns the shared file, or null if nothing is shared. Resolves it from the files directory on first use,
+     * so it is called on the executor or in tests.
+     */
+    private synchronized File getFile() {
+        if (mFilesContext != null) {
+            File filesDir = mFilesContext.getFilesDir();
+            mFile = filesDir != null ? new File(filesDir, FILE_NAME) : null;
+            mFilesContext = null;
+        }
+        return mFile;
+    }
+
+    /**
+     * Returns the start time of this process. Read from procfs on first use, like {@link #getFile()}.
+     */
+    private synchronized long getStartTime() {
+        if (mStartTime == UNKNOWN_START_TIME) {
+            mStartTime = startTimeOf(mPid);
+        }
+        return mStartTime;
+    }
+
+    private static void put(Map<String, Integer> states, long mask, int state) {
+        for (long remaining = mask; remaining != 0L; remaining &= remaining - 1) {
+            states.put(PermissionRegistry.nameOf(Long.numberOfTrailingZeros(remaining)), state);
+        }
+    }
+
+    /**
+     * Returns the permissions of the mask which the trusted published state has as granted. <br><br>
+     *
+     * Reads only the state which the executor parsed last. If the file is not mapped yet or its version changed,
+     * the executor reads it again for the next check. A grant of a trusted state stays valid while this process
+     * lives, because a revocation would kill it, so a state which is behind the file is safe to use.
+     */
+    long grantedMask(long permissions) {
+        ByteBuffer buffer = mReadBuffer;
+        State last = mLastRead;
+        if (buffer == null || last == null || last.mVersion != buffer.getLong(OFFSET_SEQUENCE) >>> 1) {
+            scheduleRead();
+        }
+        return last != null && last.mTrusted ? last.maskOf(PermissionStateSnapshot.STATE_GRANTED) & permissions : 0L;
+    }
+
+    /**
+     * Reads the published state on the executor, unless a read is already scheduled.
+     */
+    private void scheduleRead() {
+        if (! isShared() || ! mReadScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mReadScheduled.set(false);
+                read();
+            }
+        });
+    }
+
+    /**
+     * Returns the published state, or null if there is none, it is not trusted or could not be read.
+     * The state is parsed again only when its version changed. Maps the file on first use and reads procfs to
+     * check the writer, so it is called on the executor or in tests.
+     */
+    State read() {
+        ByteBuffer buffer = getReadBuffer();
+        if (buffer == null) {
+            return null;
+        }
+
+        State last = mLastRead;
+        if (last != null && last.mVersion == buffer.getLong(OFFSET_SEQUENCE) >>> 1) {
+            return last.mTrusted ? last : null;
+        }
+
+        State state = read(buffer);
+        if (state == null) {
+            return null;
+        }
+        state.mTrusted = isTrusted(state);
+        mLastRead = state;
+        return state.mTrusted ? state : null;
+    }
+
+    private synchronized ByteBuffer getReadBuffer() {
+        File sharedFile = getFile();
+        if (mReadBuffer == null && sharedFile != null && sharedFile.length() >= SIZE) {
+            try {
+                RandomAccessFile file = new RandomAccessFile(sharedFile, "r");
+                try {
+                    mReadBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+                } finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not map " + sharedFile, e);
+            }
+        }
+        return mReadBuffer;
+    }
+
+    /**
+     * Reads the state with the sequence counter, see the class documentation. Returns null if it is torn in every
+     * attempt, e.g. because a writer died in the middle of a write.
+     */
+    static State read(ByteBuffer buffer) {
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            if (buffer.getInt(OFFSET_MAGIC) != MAGIC) {
+                return null;
+            }
+
+            long sequence = buffer.getLong(OFFSET_SEQUENCE);
+            if ((sequence & 1L) != 0L) {
+                Thread.yield();
+                continue;
+            }
+
+            int length = buffer.getInt(OFFSET_LENGTH);
+            long crc = buffer.getLong(OFFSET_CRC);
+            if (length < 0 || length > CAPACITY) {
+                continue;
+            }
+
+            byte[] content = new byte[length];
+            for (int i = 0; i < length; i++) {
+                content[i] = buffer.get(OFFSET_CONTENT + i);
+            }
+
+            if (buffer.getLong(OFFSET_SEQUENCE) != sequence || crcOf(content) != crc) {
+                continue;
+            }
+
+            try {
+                return State.decode(sequence >>> 1, content);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Merges the changes into the published state under the file lock.
+     */
+    @VisibleForTesting
+    void write(Map<String, Integer> changes) {
+        File sharedFile = getFile();
+        try {
+            RandomAccessFile file = new RandomAccessFile(sharedFile, "rw");
+            try {
+                FileChannel channel = file.getChannel();
+                FileLock lock = channel.lock();
+                try {
+                    write(channel.map(FileChannel.MapMode.READ_WRITE, 0, SIZE), changes);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + sharedFile, e);
+        }
+    }
+
+    private void write(ByteBuffer buffer, Map<String, Integer> changes) throws IOException {
+        Map<String, Integer> states = new LinkedHashMap<>();
+        State current = read(buffer);
+        if (current != null) {
+            // The new state is stamped with this process, it would make the grants of a dead writer trusted again.
+            boolean trusted = isTrusted(current);
+            for (int i = 0; i < current.mNames.length; i++) {
+                if (trusted || current.mStates[i] != PermissionStateSnapshot.STATE_GRANTED) {
+                    states.put(current.mNames[i], current.mStates[i]);
+                }
+            }
+        }
+        states.putAll(changes);
+
+        byte[] content = State.encode(mPid, getStartTime(), states);
+        if (content.length > CAPACITY) {
+            Log.w(TAG, states.size() + " permissions do not fit into " + getFile());
+            return;
+        }
+
+        // A writer which died in the middle of a write left an odd sequence.
+        long sequence = buffer.getInt(OFFSET_MAGIC) == MAGIC ? buffer.getLong(OFFSET_SEQUENCE) | 1L : 1L;
+
+        buffer.putLong(OFFSET_SEQUENCE, sequence);
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        buffer.putInt(OFFSET_LENGTH, content.length);
+        buffer.putLong(OFFSET_CRC, crcOf(content));
+        for (int i = 0; i < content.length; i++) {
+            buffer.put(OFFSET_CONTENT + i, content[i]);
+        }
+        buffer.putLong(OFFSET_SEQUENCE, sequence + 1);
+    }
+
+    private static long crcOf(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+    /**
+     * Returns true if the state was written by this process or by another process which is still alive.
+     */
+    private boolean isTrusted(State state) {
+        if (state.mWriterStartTime == 0L) {
+            return false;
+        }
+        if (state.mWriterPid == mPid) {
+            return state.mWriterStartTime == getStartTime();
+        }
+        return startTimeOf(state.mWriterPid) == state.mWriterStartTime;
+    }
+
+    /**
+     * Returns the start time of the process, or 0 if it is not running or its start time can not be read.
+     */
+    @VisibleForTesting
+    static long startTimeOf(int pid) {
+        if (pid <= 0) {
+            return 0L;
+        }
+
+        try {
+            RandomAccessFile file = new RandomAccessFile("/proc/" + pid + "/stat", "r");
+            try {
+                String stat = file.readLine();
+                if (stat == null) {
+                    return 0L;
+                }
+
+                // The name of the command is in parentheses and may contain spaces, the fields are counted after it.
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                return Long.parseLong(fields[STAT_START_TIME - 3]);
+            } finally {
+                file.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Published state: the pid and the start time of the writer and the state of every published permission.
+     */
+    static final class State {
+
+        final long mVersion;
+        final int mWriterPid;
+        final long mWriterStartTime;
+        final String[] mNames;
+        final int[] mStates;
+        boolean mTrusted;
+
+        State(long version, int writerPid, long writerStartTime, String[] names, int[] states) {
+            mVersion = version;
+            mWriterPid = writerPid;
+            mWriterStartTime = writerStartTime;
+            mNames = names;
+            mStates = states;
+        }
+
+        /**
+         * Returns the published permissions of the given state which this process knows.
+         */
+        long maskOf(int state) {
+            long mask = 0L;
+            for (int i = 0; i < mNames.length; i++) {
+                if (mStates[i] == state) {
+                    int slot = PermissionRegistry.findSlot(mNames[i]);
+                    if (slot >= 0) {
+                        mask |= PermissionSet.bit(slot);
+                    }
+                }
+            }
+            return mask;
+        }
+
+        static byte[] encode(int writerPid, long writerStartTime, Map<String, Integer> states) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(writerPid);
+            out.writeLong(writerStartTime);
+            out.writeShort(states.size());
+            for (Map.Entry<String, Integer> entry : states.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeByte(entry.getValue());
+            }
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        static State decode(long version, byte[] content) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+            int writerPid = in.readInt();
+            long writerStartTime = in.readLong();
+            int count = in.readUnsignedShort();
+            String[] names = new String[count];
+            int[] states = new int[count];
+            for (int i = 0; i < count; i++) {
+                names[i] = in.readUTF();
+                states[i] = in.readByte();
+            }
+            return new State(version, writerPid, writerStartTime, names, states);
+        }
+    }
+}
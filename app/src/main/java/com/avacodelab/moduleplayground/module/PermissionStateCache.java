@@ -0,0 +1,195 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *  Process-wide cache of permission check results. <br><br>
+ *
+ *  Every {@link android.support.v4.content.ContextCompat#checkSelfPermission(Context, String)} call is
+ *  a binder call to the package manager. Screens check the same permissions several times in a row
+ *  (onStart(), then again before requesting), so the answers are kept in memory until the permission
+ *  state can actually change. <br><br>
+ *
+ *  The state can only change when a permission dialog is answered or when the user goes to the app
+ *  settings and comes back. So the cache is invalidated in
+ *  {@link PermissionHelper#onRequestPermissionsResult(int, String[], int[])} and when the app comes back to the
+ *  foreground. Moving between the screens of the app keeps the cache. A permission revoked in the settings kills
+ *  the process, so the cache can not outlive it. <br><br>
+ *
+ *  Invalidation only increments the epoch. Entries of older epochs are treated as missing.
+ *  {@link InvalidationListener}s are told about it, e.g. {@link PermissionGatedScheduler}. <br><br>
+ *
+ *  The cache can be used from any thread without locking. Its state is an immutable {@link Snapshot} which is
+ *  replaced with compare and set. A check result is only stored if the epoch did not change since the check
+ *  started, so a result which raced with an invalidation is dropped instead of being cached as fresh.
+ */
+
+final class PermissionStateCache {
+
+    private static final PermissionStateCache sInstance = new PermissionStateCache();
+
+    static final int STATE_UNKNOWN = -1;
+    static final int STATE_DENIED = 0;
+    static final int STATE_GRANTED = 1;
+
+    private final AtomicReference<Snapshot> mSnapshot = new AtomicReference<>(new Snapshot(1, 0L, 0L));
+    private final AtomicBoolean mLifecycleRegistered = new AtomicBoolean();
+
+    private final CopyOnWriteArrayList<InvalidationListener> mListeners = new CopyOnWriteArrayList<>();
+
+    private PermissionStateCache() {
+    }
+
+    static PermissionStateCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Called after the cache is invalidated, on the thread which invalidated it.
+     */
+    interface InvalidationListener {
+        void onInvalidated();
+    }
+
+    void addInvalidationListener(InvalidationListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    void removeInvalidationListener(InvalidationListener listener) {
+        mListeners.remove(listener);
+    }
+
+    @VisibleForTesting
+    int getInvalidationListenerCount() {
+        return mListeners.size();
+    }
+
+    /**
+     * Returns the current state, so several slots can be read consistently and their check results stored
+     * with {@link #put(int, boolean, int)}.
+     */
+    Snapshot snapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * Stores a check result which was started in the given epoch. Dropped if the cache was invalidated since.
+     */
+    void put(int slot, boolean granted, int epoch) {
+        long bit = PermissionSet.bit(slot);
+        putAll(bit, granted ? bit : 0L, epoch);
+    }
+
+    /**
+     * Stores the check results of all the slots of the mask at once, see {@link #put(int, boolean, int)}.
+     */
+    void putAll(long mask, long granted, int epoch) {
+        for (;;) {
+            Snapshot current = mSnapshot.get();
+            if (current.mEpoch != epoch) {
+                return;
+            }
+
+            long grantedMask = (current.mGranted & ~mask) | (granted & mask);
+            if (mSnapshot.compareAndSet(current, new Snapshot(epoch, current.mChecked | mask, grantedMask))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached results. Called when the user may have changed the permission state.
+     */
+    void invalidate() {
+        for (;;) {
+            Snapshot current = mSnapshot.get();
+            if (mSnapshot.compareAndSet(current, new Snapshot(current.mEpoch + 1, 0L, 0L))) {
+                break;
+            }
+        }
+
+        for (InvalidationListener listener : mListeners) {
+            listener.onInvalidated();
+        }
+    }
+
+    /**
+     * Registers activity lifecycle callbacks once, so the cache is invalidated when the application comes back
+     * to the foreground (e.g. returning from the app settings).
+     */
+    void registerLifecycle(Context context) {
+        if (mLifecycleRegistered.get() || ! mLifecycleRegistered.compareAndSet(false, true)) {
+            return;
+        }
+
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext instanceof Application) {
+            ((Application) applicationContext).registerActivityLifecycleCallbacks(new ForegroundCallbacks());
+        }
+    }
+
+    /**
+     * Immutable state of one epoch: the checked slots and which of them are granted.
+     */
+    static final class Snapshot {
+
+        final int mEpoch;
+        final long mChecked;
+        final long mGranted;
+
+        Snapshot(int epoch, long checked, long granted) {
+            mEpoch = epoch;
+            mChecked = checked;
+            mGranted = granted;
+        }
+
+        /**
+         * Returns the cached state of the given permission slot, or {@link #STATE_UNKNOWN} if the permission
+         * was not checked in this epoch.
+         */
+        int get(int slot) {
+            long bit = PermissionSet.bit(slot);
+            if ((mChecked & bit) == 0L) {
+                return STATE_UNKNOWN;
+            }
+            return (mGranted & bit) != 0L ? STATE_GRANTED : STATE_DENIED;
+        }
+    }
+
+    /**
+     * Invalidates the cache when an activity starts after every started activity of the app was stopped. A
+     * recreation for a configuration change does not count. The activities which were started before the callbacks
+     * were registered are not known, their stop does not count either.
+     */
+    static final class ForegroundCallbacks extends ActivityLifecycleAdapter {
+
+        private final Set<Activity> mStarted = Collections.newSetFromMap(new WeakHashMap<Activity, Boolean>());
+        private boolean mInBackground;
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            mStarted.add(activity);
+            if (mInBackground) {
+                mInBackground = false;
+                sInstance.invalidate();
+            }
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+            if (mStarted.remove(activity) && mStarted.isEmpty() && ! activity.isChangingConfigurations()) {
+                mInBackground = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  Observable state of permissions, instead of checking them again in every onStart(). <br><br>
+ *
+ *  A subscriber watches a {@link PermissionSet} and is called with the changed permissions only when the
+ *  granted, denied or never ask again state of one of them changes. It is called once with all of its
+ *  permissions when it subscribes. <br><br>
+ *
+ *  Whenever the permission state may have changed (see {@link PermissionStateCache}), one check pass over the
+ *  permissions of all the subscribers is posted to the main thread and the result is compared to the last snapshot.
+ *  The invalidations until the pass runs, e.g. of the activities started in the same main loop turn, are coalesced
+ *  into it. If nothing changed, no subscriber is called. Without subscribers the monitor does not listen to the
+ *  cache and no pass runs. <br><br>
+ *
+ *  Subscriptions are removed when their activity is destroyed. <br><br>
+ *
+ *    <strong>Usage:</strong> <br>
+ *
+ *    <pre>{@code
+ *
+ *    PermissionStateMonitor.getInstance().subscribe(this, permissions, new PermissionStateMonitor.Listener() {
+ *          public void onPermissionStateChanged(PermissionStateSnapshot state, PermissionSet changed) {
+ *              // Update the views of the changed permissions.
+ *          }
+ *    });
+ *  } </pre><br><br>
+ *
+ *  <b> The monitor is confined to the main thread. </b>
+ */
+
+public final class PermissionStateMonitor {
+
+    private static final PermissionStateMonitor sInstance = new PermissionStateMonitor();
+
+    private final List<Subscription> mSubscriptions = new ArrayList<>();
+    private final AtomicBoolean mRefreshScheduled = new AtomicBoolean();
+
+    private PermissionStateSnapshot mSnapshot = PermissionStateSnapshot.EMPTY;
+    private long mKnownNeverAskAgain;
+    private Handler mHandler;
+    private boolean mLifecycleRegistered;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    private final PermissionStateCache.InvalidationListener mInvalidationListener = new PermissionStateCache.InvalidationListener() {
+        @Override
+        public void onInvalidated() {
+            scheduleRefresh();
+        }
+    };
+
+    private PermissionStateMonitor() {
+    }
+
+    public static PermissionStateMonitor getInstance() {
+        return sInstance;
+    }
+
+    public interface Listener {
+        /**
+         * @param state     state of all the watched permissions
+         * @param changed   permissions of this subscriber whose state changed
+         */
+        void onPermissionStateChanged(PermissionStateSnapshot state, PermissionSet changed);
+    }
+
+    /**
+     * Watches the permissions until the activity is destroyed or {@link Subscription#unsubscribe()} is called.
+     * The listener is called immediately with the current state.
+     */
+    public Subscription subscribe(@NonNull Activity activity, @NonNull PermissionSet permissions, @NonNull Listener listener) {
+        registerLifecycle(activity);
+
+        Subscription subscription = new Subscription(activity, permissions.mask(), listener);
+        if (mSubscriptions.isEmpty()) {
+            PermissionStateCache.getInstance().addInvalidationListener(mInvalidationListener);
+        }
+        mSubscriptions.add(subscription);
+
+        long unchecked = subscription.mMask & ~mSnapshot.checkedMask();
+        if (unchecked != 0L) {
+            mSnapshot = check(activity, unchecked, mSnapshot);
+        }
+
+        listener.onPermissionStateChanged(mSnapshot, permissions);
+        return subscription;
+    }
+
+    public PermissionStateSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Remembers the permissions which a permission result reported as never ask again. The platform can not be
+     * asked for it, a permission which was never requested looks the same. The answers of earlier processes
+     * come from {@link PermissionJournal}.
+     */
+    void onPermissionsDenied(long denied, long neverAskAgain) {
+        mKnownNeverAskAgain = (mKnownNeverAskAgain & ~denied) | neverAskAgain;
+    }
+
+    /**
+     * Checks the watched permissions once and calls the subscribers whose permissions changed.
+     */
+    void refresh() {
+        mRefreshScheduled.set(false);
+        if (mSubscriptions.isEmpty()) {
+            return;
+        }
+
+        long watched = 0L;
+        for (int i = 0, size = mSubscriptions.size(); i < size; i++) {
+            watched |= mSubscriptions.get(i).mMask;
+        }
+
+        PermissionStateSnapshot previous = mSnapshot;
+        PermissionStateSnapshot current = check(mSubscriptions.get(0).mActivity, watched, PermissionStateSnapshot.EMPTY);
+        mSnapshot = current;
+
+        if (current.diff(previous, watched) == 0L) {
+            return;
+        }
+
+        Subscription[] subscriptions = mSubscriptions.toArray(new Subscription[mSubscriptions.size()]);
+        for (Subscription subscription : subscriptions) {
+            long changed = current.diff(previous, subscription.mMask);
+            if (changed != 0L && subscription.mActive) {
+                subscription.mListener.onPermissionStateChanged(current, PermissionSet.fromMask(changed));
+            }
+        }
+    }
+
+    /**
+     * Checks the permissions of the mask and returns the base snapshot with their new state. A check of them
+     * which was started ahead by {@link PermissionPrewarm} is used instead of checking them again.
+     */
+    private PermissionStateSnapshot check(Activity activity, long mask, PermissionStateSnapshot base) {
+        PermissionPrewarm.await(mask);
+        long granted = PermissionHelper.grantedMask(activity, mask);
+        long denied = 0L;
+
+        for (long remaining = mask & ~granted; remaining != 0L; remaining &= remaining - 1) {
+            int slot = Long.numberOfTrailingZeros(remaining);
+            if (PermissionHelper.shouldShowPermissionExplanation(activity, PermissionRegistry.nameOf(slot))) {
+                denied |= PermissionSet.bit(slot);
+            }
+        }
+
+        mKnownNeverAskAgain &= ~(granted | denied);
+        long neverAskAgain = mask & ~(granted | denied)
+                & (mKnownNeverAskAgain | PermissionJournal.getInstance(activity).getNeverAskAgainMask());
+
+        return new PermissionStateSnapshot(
+                base.checkedMask() | mask,
+                (base.grantedMask() & ~mask) | granted,
+                (base.deniedMask() & ~mask) | denied,
+                (base.neverAskAgainMask() & ~mask) | neverAskAgain);
+    }
+
+    private void unsubscribe(Subscription subscription) {
+        subscription.mActive = false;
+        mSubscriptions.remove(subscription);
+        onSubscriptionsRemoved();
+    }
+
+    /**
+     * Without subscribers no pass runs, so the snapshot would become stale.
+     */
+    private void onSubscriptionsRemoved() {
+        if (! mSubscriptions.isEmpty()) {
+            return;
+        }
+
+        PermissionStateCache.getInstance().removeInvalidationListener(mInvalidationListener);
+        mSnapshot = PermissionStateSnapshot.EMPTY;
+        if (mRefreshScheduled.getAndSet(false)) {
+            getHandler().removeCallbacks(mRefresh);
+        }
+    }
+
+    /**
+     * Posts one pass, unless one is already posted and has not run yet.
+     */
+    private void scheduleRefresh() {
+        if (mRefreshScheduled.compareAndSet(false, true)) {
+            getHandler().post(mRefresh);
+        }
+    }
+
+    @VisibleForTesting
+    boolean isRefreshScheduled() {
+        return mRefreshScheduled.get();
+    }
+
+    private synchronized Handler getHandler() {
+        if (mHandler == null) {
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+        return mHandler;
+    }
+
+    private void registerLifecycle(Activity activity) {
+        if (mLifecycleRegistered) {
+            return;
+        }
+
+        Application application = activity.getApplication();
+        if (application != null) {
+            application.registerActivityLifecycleCallbacks(new ActivityLifecycleAdapter() {
+                @Override
+                public void onActivityDestroyed(Activity activity) {
+                    onDestroyed(activity);
+                }
+            });
+            mLifecycleRegistered = true;
+        }
+    }
+
+    /**
+     * Removes the subscriptions of a destroyed activity.
+     */
+    void onDestroyed(Activity activity) {
+        for (int i = mSubscriptions.size() - 1; i >= 0; i--) {
+            Subscription subscription = mSubscriptions.get(i);
+            if (subscription.mActivity == activity) {
+                subscription.mActive = false;
+                mSubscriptions.remove(i);
+            }
+        }
+        onSubscriptionsRemoved();
+    }
+
+    public static final class Subscription {
+
+        final Activity mActivity;
+        final long mMask;
+        final Listener mListener;
+        boolean mActive = true;
+
+        Subscription(Activity activity, long mask, Listener listener) {
+            mActivity = activity;
+            mMask = mask;
+            mListener = listener;
+        }
+
+        public void unsubscribe() {
+            sInstance.unsubscribe(this);
+        }
+    }
+}
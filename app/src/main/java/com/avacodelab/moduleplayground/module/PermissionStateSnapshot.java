@@ -0,0 +1,92 @@
+package com.avacodelab.moduleplayground.module;
+
+/**
+ *  Immutable state of the permissions watched by {@link PermissionStateMonitor}. <br><br>
+ *
+ *  A permission which is not granted is denied if the rationale should be shown, never ask again if a
+ *  permission result reported it so, and not requested otherwise.
+ */
+
+public final class PermissionStateSnapshot {
+
+    public static final int STATE_NOT_REQUESTED = 0;
+    public static final int STATE_GRANTED = 1;
+    public static final int STATE_DENIED = 2;
+    public static final int STATE_NEVER_ASK_AGAIN = 3;
+
+    static final PermissionStateSnapshot EMPTY = new PermissionStateSnapshot(0L, 0L, 0L, 0L);
+
+    private final long mChecked;
+    private final long mGranted;
+    private final long mDenied;
+    private final long mNeverAskAgain;
+
+    PermissionStateSnapshot(long checked, long granted, long denied, long neverAskAgain) {
+        mChecked = checked;
+        mGranted = granted;
+        mDenied = denied;
+        mNeverAskAgain = neverAskAgain;
+    }
+
+    /**
+     * Returns one of the STATE constants. Permissions which are not watched are {@link #STATE_NOT_REQUESTED}.
+     */
+    public int getState(String permission) {
+        int slot = PermissionRegistry.findSlot(permission);
+        return slot < 0 ? STATE_NOT_REQUESTED : getState(slot);
+    }
+
+    int getState(int slot) {
+        long bit = PermissionSet.bit(slot);
+        if ((mGranted & bit) != 0L) {
+            return STATE_GRANTED;
+        } else if ((mDenied & bit) != 0L) {
+            return STATE_DENIED;
+        } else if ((mNeverAskAgain & bit) != 0L) {
+            return STATE_NEVER_ASK_AGAIN;
+        }
+        return STATE_NOT_REQUESTED;
+    }
+
+    public PermissionSet getGranted() {
+        return PermissionSet.fromMask(mGranted);
+    }
+
+    public PermissionSet getDenied() {
+        return PermissionSet.fromMask(mDenied);
+    }
+
+    public PermissionSet getNeverAskAgain() {
+        return PermissionSet.fromMask(mNeverAskAgain);
+    }
+
+    long checkedMask() {
+        return mChecked;
+    }
+
+    long grantedMask() {
+        return mGranted;
+    }
+
+    long deniedMask() {
+        return mDenied;
+    }
+
+    long neverAskAgainMask() {
+        return mNeverAskAgain;
+    }
+
+    /**
+     * Returns the permissions of the mask whose state differs from the other snapshot.
+     */
+    long diff(PermissionStateSnapshot other, long mask) {
+        return ((mGranted ^ other.mGranted) | (mDenied ^ other.mDenied) | (mNeverAskAgain ^ other.mNeverAskAgain)) & mask;
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionStateSnapshot{granted=" + getGranted()
+                + ", denied=" + getDenied()
+                + ", neverAskAgain=" + getNeverAskAgain() + "}";
+    }
+}
@@ -0,0 +1,96 @@
+package com.avacodelab.moduleplayground;
+
+import android.app.Activity;
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Warm-ups run on a queue which is drained by {@link #runQueued()}.
+ */
+public class ModuleRegistryTest {
+
+    static volatile boolean sLazyWarmUpLoaded;
+    static int sWarmUpCount;
+
+    private final List<Runnable> mQueue = new ArrayList<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+    };
+
+    private ModuleRegistry mRegistry;
+
+    @Before
+    public void setUp() throws Exception {
+        sWarmUpCount = 0;
+        mRegistry = new ModuleRegistry(Arrays.asList(
+                new ModuleEntry("Lazy", "com.example.LazyActivity", LazyWarmUp.class.getName()),
+                new ModuleEntry("Plain", "com.example.PlainActivity", null),
+                new ModuleEntry("Broken", "com.example.BrokenActivity", "com.example.MissingWarmUp")));
+    }
+
+    @Test
+    public void warmUps_runOnceAfterFirstFrame() throws Exception {
+        mRegistry.onLauncherCreated();
+        assertEquals(3, mRegistry.getModules().size());
+        assertTrue(mQueue.isEmpty());
+
+        Activity activity = new Activity();
+        mRegistry.onLauncherFirstFrame(activity, mExecutor);
+        mRegistry.onLauncherFirstFrame(activity, mExecutor);
+        assertEquals(2, mQueue.size());
+        assertFalse(sLazyWarmUpLoaded);
+
+        runQueued();
+
+        assertEquals(1, sWarmUpCount);
+        assertTrue(sLazyWarmUpLoaded);
+        assertTrue(mRegistry.getStartupTiming().isWarmedUp("Lazy"));
+        assertFalse(mRegistry.getStartupTiming().isWarmedUp("Broken"));
+        assertEquals(StartupTiming.NOT_MEASURED, mRegistry.getStartupTiming().getWarmUpMillis("Plain"));
+    }
+
+    @Test
+    public void timing_isMeasuredFromLauncherCreation() throws Exception {
+        assertEquals(StartupTiming.NOT_MEASURED, mRegistry.getStartupTiming().getTimeToFirstFrameMillis());
+
+        // Without the creation mark nothing is measured and nothing is warmed up.
+        mRegistry.onLauncherFirstFrame(new Activity(), mExecutor);
+        assertTrue(mQueue.isEmpty());
+
+        mRegistry.onLauncherCreated();
+        Thread.sleep(20);
+        mRegistry.onLauncherFirstFrame(new Activity(), mExecutor);
+
+        assertTrue(mRegistry.getStartupTiming().getTimeToFirstFrameMillis() >= 20);
+    }
+
+    private void runQueued() {
+        while (! mQueue.isEmpty()) {
+            mQueue.remove(0).run();
+        }
+    }
+
+    public static class LazyWarmUp implements ModuleWarmUp {
+
+        static {
+            sLazyWarmUpLoaded = true;
+        }
+
+        @Override
+        public void warmUp(Context context) {
+            sWarmUpCount++;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *  {@link PermissionBackend} which keeps the permission states in memory. <br><br>
+ *
+ *  Permissions are denied until they are granted with {@link #grant(String)}. Requests are only recorded,
+ *  the result must be delivered with {@link PermissionHelper#onRequestPermissionsResult(int, String[], int[])}.
+ *  {@link #answer(String[])} builds the grantResults of the current states. <br><br>
+ *
+ *  Can be used from multiple threads.
+ */
+
+public final class FakePermissionBackend implements PermissionBackend {
+
+    public static final int STATE_DENIED = 0;
+    public static final int STATE_GRANTED = 1;
+    public static final int STATE_DENIED_ONCE = 2;
+    public static final int STATE_NEVER_ASK_AGAIN = 3;
+
+    private final ConcurrentHashMap<String, Integer> mStates = new ConcurrentHashMap<>();
+    private final AtomicInteger mCheckCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    private volatile int mSdkInt = Build.VERSION_CODES.M;
+    private volatile String[] mLastRequestedPermissions;
+    private volatile int mLastRequestCode;
+    private volatile WeakReference<Activity> mLastRequestActivity = new WeakReference<>(null);
+
+    public void setState(String permission, int state) {
+        mStates.put(permission, state);
+    }
+
+    public int getState(String permission) {
+        Integer state = mStates.get(permission);
+        return state != null ? state : STATE_DENIED;
+    }
+
+    public void grant(String permission) {
+        setState(permission, STATE_GRANTED);
+    }
+
+    public void setSdkInt(int sdkInt) {
+        mSdkInt = sdkInt;
+    }
+
+    /**
+     * Returns the grantResults of the given permissions for their current states.
+     */
+    public int[] answer(String[] permissions) {
+        int[] grantResults = new int[permissions.length];
+        for (int i = 0; i < permissions.length; i++) {
+            grantResults[i] = getState(permissions[i]) == STATE_GRANTED
+                    ? PackageManager.PERMISSION_GRANTED
+                    : PackageManager.PERMISSION_DENIED;
+        }
+        return grantResults;
+    }
+
+    public int getCheckCount() {
+        return mCheckCount.get();
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public String[] getLastRequestedPermissions() {
+        return mLastRequestedPermissions;
+    }
+
+    public int getLastRequestCode() {
+        return mLastRequestCode;
+    }
+
+    /**
+     * Returns the activity which showed the last dialog, or null if it is garbage collected.
+     */
+    public Activity getLastRequestActivity() {
+        return mLastRequestActivity.get();
+    }
+
+    @Override
+    public int checkSelfPermission(Context context, String permission) {
+        mCheckCount.incrementAndGet();
+        return getState(permission) == STATE_GRANTED
+                ? PackageManager.PERMISSION_GRANTED
+                : PackageManager.PERMISSION_DENIED;
+    }
+
+    @Override
+    public void requestPermissions(Activity activity, String[] permissions, int requestCode) {
+        mLastRequestedPermissions = permissions;
+        mLastRequestCode = requestCode;
+        mLastRequestActivity = new WeakReference<>(activity);
+        mRequestCount.incrementAndGet();
+    }
+
+    @Override
+    public boolean shouldShowRequestPermissionRationale(Activity activity, String permission) {
+        return getState(permission) == STATE_DENIED_ONCE;
+    }
+
+    @Override
+    public int getSdkInt() {
+        return mSdkInt;
+    }
+}
@@ -0,0 +1,40 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.content.pm.PermissionInfo;
+
+import java.util.Arrays;
+
+/**
+ *  Builds a {@link PermissionManifest.Table} of the given permissions for {@link PermissionManifest#setTable(PermissionManifest.Table)},
+ *  so a test does not depend on the manifest of the variant under test. <br><br>
+ *
+ *  The permissions are declared for every SDK level. The dangerous permissions are in their platform groups.
+ */
+
+public final class FakePermissionManifest {
+
+    private FakePermissionManifest() {
+    }
+
+    /**
+     * @param permissions   the declared permissions, they are dangerous unless they are given as normal too
+     * @param normal        the permissions which are granted at install
+     */
+    static PermissionManifest.Table declaring(String[] permissions, String... normal) {
+        int count = permissions.length;
+        int[] protectionLevels = new int[count];
+        int[] minSdkVersions = new int[count];
+        int[] maxSdkVersions = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            protectionLevels[i] = Arrays.asList(normal).contains(permissions[i])
+                    ? PermissionInfo.PROTECTION_NORMAL
+                    : PermissionInfo.PROTECTION_DANGEROUS;
+            minSdkVersions[i] = 1;
+            maxSdkVersions[i] = Integer.MAX_VALUE;
+        }
+
+        return new PermissionManifest.Table(permissions.clone(), protectionLevels, minSdkVersions, maxSdkVersions,
+                ManifestPermissionTable.GROUPED_NAMES, ManifestPermissionTable.GROUPS);
+    }
+}
@@ -0,0 +1,184 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks permissions from several threads against {@link FakePermissionBackend} while another thread changes
+ * the permission states and invalidates the cache.
+ */
+public class PermissionConcurrencyTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+
+    private static final String[] PERMISSIONS = {CAMERA, READ_CONTACTS, ACCESS_FINE_LOCATION};
+
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 20000;
+
+    private FakePermissionBackend mBackend;
+    private Context mContext;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+        mContext = new Activity();
+        mExecutor = Executors.newFixedThreadPool(THREADS + 1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void concurrentChecks_matchBackendAfterChanges() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<Integer>> checkers = new ArrayList<>();
+
+        for (int t = 0; t < THREADS; t++) {
+            final int seed = t;
+            checkers.add(mExecutor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    Random random = new Random(seed);
+                    int granted = 0;
+                    start.await();
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        if (random.nextBoolean()) {
+                            granted += PermissionHelper.isPermissionGranted(mContext, PERMISSIONS) ? 1 : 0;
+                        } else {
+                            granted += PermissionHelper.isPermissionGranted(mContext, PERMISSIONS[random.nextInt(PERMISSIONS.length)]) ? 1 : 0;
+                        }
+                    }
+                    return granted;
+                }
+            }));
+        }
+
+        Future<?> mutator = mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Random random = new Random(42);
+                start.await();
+                while (running.get()) {
+                    String permission = PERMISSIONS[random.nextInt(PERMISSIONS.length)];
+                    mBackend.setState(permission, random.nextBoolean() ? FakePermissionBackend.STATE_GRANTED : FakePermissionBackend.STATE_DENIED);
+                    PermissionStateCache.getInstance().invalidate();
+                }
+                return null;
+            }
+        });
+
+        start.countDown();
+        for (Future<Integer> checker : checkers) {
+            checker.get(30, TimeUnit.SECONDS);
+        }
+        running.set(false);
+        mutator.get(30, TimeUnit.SECONDS);
+
+        // The last invalidation happened after the last state change, so no stale result may be cached.
+        for (String permission : PERMISSIONS) {
+            assertEquals(permission, mBackend.getState(permission) == FakePermissionBackend.STATE_GRANTED,
+                    PermissionHelper.isPermissionGranted(mContext, permission));
+        }
+    }
+
+    @Test
+    public void cachedChecks_doNotReachBackend() throws Exception {
+        mBackend.grant(CAMERA);
+        PermissionHelper.isPermissionGranted(mContext, PERMISSIONS);
+        final int warmCheckCount = mBackend.getCheckCount();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> checkers = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            checkers.add(mExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    start.await();
+                    boolean granted = true;
+                    for (int i = 0; i < ITERATIONS; i++) {
+                        granted &= PermissionHelper.isPermissionGranted(mContext, CAMERA);
+                        granted &= ! PermissionHelper.isPermissionGranted(mContext, READ_CONTACTS);
+                    }
+                    return granted;
+                }
+            }));
+        }
+
+        start.countDown();
+        for (Future<Boolean> checker : checkers) {
+            assertTrue(checker.get(30, TimeUnit.SECONDS));
+        }
+        assertEquals(warmCheckCount, mBackend.getCheckCount());
+    }
+
+    @Test
+    public void staleCheckResult_isDropped() throws Exception {
+        int slot = PermissionRegistry.slotOf(CAMERA);
+        PermissionStateCache cache = PermissionStateCache.getInstance();
+
+        int epoch = cache.snapshot().mEpoch;
+        cache.invalidate();
+        cache.put(slot, true, epoch);
+
+        assertEquals(PermissionStateCache.STATE_UNKNOWN, cache.snapshot().get(slot));
+    }
+
+    @Test
+    public void concurrentRegistration_assignsOneSlotPerPermission() throws Exception {
+        final String[] names = {
+                "com.avacodelab.permission.CONCURRENCY_TEST_A",
+                "com.avacodelab.permission.CONCURRENCY_TEST_B",
+                "com.avacodelab.permission.CONCURRENCY_TEST_C",
+        };
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<int[]>> registrars = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            registrars.add(mExecutor.submit(new Callable<int[]>() {
+                @Override
+                public int[] call() throws Exception {
+                    start.await();
+                    int[] slots = new int[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        slots[i] = PermissionRegistry.slotOf(names[i]);
+                        assertEquals(names[i], PermissionRegistry.nameOf(slots[i]));
+                    }
+                    return slots;
+                }
+            }));
+        }
+
+        start.countDown();
+        int[] expected = registrars.get(0).get(30, TimeUnit.SECONDS);
+        for (Future<int[]> registrar : registrars) {
+            assertArrayEquals(expected, registrar.get(30, TimeUnit.SECONDS));
+        }
+    }
+}
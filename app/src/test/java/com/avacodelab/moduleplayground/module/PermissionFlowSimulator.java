@@ -0,0 +1,740 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Build;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ *  Deterministic simulation of the request flows of {@link PermissionHelper} on the JVM. <br><br>
+ *
+ *  A run is a series of sequences. Every sequence starts like a new install, with a new journal, an empty request
+ *  engine and no granted permission, and takes up to {@link #MAX_STEPS} random steps: <br>
+ *
+ *  - a request, with one of the callback kinds, a request code of a few shared ones and some of {@link #PERMISSIONS} <br>
+ *  - an answer of the showing dialog: every permission is granted, denied, or denied with never ask again from the
+ *    second ask on. Like the platform, a never ask again permission is denied without asking. <br>
+ *  - a dialog which is closed without an answer <br>
+ *  - a recreation of the activity for a configuration change <br>
+ *  - a process death while the dialog is showing, the requests come back from the saved state <br>
+ *  - a permission which is granted or revoked in the app settings. Revoking kills the process. <br><br>
+ *
+ *  Then the dialogs are answered until none is showing, and the invariants are checked: <br>
+ *
+ *  - every request is answered once, unless it was dropped by a closed dialog, a destroyed activity or a process
+ *    death. A request whose callback is the activity is not dropped by a recreation. <br>
+ *  - no permission is in two outcome lists, and the lists together are the requested permissions. <br>
+ *  - no permission is reported as granted which the platform denies. <br>
+ *  - no dialog is requested while one is showing, the platform would drop it. <br>
+ *  - no request is left in the engine. <br><br>
+ *
+ *  The random steps of a sequence depend only on its seed, so a violation is reported with the seed and the steps
+ *  and {@link #replay(long)} runs it again. The digest of a run is the same for the same seed. <br><br>
+ *
+ *  {@link PermissionFlowSimulatorTest} runs a short simulation with every build. The soak task of :benchmark runs
+ *  millions of flows and measures the allocation.
+ */
+
+public final class PermissionFlowSimulator {
+
+    static final String[] PERMISSIONS = {
+            "android.permission.CAMERA",
+            "android.permission.RECORD_AUDIO",
+            "android.permission.ACCESS_FINE_LOCATION",
+            "android.permission.ACCESS_COARSE_LOCATION",
+            "android.permission.READ_CONTACTS",
+            "android.permission.WRITE_CONTACTS",
+            "android.permission.READ_CALENDAR",
+            "android.permission.WRITE_CALENDAR",
+            "android.permission.NFC"
+    };
+
+    /** The manifest of the simulated app declares every permission of the simulation. NFC is granted at install. */
+    private static final PermissionManifest.Table MANIFEST =
+            FakePermissionManifest.declaring(PERMISSIONS, "android.permission.NFC");
+
+    static final int MAX_STEPS = 16;
+
+    private static final int MAX_PERMISSIONS_PER_REQUEST = 4;
+    private static final int SHARED_REQUEST_CODES = 3;
+    private static final int FIRST_ACTIVITY_REQUEST_CODE = 100;
+    private static final int MAX_DRAIN_DIALOGS = 64;
+    private static final int MAX_REPORTED_VIOLATIONS = 10;
+
+    private static final int STEP_REQUEST = 0;
+    private static final int STEP_ANSWER = 1;
+    private static final int STEP_CLOSE_DIALOG = 2;
+    private static final int STEP_RECREATE = 3;
+    private static final int STEP_PROCESS_DEATH = 4;
+    private static final int STEP_SETTINGS_GRANT = 5;
+    private static final int STEP_SETTINGS_REVOKE = 6;
+    private static final int STEP_DRAIN = 7;
+
+    private static final String[] STEP_NAMES = {
+            "request", "answer", "closeDialog", "recreate", "processDeath", "settingsGrant", "settingsRevoke", "drain"
+    };
+
+    /** Weights of the steps, in the order of the constants. */
+    private static final int[] STEP_WEIGHTS = {36, 36, 4, 8, 4, 6, 6};
+
+    private static final int KIND_RESULT_CALLBACK = 0;
+    private static final int KIND_OUTCOME_CALLBACK = 1;
+    private static final int KIND_FUTURE = 2;
+    private static final int KIND_PLANNED = 3;
+    private static final int KIND_ACTIVITY = 4;
+
+    private static final String[] KIND_NAMES = {"resultCallback", "outcomeCallback", "future", "planned", "activity"};
+
+    private static final PermissionRequestPlanner[] PLANNERS = {
+            PermissionRequestPlanner.allAtOnce(),
+            PermissionRequestPlanner.staged(1, true),
+            PermissionRequestPlanner.staged(1, false),
+            PermissionRequestPlanner.staged(2, true)
+    };
+
+    private static final Executor NO_FLUSH = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+        }
+    };
+
+    private final File mJournalFile;
+    private final SimulatedBackend mBackend = new SimulatedBackend();
+    private final List<Flow> mOpenFlows = new ArrayList<>();
+    private final List<String> mViolations = new ArrayList<>();
+    private final long[] mPermissionBits = new long[PERMISSIONS.length];
+
+    private long mFlowCount;
+    private long mSequenceCount;
+    private long mDialogCount;
+    private long mViolationCount;
+    private long mDigest;
+
+    private Random mRandom;
+    private long mSequenceSeed;
+    private HostActivity mActivity;
+    private PermissionHelper mHelper;
+    private int mNextActivityRequestCode;
+    private boolean mProcessDied;
+    private int[] mSteps = new int[MAX_STEPS * 2];
+    private int mStepCount;
+
+    /**
+     * @param journalFile   file of the simulated journal. It is never written, the journal keeps its answers in memory.
+     */
+    public PermissionFlowSimulator(File journalFile) {
+        mJournalFile = journalFile;
+        for (int i = 0; i < PERMISSIONS.length; i++) {
+            mPermissionBits[i] = PermissionSet.of(PERMISSIONS[i]).mask();
+        }
+    }
+
+    /**
+     * Runs sequences until the given number of flows was requested. The sequence seeds are derived from the seed.
+     */
+    public Report run(long seed, long flows) {
+        return simulate(seed, flows, false);
+    }
+
+    /**
+     * Runs the one sequence with the given seed, as reported with a violation.
+     */
+    public Report replay(long sequenceSeed) {
+        return simulate(sequenceSeed, 0L, true);
+    }
+
+    private Report simulate(long seed, long flows, boolean single) {
+        long start = System.nanoTime();
+        PermissionHelper.setBackend(mBackend);
+        PermissionManifest.setTable(MANIFEST);
+        PermissionSnapshotFile.setInstance(new PermissionSnapshotFile(null, 0, NO_FLUSH));
+        try {
+            if (single) {
+                runSequence(seed);
+            }
+            for (long sequence = 0; mFlowCount < flows; sequence++) {
+                runSequence(seed + sequence * 0x9E3779B97F4A7C15L);
+            }
+        } finally {
+            PermissionRequestEngine.getInstance().clear();
+            PermissionJournal.setInstance(null);
+            PermissionSnapshotFile.setInstance(null);
+            PermissionHelper.setBackend(null);
+            PermissionManifest.setTable(null);
+        }
+        return new Report(mFlowCount, mSequenceCount, mDialogCount, mViolationCount, mViolations,
+                System.nanoTime() - start, mDigest);
+    }
+
+    /**
+     * Runs one sequence. Every state it depends on is reset first, so a sequence of a report can be replayed alone.
+     */
+    private void runSequence(long sequenceSeed) {
+        mSequenceSeed = sequenceSeed;
+        mRandom = new Random(sequenceSeed);
+        mSequenceCount++;
+        mStepCount = 0;
+        mProcessDied = false;
+        mNextActivityRequestCode = FIRST_ACTIVITY_REQUEST_CODE;
+
+        mBackend.reset();
+        PermissionJournal journal = new PermissionJournal(mJournalFile, NO_FLUSH);
+        journal.load();
+        PermissionJournal.setInstance(journal);
+        PermissionRequestEngine.getInstance().clear();
+        PermissionStateCache.getInstance().invalidate();
+        PermissionPrewarm.clear();
+        startActivity(null);
+
+        for (int step = 0, steps = 1 + mRandom.nextInt(MAX_STEPS); step < steps; step++) {
+            runStep(nextStep());
+            settle();
+        }
+
+        drain();
+
+        for (int i = 0, size = mOpenFlows.size(); i < size; i++) {
+            Flow flow = mOpenFlows.get(i);
+            if (! flow.mDropped) {
+                violation("lost callback", flow);
+            }
+            flow.mClosed = true;
+        }
+        mOpenFlows.clear();
+
+        if (PermissionRequestEngine.getInstance().saveState(mActivity) != null) {
+            violation("request left in the engine", null);
+        }
+    }
+
+    private int nextStep() {
+        int total = 0;
+        for (int weight : STEP_WEIGHTS) {
+            total += weight;
+        }
+
+        int choice = mRandom.nextInt(total);
+        int step = 0;
+        while (choice >= STEP_WEIGHTS[step]) {
+            choice -= STEP_WEIGHTS[step++];
+        }
+
+        // Nothing to answer, or the settings are not reachable while a dialog is showing.
+        boolean dialog = mBackend.isDialogShowing();
+        if (! dialog && (step == STEP_ANSWER || step == STEP_CLOSE_DIALOG || step == STEP_PROCESS_DEATH)) {
+            return STEP_REQUEST;
+        }
+        if (dialog && (step == STEP_SETTINGS_GRANT || step == STEP_SETTINGS_REVOKE)) {
+            return STEP_ANSWER;
+        }
+        return step;
+    }
+
+    private void runStep(int step) {
+        recordStep(step);
+        switch (step) {
+            case STEP_REQUEST:
+                request();
+                break;
+            case STEP_ANSWER:
+                answer();
+                break;
+            case STEP_CLOSE_DIALOG:
+                closeDialog();
+                break;
+            case STEP_RECREATE:
+                recreate();
+                break;
+            case STEP_PROCESS_DEATH:
+                killProcess();
+                break;
+            case STEP_SETTINGS_GRANT:
+                grantInSettings();
+                break;
+            case STEP_SETTINGS_REVOKE:
+                revokeInSettings();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown step " + step);
+        }
+    }
+
+    private void request() {
+        long mask = 0L;
+        for (int i = 0, count = 1 + mRandom.nextInt(MAX_PERMISSIONS_PER_REQUEST); i < count; i++) {
+            mask |= mPermissionBits[mRandom.nextInt(mPermissionBits.length)];
+        }
+        PermissionSet permissions = PermissionSet.fromMask(mask);
+
+        int kind = mRandom.nextInt(KIND_NAMES.length);
+        int requestCode = kind == KIND_ACTIVITY ? mNextActivityRequestCode++ : 1 + mRandom.nextInt(SHARED_REQUEST_CODES);
+        Flow flow = new Flow(kind, requestCode, mask);
+        mOpenFlows.add(flow);
+        mFlowCount++;
+
+        switch (kind) {
+            case KIND_RESULT_CALLBACK:
+                mHelper.checkDeviceAndRequestPermissions(requestCode, permissions, (PermissionHelper.PermissionResultCallback) flow);
+                break;
+            case KIND_OUTCOME_CALLBACK:
+                mHelper.checkDeviceAndRequestPermissions(requestCode, permissions, (PermissionHelper.PermissionOutcomeCallback) flow);
+                break;
+            case KIND_FUTURE:
+                flow.mFuture = mHelper.checkDeviceAndRequestPermissionsAsync(requestCode, permissions);
+                break;
+            case KIND_PLANNED:
+                mHelper.checkDeviceAndRequestPermissions(requestCode, permissions, PLANNERS[mRandom.nextInt(PLANNERS.length)],
+                        (PermissionHelper.PermissionOutcomeCallback) flow);
+                break;
+            default:
+                mHelper.checkDeviceAndRequestPermissions(requestCode, permissions, (PermissionHelper.PermissionOutcomeCallback) mActivity);
+                break;
+        }
+    }
+
+    /**
+     * The user answers every permission of the dialog.
+     */
+    private void answer() {
+        String[] permissions = mBackend.mDialogPermissions;
+        int requestCode = mBackend.mDialogRequestCode;
+        mBackend.closeDialog();
+        mDialogCount++;
+
+        for (String permission : permissions) {
+            int state = mBackend.mStates.getState(permission);
+            if (state == FakePermissionBackend.STATE_NEVER_ASK_AGAIN || state == FakePermissionBackend.STATE_GRANTED) {
+                continue;
+            }
+
+            int choice = mRandom.nextInt(100);
+            if (choice < 55) {
+                mBackend.mStates.setState(permission, FakePermissionBackend.STATE_GRANTED);
+            } else if (choice < 85 || state != FakePermissionBackend.STATE_DENIED_ONCE) {
+                mBackend.mStates.setState(permission, FakePermissionBackend.STATE_DENIED_ONCE);
+            } else {
+                mBackend.mStates.setState(permission, FakePermissionBackend.STATE_NEVER_ASK_AGAIN);
+            }
+        }
+
+        mHelper.onRequestPermissionsResult(requestCode, permissions, mBackend.mStates.answer(permissions));
+    }
+
+    /**
+     * The dialog is closed without an answer, e.g. by another dialog. Every open request may be dropped.
+     */
+    private void closeDialog() {
+        int requestCode = mBackend.mDialogRequestCode;
+        mBackend.closeDialog();
+        dropOpenFlows(false);
+        mHelper.onRequestPermissionsResult(requestCode, new String[0], new int[0]);
+    }
+
+    /**
+     * The activity is recreated for a configuration change. Only the requests with the activity as callback survive.
+     */
+    private void recreate() {
+        dropOpenFlows(true);
+        mActivity.mChangingConfigurations = true;
+        PermissionRequestEngine.getInstance().onActivityDestroyed(mActivity);
+        startActivity(null);
+    }
+
+    /**
+     * The process is killed in the background and the activity is restored from its saved state. The dialog stays.
+     */
+    private void killProcess() {
+        PermissionRequestEngine.SavedState state = PermissionRequestEngine.getInstance().saveState(mActivity);
+
+        for (int i = mOpenFlows.size() - 1; i >= 0; i--) {
+            Flow flow = mOpenFlows.get(i);
+            if (flow.mKind != KIND_ACTIVITY) {
+                flow.mDropped = true;
+                flow.mClosed = true;
+                mOpenFlows.remove(i);
+            }
+        }
+        mProcessDied = true;
+
+        PermissionRequestEngine.getInstance().clear();
+        PermissionStateCache.getInstance().invalidate();
+        PermissionPrewarm.clear();
+        startActivity(state);
+    }
+
+    private void grantInSettings() {
+        String permission = PERMISSIONS[mRandom.nextInt(PERMISSIONS.length)];
+        mBackend.mStates.grant(permission);
+        PermissionStateCache.getInstance().invalidate();
+    }
+
+    /**
+     * Revoking a permission in the app settings kills the process of the app.
+     */
+    private void revokeInSettings() {
+        String permission = PERMISSIONS[mRandom.nextInt(PERMISSIONS.length)];
+        if (mBackend.mStates.getState(permission) == FakePermissionBackend.STATE_GRANTED) {
+            mBackend.mStates.setState(permission, FakePermissionBackend.STATE_DENIED_ONCE);
+            killProcess();
+        }
+    }
+
+    /**
+     * Answers the dialogs until none is showing.
+     */
+    private void drain() {
+        for (int dialogs = 0; mBackend.isDialogShowing(); dialogs++) {
+            if (dialogs == MAX_DRAIN_DIALOGS) {
+                violation("dialogs do not end", null);
+                mBackend.closeDialog();
+                return;
+            }
+            recordStep(STEP_DRAIN);
+            answer();
+            settle();
+        }
+    }
+
+    private void startActivity(PermissionRequestEngine.SavedState state) {
+        mActivity = new HostActivity(this);
+        if (state != null) {
+            PermissionRequestEngine.getInstance().restoreState(mActivity, state);
+        } else {
+            PermissionRequestEngine.getInstance().onActivityCreated(mActivity, null);
+        }
+        mHelper = new PermissionHelper(mActivity);
+    }
+
+    /**
+     * Marks the open requests as droppable. The requests with the activity as callback survive a recreation.
+     */
+    private void dropOpenFlows(boolean recreation) {
+        for (int i = 0, size = mOpenFlows.size(); i < size; i++) {
+            Flow flow = mOpenFlows.get(i);
+            if (! recreation || flow.mKind != KIND_ACTIVITY) {
+                flow.mDropped = true;
+            }
+        }
+    }
+
+    /**
+     * Checks and closes the requests which were answered by the last step.
+     */
+    private void settle() {
+        for (int i = mOpenFlows.size() - 1; i >= 0; i--) {
+            Flow flow = mOpenFlows.get(i);
+
+            if (flow.mFuture != null && flow.mFuture.isDone()) {
+                if (flow.mFuture.isCancelled()) {
+                    if (! flow.mDropped) {
+                        violation("future cancelled without a closed dialog or a destroyed activity", flow);
+                    }
+                    flow.mClosed = true;
+                    mOpenFlows.remove(i);
+                    continue;
+                }
+                PermissionOutcome outcome = getDone(flow.mFuture);
+                flow.deliver(outcome.getRequestCode(), outcome.getGranted().mask(), outcome.getDenied().mask(),
+                        outcome.getNeverAskAgain().mask());
+            }
+
+            if (flow.mDelivered) {
+                String failure = checkOutcome(flow.mRequested, flow.mGranted, flow.mDenied, flow.mNeverAskAgain,
+                        mBackend.grantedMask());
+                if (failure == null && flow.mDeliveredRequestCode != flow.mRequestCode) {
+                    failure = "outcome with request code " + flow.mDeliveredRequestCode;
+                }
+                if (failure != null) {
+                    violation(failure, flow);
+                }
+                mDigest = mDigest * 31L + flow.mRequestCode;
+                mDigest = mDigest * 31L + (flow.mGranted ^ flow.mDenied * 7L ^ flow.mNeverAskAgain * 13L);
+                flow.mClosed = true;
+                mOpenFlows.remove(i);
+            }
+        }
+    }
+
+    private static PermissionOutcome getDone(PermissionFuture<PermissionOutcome> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Request future failed", e);
+        }
+    }
+
+    /**
+     * Returns what is wrong with an outcome, or null if nothing is.
+     *
+     * @param platformGranted   permissions which the platform grants at delivery
+     */
+    static String checkOutcome(long requested, long granted, long denied, long neverAskAgain, long platformGranted) {
+        if ((granted & denied) != 0L || (granted & neverAskAgain) != 0L || (denied & neverAskAgain) != 0L) {
+            return "permission in two outcome lists";
+        }
+        if ((granted | denied | neverAskAgain) != requested) {
+            return "outcome lists are not the requested permissions";
+        }
+        if ((granted & ~platformGranted) != 0L) {
+            return "permission reported as granted which the platform denies";
+        }
+        return null;
+    }
+
+    /**
+     * Delivers an outcome which the activity received to the request with its request code.
+     */
+    private void onActivityOutcome(PermissionOutcome outcome) {
+        for (int i = 0, size = mOpenFlows.size(); i < size; i++) {
+            Flow flow = mOpenFlows.get(i);
+            if (flow.mKind == KIND_ACTIVITY && flow.mRequestCode == outcome.getRequestCode()) {
+                flow.onPermissionOutcome(outcome);
+                return;
+            }
+        }
+
+        // After a process death, the restored requests of the other callbacks are delivered to the activity.
+        if (! mProcessDied) {
+            violation("activity received an outcome for request code " + outcome.getRequestCode(), null);
+        }
+    }
+
+    private void recordStep(int step) {
+        if (mStepCount == mSteps.length) {
+            int[] steps = new int[mSteps.length * 2];
+            System.arraycopy(mSteps, 0, steps, 0, mStepCount);
+            mSteps = steps;
+        }
+        mSteps[mStepCount++] = step;
+    }
+
+    private void violation(String message, Flow flow) {
+        mViolationCount++;
+        if (mViolations.size() == MAX_REPORTED_VIOLATIONS) {
+            return;
+        }
+
+        StringBuilder builder = new StringBuilder()
+                .append("sequence ").append(Long.toHexString(mSequenceSeed)).append(": ").append(message);
+        if (flow != null) {
+            builder.append(", ").append(flow);
+        }
+        builder.append(", steps [");
+        for (int i = 0; i < mStepCount; i++) {
+            builder.append(i > 0 ? ", " : "").append(STEP_NAMES[mSteps[i]]);
+        }
+        mViolations.add(builder.append(']').toString());
+    }
+
+    /**
+     * One request and what it received. Only the callback of its kind is used.
+     */
+    private final class Flow implements PermissionHelper.PermissionResultCallback, PermissionHelper.PermissionOutcomeCallback {
+
+        final int mKind;
+        final int mRequestCode;
+        final long mRequested;
+        PermissionFuture<PermissionOutcome> mFuture;
+
+        /**
+         * May end without an answer: a closed dialog, a destroyed activity or a process death came in between. A planned
+         * request gets an outcome instead, with the unasked permissions denied.
+         */
+        boolean mDropped;
+        boolean mDelivered;
+        boolean mClosed;
+        int mDeliveredRequestCode;
+        long mGranted;
+        long mDenied;
+        long mNeverAskAgain;
+
+        Flow(int kind, int requestCode, long requested) {
+            mKind = kind;
+            mRequestCode = requestCode;
+            mRequested = requested;
+        }
+
+        @Override
+        public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+            onPartition(requestCode, mGranted, PermissionSet.of(permissionsGranted).mask(), 0L, 0L);
+        }
+
+        @Override
+        public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+            onPartition(requestCode, mDenied, 0L, PermissionSet.of(permissionsDenied).mask(), 0L);
+        }
+
+        @Override
+        public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+            onPartition(requestCode, mNeverAskAgain, 0L, 0L, PermissionSet.of(permissionsNeverAskAgain).mask());
+        }
+
+        /**
+         * The three methods of one result are called in one step. A list which was already received is a second result.
+         */
+        private void onPartition(int requestCode, long received, long granted, long denied, long neverAskAgain) {
+            if (received != 0L) {
+                violation("callback called twice", this);
+            }
+            deliver(requestCode, mGranted | granted, mDenied | denied, mNeverAskAgain | neverAskAgain);
+        }
+
+        @Override
+        public void onPermissionOutcome(PermissionOutcome outcome) {
+            if (mDelivered) {
+                violation("callback called twice", this);
+            }
+            deliver(outcome.getRequestCode(), outcome.getGranted().mask(), outcome.getDenied().mask(),
+                    outcome.getNeverAskAgain().mask());
+        }
+
+        void deliver(int requestCode, long granted, long denied, long neverAskAgain) {
+            if (mClosed) {
+                violation("callback called after the request ended", this);
+                return;
+            }
+            mDelivered = true;
+            mDeliveredRequestCode = requestCode;
+            mGranted = granted;
+            mDenied = denied;
+            mNeverAskAgain = neverAskAgain;
+        }
+
+        @Override
+        public String toString() {
+            return KIND_NAMES[mKind] + " request " + mRequestCode + " of " + PermissionSet.fromMask(mRequested)
+                    + (mDelivered ? " got granted " + PermissionSet.fromMask(mGranted) + ", denied " + PermissionSet.fromMask(mDenied)
+                    + ", never ask again " + PermissionSet.fromMask(mNeverAskAgain) : "");
+        }
+    }
+
+    /**
+     * The activity of the simulation. Requests of the activity kind have it as their callback.
+     */
+    static final class HostActivity extends Activity implements PermissionHelper.PermissionOutcomeCallback {
+
+        private final PermissionFlowSimulator mSimulator;
+        boolean mChangingConfigurations;
+
+        HostActivity(PermissionFlowSimulator simulator) {
+            mSimulator = simulator;
+        }
+
+        @Override
+        public boolean isChangingConfigurations() {
+            return mChangingConfigurations;
+        }
+
+        @Override
+        public void onPermissionOutcome(PermissionOutcome outcome) {
+            mSimulator.onActivityOutcome(outcome);
+        }
+    }
+
+    /**
+     * Platform of the simulation: the permission states of a {@link FakePermissionBackend} and at most one dialog.
+     */
+    private final class SimulatedBackend implements PermissionBackend {
+
+        FakePermissionBackend mStates = new FakePermissionBackend();
+        String[] mDialogPermissions;
+        int mDialogRequestCode;
+
+        void reset() {
+            mStates = new FakePermissionBackend();
+            closeDialog();
+        }
+
+        boolean isDialogShowing() {
+            return mDialogPermissions != null;
+        }
+
+        void closeDialog() {
+            mDialogPermissions = null;
+            mDialogRequestCode = 0;
+        }
+
+        long grantedMask() {
+            long granted = 0L;
+            for (int i = 0; i < PERMISSIONS.length; i++) {
+                if (mStates.getState(PERMISSIONS[i]) == FakePermissionBackend.STATE_GRANTED
+                        || PermissionManifest.isGrantedAtInstall(PermissionRegistry.slotOf(PERMISSIONS[i]), getSdkInt())) {
+                    granted |= mPermissionBits[i];
+                }
+            }
+            return granted;
+        }
+
+        @Override
+        public int checkSelfPermission(Context context, String permission) {
+            return mStates.checkSelfPermission(context, permission);
+        }
+
+        @Override
+        public void requestPermissions(Activity activity, String[] permissions, int requestCode) {
+            if (isDialogShowing()) {
+                violation("dialog requested while one is showing", null);
+            }
+            mDialogPermissions = permissions;
+            mDialogRequestCode = requestCode;
+        }
+
+        @Override
+        public boolean shouldShowRequestPermissionRationale(Activity activity, String permission) {
+            return mStates.shouldShowRequestPermissionRationale(activity, permission);
+        }
+
+        @Override
+        public int getSdkInt() {
+            return Build.VERSION_CODES.M;
+        }
+    }
+
+    /**
+     * Counts and violations of a run.
+     */
+    public static final class Report {
+
+        public final long mFlows;
+        public final long mSequences;
+        public final long mDialogs;
+        public final long mViolationCount;
+        public final List<String> mViolations;
+        public final long mElapsedNanos;
+        public final long mDigest;
+
+        Report(long flows, long sequences, long dialogs, long violationCount, List<String> violations,
+               long elapsedNanos, long digest) {
+            mFlows = flows;
+            mSequences = sequences;
+            mDialogs = dialogs;
+            mViolationCount = violationCount;
+            mViolations = new ArrayList<>(violations);
+            mElapsedNanos = elapsedNanos;
+            mDigest = digest;
+        }
+
+        public double flowsPerSecond() {
+            return mFlows * 1e9 / Math.max(1L, mElapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder()
+                    .append(mFlows).append(" flows in ").append(mSequences).append(" sequences, ")
+                    .append(mDialogs).append(" dialogs, ")
+                    .append(String.format("%.0f flows/s", flowsPerSecond())).append(", ")
+                    .append(mViolationCount).append(" violation(s), digest ").append(Long.toHexString(mDigest));
+            for (String violation : mViolations) {
+                builder.append("\n  ").append(violation);
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.avacodelab.moduleplayground.module;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * A short run of {@link PermissionFlowSimulator}. The soak task of :benchmark runs the same simulation with millions
+ * of flows.
+ */
+public class PermissionFlowSimulatorTest {
+
+    private static final long SEED = 20171017L;
+    private static final long FLOWS = 20000L;
+
+    private File mJournalFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mJournalFile = File.createTempFile("permission_journal", null);
+        mJournalFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mJournalFile.delete();
+    }
+
+    @Test
+    public void seededFlows_keepInvariants() throws Exception {
+        PermissionFlowSimulator.Report report = new PermissionFlowSimulator(mJournalFile).run(SEED, FLOWS);
+
+        assertEquals(report.toString(), 0L, report.mViolationCount);
+        assertTrue(report.mFlows >= FLOWS);
+        assertTrue(report.mDialogs > 0L);
+    }
+
+    @Test
+    public void sameSeed_runsSameFlows() throws Exception {
+        PermissionFlowSimulator.Report first = new PermissionFlowSimulator(mJournalFile).run(SEED, FLOWS / 10);
+        PermissionFlowSimulator.Report second = new PermissionFlowSimulator(mJournalFile).run(SEED, FLOWS / 10);
+
+        assertEquals(first.mSequences, second.mSequences);
+        assertEquals(first.mDialogs, second.mDialogs);
+        assertEquals(first.mDigest, second.mDigest);
+    }
+
+    @Test
+    public void brokenOutcomes_areViolations() throws Exception {
+        long camera = PermissionSet.of("android.permission.CAMERA").mask();
+        long contacts = PermissionSet.of("android.permission.READ_CONTACTS").mask();
+        long requested = camera | contacts;
+
+        assertNull(PermissionFlowSimulator.checkOutcome(requested, camera, contacts, 0L, camera));
+        assertEquals("permission in two outcome lists",
+                PermissionFlowSimulator.checkOutcome(requested, requested, contacts, 0L, requested));
+        assertEquals("outcome lists are not the requested permissions",
+                PermissionFlowSimulator.checkOutcome(requested, camera, 0L, 0L, camera));
+        assertEquals("permission reported as granted which the platform denies",
+                PermissionFlowSimulator.checkOutcome(requested, camera, 0L, contacts, 0L));
+    }
+}
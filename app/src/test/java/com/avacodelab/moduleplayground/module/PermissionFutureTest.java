@@ -0,0 +1,159 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests are answered through {@link FakePermissionBackend}, the engine runs on the test thread.
+ */
+public class PermissionFutureTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+
+    private FakePermissionBackend mBackend;
+    private PermissionHelper mPermissionHelper;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+        PermissionRequestEngine.getInstance().clear();
+        mPermissionHelper = new PermissionHelper(new Activity());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionRequestEngine.getInstance().clear();
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void async_completesWithOutcomeOfDialog() throws Exception {
+        mBackend.grant(CAMERA);
+        PermissionFuture<PermissionOutcome> future =
+                mPermissionHelper.checkDeviceAndRequestPermissionsAsync(1, new String[] {CAMERA, READ_CONTACTS});
+
+        assertFalse(future.isDone());
+        answerDialog();
+
+        PermissionOutcome outcome = future.get();
+        assertEquals(1, outcome.getRequestCode());
+        assertTrue(outcome.isGranted(CAMERA));
+        assertTrue(outcome.getNeverAskAgain().contains(READ_CONTACTS));
+        assertFalse(outcome.isAllGranted());
+    }
+
+    @Test
+    public void async_completesImmediatelyIfGranted() throws Exception {
+        mBackend.grant(CAMERA);
+        PermissionFuture<PermissionOutcome> future = mPermissionHelper.checkDeviceAndRequestPermissionsAsync(1, new String[] {CAMERA});
+
+        assertTrue(future.isDone());
+        assertTrue(future.get().isAllGranted());
+        assertEquals(0, mBackend.getRequestCount());
+    }
+
+    @Test
+    public void requireAllGranted_failsWithDeniedException() throws Exception {
+        PermissionFuture<PermissionOutcome> future = mPermissionHelper
+                .checkDeviceAndRequestPermissionsAsync(1, new String[] {READ_CONTACTS})
+                .then(PermissionOutcome.requireAllGranted());
+        answerDialog();
+
+        try {
+            future.get();
+            fail("Expected a DeniedException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PermissionOutcome.DeniedException);
+        }
+    }
+
+    @Test
+    public void allOf_waitsForEveryFuture() throws Exception {
+        PermissionFuture<PermissionOutcome> permissions = mPermissionHelper.checkDeviceAndRequestPermissionsAsync(1, new String[] {CAMERA});
+        PermissionFuture<String> setup = PermissionFuture.completed("setup");
+        PermissionFuture<Void> all = PermissionFuture.allOf(permissions, setup);
+
+        assertFalse(all.isDone());
+        mBackend.grant(CAMERA);
+        answerDialog();
+
+        assertTrue(all.isDone());
+        assertNull(all.get());
+    }
+
+    @Test(expected = CancellationException.class)
+    public void cancel_isPassedToTransformedFuture() throws Exception {
+        PermissionFuture<PermissionOutcome> future = mPermissionHelper.checkDeviceAndRequestPermissionsAsync(1, new String[] {CAMERA});
+        PermissionFuture<PermissionOutcome> next = future.then(PermissionOutcome.requireAllGranted());
+
+        future.cancel(false);
+        answerDialog();
+
+        assertTrue(next.isCancelled());
+        next.get();
+    }
+
+    @Test
+    public void cancel_isPassedToFutureWithoutOtherConsumer() throws Exception {
+        PermissionFuture<PermissionOutcome> future = mPermissionHelper.checkDeviceAndRequestPermissionsAsync(1, new String[] {CAMERA});
+        PermissionFuture<PermissionOutcome> first = future.then(PermissionOutcome.requireAllGranted());
+        PermissionFuture<PermissionOutcome> second = future.then(PermissionOutcome.requireAllGranted());
+        PermissionFuture<Void> all = PermissionFuture.allOf(second, new PermissionFuture<String>());
+
+        first.cancel(false);
+        assertFalse(future.isDone());
+
+        all.cancel(false);
+        assertTrue(second.isCancelled());
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void cancel_isNotPassedToFutureWithCallback() throws Exception {
+        PermissionFuture<PermissionOutcome> future = mPermissionHelper.checkDeviceAndRequestPermissionsAsync(1, new String[] {CAMERA});
+        future.addCallback(new PermissionFuture.Callback<PermissionOutcome>() {
+            @Override
+            public void onSuccess(PermissionOutcome result) {
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+            }
+        });
+
+        future.then(PermissionOutcome.requireAllGranted()).cancel(false);
+
+        assertFalse(future.isDone());
+    }
+
+    @Test
+    public void cancelledQueuedRequest_isNotAsked() throws Exception {
+        PermissionFuture<PermissionOutcome> camera = mPermissionHelper.checkDeviceAndRequestPermissionsAsync(1, new String[] {CAMERA});
+        PermissionFuture<PermissionOutcome> contacts = mPermissionHelper
+                .checkDeviceAndRequestPermissionsAsync(2, new String[] {READ_CONTACTS})
+                .then(PermissionOutcome.requireAllGranted());
+
+        contacts.cancel(false);
+        mBackend.grant(CAMERA);
+        answerDialog();
+
+        assertTrue(camera.get().isAllGranted());
+        assertEquals(1, mBackend.getRequestCount());
+    }
+
+    private void answerDialog() {
+        String[] permissions = mBackend.getLastRequestedPermissions();
+        mPermissionHelper.onRequestPermissionsResult(mBackend.getLastRequestCode(), permissions, mBackend.answer(permissions));
+    }
+}
@@ -0,0 +1,121 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tasks run on a direct executor, so a batch runs inside the call which triggers it.
+ */
+public class PermissionGatedSchedulerTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private FakePermissionBackend mBackend;
+    private PermissionGatedScheduler mScheduler;
+    private final List<String> mRun = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+        mScheduler = new PermissionGatedScheduler(new Activity(), DIRECT, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mScheduler.shutdown();
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void tasksWait_untilPermissionsAreGranted() throws Exception {
+        assertTrue(mScheduler.schedule(PermissionSet.of(CAMERA), task("camera")));
+        assertTrue(mScheduler.schedule(PermissionSet.of(CAMERA, READ_CONTACTS), task("both")));
+        assertTrue(mRun.isEmpty());
+
+        mBackend.grant(CAMERA);
+        PermissionStateCache.getInstance().invalidate();
+        assertEquals(1, mRun.size());
+        assertEquals("camera", mRun.get(0));
+
+        mBackend.grant(READ_CONTACTS);
+        PermissionStateCache.getInstance().invalidate();
+        assertEquals(2, mRun.size());
+
+        PermissionGatedScheduler.Metrics metrics = mScheduler.getMetrics();
+        assertEquals(2, metrics.getRunCount());
+        assertEquals(2, metrics.getBatchCount());
+        assertEquals(0, metrics.getQueueSize());
+    }
+
+    @Test
+    public void grantedTasks_runInOneBatch() throws Exception {
+        mScheduler.schedule(PermissionSet.of(READ_CONTACTS), task("first"));
+        mScheduler.schedule(PermissionSet.of(READ_CONTACTS), task("second"));
+
+        mBackend.grant(READ_CONTACTS);
+        PermissionStateCache.getInstance().invalidate();
+
+        assertEquals(2, mRun.size());
+        assertEquals("first", mRun.get(0));
+        assertEquals(1, mScheduler.getMetrics().getBatchCount());
+    }
+
+    @Test
+    public void fullQueue_rejectsTask() throws Exception {
+        assertTrue(mScheduler.schedule(PermissionSet.of(CAMERA), task("1")));
+        assertTrue(mScheduler.schedule(PermissionSet.of(CAMERA), task("2")));
+        assertFalse(mScheduler.schedule(PermissionSet.of(CAMERA), task("3")));
+
+        assertEquals(1, mScheduler.getMetrics().getRejectedCount());
+    }
+
+    @Test
+    public void unreferencedScheduler_isCollected() throws Exception {
+        int listenerCount = PermissionStateCache.getInstance().getInvalidationListenerCount();
+        WeakReference<PermissionGatedScheduler> dropped = scheduleAndDrop();
+
+        for (int i = 0; i < 50 && dropped.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("Scheduler without shutdown is still reachable", dropped.get());
+
+        PermissionStateCache.getInstance().invalidate();
+        assertEquals(listenerCount, PermissionStateCache.getInstance().getInvalidationListenerCount());
+    }
+
+    private WeakReference<PermissionGatedScheduler> scheduleAndDrop() {
+        PermissionGatedScheduler scheduler = new PermissionGatedScheduler(new Activity(), DIRECT, 2);
+        scheduler.schedule(PermissionSet.of(CAMERA), task("dropped"));
+        return new WeakReference<>(scheduler);
+    }
+
+    private Runnable task(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRun.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,119 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * No activity may be kept by the helper or the request engine after it is destroyed.
+ * Lifecycle callbacks are not dispatched on the JVM, so the engine is notified directly.
+ */
+public class PermissionHelperRetentionTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final int REQUEST_CODE = 7;
+
+    private FakePermissionBackend mBackend;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void recreatedActivity_receivesResultAndOldOneIsCollected() throws Exception {
+        PermissionHelper[] cachedHelper = new PermissionHelper[1];
+        WeakReference<Activity> destroyed = requestAndDestroy(cachedHelper, true);
+
+        assertCollected(destroyed);
+
+        HostActivity recreated = new HostActivity();
+        PermissionRequestEngine.getInstance().onActivityCreated(recreated, null);
+        mBackend.grant(CAMERA);
+        answerDialog(new PermissionHelper(recreated));
+
+        assertEquals(REQUEST_CODE, recreated.mGrantedRequestCode);
+        assertNotNull(cachedHelper[0]);
+    }
+
+    @Test
+    public void finishedActivity_isCollectedAndResultIsDropped() throws Exception {
+        PermissionHelper[] cachedHelper = new PermissionHelper[1];
+        WeakReference<Activity> destroyed = requestAndDestroy(cachedHelper, false);
+
+        assertCollected(destroyed);
+
+        HostActivity other = new HostActivity();
+        PermissionRequestEngine.getInstance().onActivityCreated(other, null);
+        answerDialog(new PermissionHelper(other));
+
+        assertEquals(-1, other.mGrantedRequestCode);
+    }
+
+    /**
+     * Requests a permission from a new activity and destroys it. Kept in its own frame, so no local keeps the activity.
+     */
+    private WeakReference<Activity> requestAndDestroy(PermissionHelper[] cachedHelper, boolean changingConfigurations) {
+        HostActivity activity = new HostActivity();
+        PermissionHelper helper = new PermissionHelper(activity);
+        helper.checkDeviceAndRequestPermissions(REQUEST_CODE, new String[] {CAMERA}, activity);
+        assertEquals(REQUEST_CODE, mBackend.getLastRequestCode());
+
+        activity.mChangingConfigurations = changingConfigurations;
+        PermissionRequestEngine.getInstance().onActivityDestroyed(activity);
+
+        cachedHelper[0] = helper;
+        return new WeakReference<Activity>(activity);
+    }
+
+    private void answerDialog(PermissionHelper helper) {
+        String[] permissions = mBackend.getLastRequestedPermissions();
+        helper.onRequestPermissionsResult(mBackend.getLastRequestCode(), permissions, mBackend.answer(permissions));
+    }
+
+    private static void assertCollected(WeakReference<Activity> reference) throws InterruptedException {
+        for (int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("Destroyed activity is still reachable", reference.get());
+    }
+
+    public static class HostActivity extends Activity implements PermissionHelper.PermissionResultCallback {
+
+        boolean mChangingConfigurations;
+        int mGrantedRequestCode = -1;
+
+        @Override
+        public boolean isChangingConfigurations() {
+            return mChangingConfigurations;
+        }
+
+        @Override
+        public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+            mGrantedRequestCode = requestCode;
+        }
+
+        @Override
+        public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+        }
+
+        @Override
+        public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+        }
+    }
+}
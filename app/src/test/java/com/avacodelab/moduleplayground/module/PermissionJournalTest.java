@@ -0,0 +1,212 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * The journal writes to a temporary file. Its load and flushes run when {@link #runPendingTasks()} is called.
+ */
+public class PermissionJournalTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+
+    private final List<Runnable> mPendingTasks = new ArrayList<>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mPendingTasks.add(command);
+        }
+    };
+
+    private File mFile;
+    private FakePermissionBackend mBackend;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("permission_journal", null);
+        mFile.delete();
+
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+        PermissionRequestEngine.getInstance().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionJournal.setInstance(null);
+        PermissionHelper.setBackend(null);
+        mFile.delete();
+        new File(mFile.getPath() + ".lock").delete();
+    }
+
+    @Test
+    public void answers_surviveReload() throws Exception {
+        PermissionJournal journal = load();
+        journal.onAsked(bit(CAMERA) | bit(READ_CONTACTS));
+        journal.onAnswered(bit(CAMERA), 0L, bit(READ_CONTACTS));
+        runPendingTasks();
+
+        PermissionJournal reloaded = load();
+        assertEquals(PermissionJournal.RESULT_GRANTED, reloaded.getLastResult(CAMERA));
+        assertEquals(PermissionJournal.RESULT_NEVER_ASK_AGAIN, reloaded.getLastResult(READ_CONTACTS));
+        assertTrue(reloaded.getFirstAskedAt(CAMERA) > 0L);
+        assertEquals(bit(READ_CONTACTS), reloaded.getNeverAskAgainMask());
+    }
+
+    @Test
+    public void writes_areBatched() throws Exception {
+        PermissionJournal journal = load();
+        journal.onAsked(bit(CAMERA));
+        journal.onAnswered(0L, bit(CAMERA), 0L);
+        journal.onAsked(bit(READ_CONTACTS));
+
+        assertEquals(1, mPendingTasks.size());
+        assertFalse(mFile.exists());
+
+        runPendingTasks();
+        assertEquals(PermissionJournal.RESULT_DENIED, load().getLastResult(CAMERA));
+    }
+
+    @Test
+    public void recordCutOff_isIgnoredAndRepaired() throws Exception {
+        PermissionJournal journal = load();
+        journal.onAnswered(0L, 0L, bit(CAMERA));
+        runPendingTasks();
+
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        out.write(new byte[] {0, 40, 'a', 'n', 'd'});
+        out.close();
+
+        PermissionJournal reloaded = load();
+        assertEquals(PermissionJournal.RESULT_NEVER_ASK_AGAIN, reloaded.getLastResult(CAMERA));
+
+        reloaded.onAnswered(bit(READ_CONTACTS), 0L, 0L);
+        runPendingTasks();
+
+        PermissionJournal again = load();
+        assertEquals(PermissionJournal.RESULT_NEVER_ASK_AGAIN, again.getLastResult(CAMERA));
+        assertEquals(PermissionJournal.RESULT_GRANTED, again.getLastResult(READ_CONTACTS));
+    }
+
+    @Test
+    public void longJournal_isCompacted() throws Exception {
+        PermissionJournal journal = load();
+        journal.onAnswered(0L, 0L, bit(READ_CONTACTS));
+        for (int i = 0; i < 50; i++) {
+            journal.onAnswered(0L, bit(CAMERA), 0L);
+            journal.onAnswered(bit(CAMERA), 0L, 0L);
+        }
+        runPendingTasks();
+        long length = mFile.length();
+
+        PermissionJournal reloaded = load();
+        assertEquals(PermissionJournal.RESULT_GRANTED, reloaded.getLastResult(CAMERA));
+        assertTrue(mFile.length() < length);
+
+        PermissionJournal compacted = load();
+        assertEquals(PermissionJournal.RESULT_GRANTED, compacted.getLastResult(CAMERA));
+        assertEquals(PermissionJournal.RESULT_NEVER_ASK_AGAIN, compacted.getLastResult(READ_CONTACTS));
+        assertTrue(compacted.isNeverAskAgainSeen(READ_CONTACTS));
+    }
+
+    @Test
+    public void neverAskAgain_isAnsweredWithoutDialog() throws Exception {
+        PermissionJournal journal = load();
+        journal.onAnswered(0L, 0L, bit(READ_CONTACTS));
+        PermissionJournal.setInstance(journal);
+
+        final List<PermissionOutcome> outcomes = new ArrayList<>();
+        Activity activity = new Activity();
+        new PermissionHelper(activity).checkDeviceAndRequestPermissions(1, new String[] {READ_CONTACTS}, new PermissionHelper.PermissionOutcomeCallback() {
+            @Override
+            public void onPermissionOutcome(PermissionOutcome outcome) {
+                outcomes.add(outcome);
+            }
+        });
+
+        assertEquals(0, mBackend.getRequestCount());
+        assertEquals(1, outcomes.size());
+        assertEquals(PermissionSet.of(READ_CONTACTS), outcomes.get(0).getNeverAskAgain());
+        assertTrue(PermissionHelper.isPermissionDeniedPermanently(activity, READ_CONTACTS));
+    }
+
+    @Test
+    public void neverAskAgain_isNotTrustedAfterReset() throws Exception {
+        PermissionJournal journal = load();
+        journal.onAnswered(0L, 0L, bit(READ_CONTACTS) | bit(CAMERA));
+        PermissionJournal.setInstance(journal);
+
+        // Reset in the app settings, the rationale is shown again.
+        mBackend.setState(READ_CONTACTS, FakePermissionBackend.STATE_DENIED_ONCE);
+        Activity activity = new Activity();
+        assertFalse(PermissionHelper.isPermissionDeniedPermanently(activity, READ_CONTACTS));
+
+        journal.clearNeverAskAgain();
+        assertFalse(PermissionHelper.isPermissionDeniedPermanently(activity, CAMERA));
+        assertTrue(journal.isNeverAskAgainSeen(CAMERA));
+    }
+
+    @Test
+    public void journal_isEmptyUntilLoaded() throws Exception {
+        PermissionJournal journal = load();
+        journal.onAnswered(0L, 0L, bit(CAMERA));
+        runPendingTasks();
+
+        PermissionJournal loading = new PermissionJournal(mFile, mExecutor);
+        assertEquals(PermissionJournal.RESULT_NONE, loading.getLastResult(CAMERA));
+        assertEquals(0L, loading.getNeverAskAgainMask());
+
+        loading.onAnswered(bit(READ_CONTACTS), 0L, 0L);
+        assertEquals(PermissionJournal.RESULT_NONE, loading.getLastResult(READ_CONTACTS));
+
+        runPendingTasks();
+        assertEquals(PermissionJournal.RESULT_NEVER_ASK_AGAIN, loading.getLastResult(CAMERA));
+        assertEquals(PermissionJournal.RESULT_GRANTED, loading.getLastResult(READ_CONTACTS));
+        assertEquals(PermissionJournal.RESULT_GRANTED, load().getLastResult(READ_CONTACTS));
+    }
+
+    @Test
+    public void clearBeforeLoad_isAppliedToReplayedAnswers() throws Exception {
+        PermissionJournal journal = load();
+        journal.onAnswered(0L, 0L, bit(CAMERA));
+        runPendingTasks();
+
+        PermissionJournal loading = new PermissionJournal(mFile, mExecutor);
+        loading.clearNeverAskAgain();
+        runPendingTasks();
+
+        assertEquals(PermissionJournal.RESULT_NONE, loading.getLastResult(CAMERA));
+        assertEquals(0L, loading.getNeverAskAgainMask());
+        assertTrue(loading.isNeverAskAgainSeen(CAMERA));
+        assertEquals(PermissionJournal.RESULT_NONE, load().getLastResult(CAMERA));
+    }
+
+    private PermissionJournal load() {
+        PermissionJournal journal = new PermissionJournal(mFile, mExecutor);
+        runPendingTasks();
+        return journal;
+    }
+
+    private void runPendingTasks() {
+        while (! mPendingTasks.isEmpty()) {
+            mPendingTasks.remove(0).run();
+        }
+    }
+
+    private static long bit(String permission) {
+        return PermissionSet.bit(PermissionRegistry.slotOf(permission));
+    }
+}
@@ -0,0 +1,125 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The declared permission table is generated from the manifest of the app module. A permission which is not
+ * declared is reported as denied without a dialog.
+ */
+public class PermissionManifestTest {
+
+    private static final int SDK_INT = Build.VERSION_CODES.M;
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String SEND_SMS = "android.permission.SEND_SMS";
+    private static final int REQUEST_CODE = 17;
+
+    private FakePermissionBackend mBackend;
+    private PermissionOutcome mOutcome;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionManifest.setTable(null);
+        PermissionRequestEngine.getInstance().clear();
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void dangerousPermission_isCheckedAtRuntime() throws Exception {
+        int slot = PermissionRegistry.slotOf("android.permission.CAMERA");
+
+        assertEquals(PermissionInfo.PROTECTION_DANGEROUS, PermissionManifest.protectionLevelOf(slot, SDK_INT));
+        assertFalse(PermissionManifest.isGrantedAtInstall(slot, SDK_INT));
+    }
+
+    @Test
+    public void normalPermission_isGrantedAtInstall() throws Exception {
+        int slot = PermissionRegistry.slotOf("android.permission.VIBRATE");
+
+        assertTrue(PermissionManifest.isGrantedAtInstall(slot, SDK_INT));
+    }
+
+    @Test
+    public void undeclaredPermission_isNotDeclared() throws Exception {
+        int slot = PermissionRegistry.slotOf("android.permission.SEND_SMS");
+
+        assertEquals(PermissionManifest.NOT_DECLARED, PermissionManifest.protectionLevelOf(slot, SDK_INT));
+        assertFalse(PermissionManifest.isGrantedAtInstall(slot, SDK_INT));
+    }
+
+    @Test
+    public void undeclaredPermission_isDeniedWithoutDialog() throws Exception {
+        mBackend.grant(SEND_SMS);
+        request(CAMERA, SEND_SMS);
+        assertEquals(1, mBackend.getRequestCount());
+        assertArrayEquals(new String[] {CAMERA}, mBackend.getLastRequestedPermissions());
+
+        new PermissionHelper(new Activity()).onRequestPermissionsResult(REQUEST_CODE, new String[] {CAMERA},
+                new int[] {PackageManager.PERMISSION_GRANTED});
+
+        assertEquals(PermissionSet.of(CAMERA), mOutcome.getGranted());
+        assertEquals(PermissionSet.of(SEND_SMS), mOutcome.getDenied());
+    }
+
+    @Test
+    public void onlyUndeclaredPermissions_areAnsweredImmediately() throws Exception {
+        request(SEND_SMS);
+
+        assertEquals(0, mBackend.getRequestCount());
+        assertEquals(PermissionSet.of(SEND_SMS), mOutcome.getDenied());
+        assertTrue(mOutcome.getNeverAskAgain().isEmpty());
+    }
+
+    @Test
+    public void declaredPermissions_areTheDeclaredOfSdkLevel() throws Exception {
+        PermissionManifest.setTable(new PermissionManifest.Table(new String[] {CAMERA, SEND_SMS},
+                new int[] {PermissionInfo.PROTECTION_DANGEROUS, PermissionInfo.PROTECTION_DANGEROUS},
+                new int[] {1, Build.VERSION_CODES.M}, new int[] {Integer.MAX_VALUE, Integer.MAX_VALUE},
+                new String[0], new String[0]));
+
+        assertArrayEquals(new String[] {CAMERA}, PermissionManifest.declaredNames(Build.VERSION_CODES.LOLLIPOP));
+        assertArrayEquals(new String[] {CAMERA, SEND_SMS}, PermissionManifest.declaredNames(SDK_INT));
+        assertEquals(PermissionSet.of(CAMERA, SEND_SMS), PermissionHelper.getDeclaredPermissions());
+    }
+
+    @Test
+    public void givenTable_replacesManifestUntilRestored() throws Exception {
+        int sms = PermissionRegistry.slotOf(SEND_SMS);
+        int camera = PermissionRegistry.slotOf(CAMERA);
+
+        PermissionManifest.setTable(FakePermissionManifest.declaring(new String[] {SEND_SMS}));
+        assertEquals(PermissionInfo.PROTECTION_DANGEROUS, PermissionManifest.protectionLevelOf(sms, SDK_INT));
+        assertEquals("android.permission-group.SMS", PermissionManifest.groupOf(sms));
+        assertEquals(PermissionManifest.NOT_DECLARED, PermissionManifest.protectionLevelOf(camera, SDK_INT));
+
+        PermissionManifest.setTable(null);
+        assertEquals(PermissionManifest.NOT_DECLARED, PermissionManifest.protectionLevelOf(sms, SDK_INT));
+        assertEquals(PermissionInfo.PROTECTION_DANGEROUS, PermissionManifest.protectionLevelOf(camera, SDK_INT));
+    }
+
+    private void request(String... permissions) {
+        new PermissionHelper(new Activity()).checkDeviceAndRequestPermissions(REQUEST_CODE, permissions,
+                new PermissionHelper.PermissionOutcomeCallback() {
+                    @Override
+                    public void onPermissionOutcome(PermissionOutcome outcome) {
+                        mOutcome = outcome;
+                    }
+                });
+    }
+}
@@ -0,0 +1,95 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests are answered through {@link FakePermissionBackend} and measured by {@link InMemoryPermissionMetrics}.
+ */
+public class PermissionMetricsTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+
+    private FakePermissionBackend mBackend;
+    private InMemoryPermissionMetrics mMetrics;
+    private PermissionHelper mPermissionHelper;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        mMetrics = new InMemoryPermissionMetrics();
+        PermissionHelper.setBackend(mBackend);
+        PermissionHelper.setMetrics(mMetrics);
+        PermissionStateCache.getInstance().invalidate();
+        PermissionRequestEngine.getInstance().clear();
+        mPermissionHelper = new PermissionHelper(new Activity());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionHelper.setMetrics(null);
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void checks_countCacheHits() throws Exception {
+        Activity activity = new Activity();
+        PermissionHelper.isPermissionGranted(activity, CAMERA);
+        PermissionHelper.isPermissionGranted(activity, CAMERA);
+        PermissionHelper.isPermissionGranted(activity, new String[] {CAMERA, READ_CONTACTS});
+
+        InMemoryPermissionMetrics.Snapshot snapshot = mMetrics.getSnapshot();
+        assertEquals(4, snapshot.getCheckCount());
+        assertEquals(2, snapshot.getCacheHitCount());
+        assertEquals(0.5d, snapshot.getCacheHitRate(), 0d);
+    }
+
+    @Test
+    public void dialog_recordsTimeAndOutcomes() throws Exception {
+        mPermissionHelper.checkDeviceAndRequestPermissions(1, new String[] {CAMERA, READ_CONTACTS}, new PermissionHelper.PermissionOutcomeCallback() {
+            @Override
+            public void onPermissionOutcome(PermissionOutcome outcome) {
+            }
+        });
+        mBackend.grant(CAMERA);
+
+        String[] permissions = mBackend.getLastRequestedPermissions();
+        mPermissionHelper.onRequestPermissionsResult(mBackend.getLastRequestCode(), permissions, mBackend.answer(permissions));
+
+        InMemoryPermissionMetrics.Snapshot snapshot = mMetrics.getSnapshot();
+        assertEquals(1, snapshot.getDialogCount());
+        assertEquals(2, snapshot.getRequestedPermissionCount());
+        assertEquals(1, snapshot.getAnsweredDialogCount());
+        assertEquals(1, snapshot.getOutcomeCount(CAMERA, PermissionMetrics.OUTCOME_GRANTED));
+        assertEquals(1, snapshot.getOutcomeCount(READ_CONTACTS, PermissionMetrics.OUTCOME_NEVER_ASK_AGAIN));
+        assertEquals(0, snapshot.getOutcomeCount(READ_CONTACTS, PermissionMetrics.OUTCOME_DENIED));
+    }
+
+    @Test
+    public void histogram_bucketsByPowerOfTwo() throws Exception {
+        assertEquals(0, InMemoryPermissionMetrics.bucketOf(0L));
+        assertEquals(1, InMemoryPermissionMetrics.bucketOf(1L));
+        assertEquals(2, InMemoryPermissionMetrics.bucketOf(3L));
+        assertEquals(InMemoryPermissionMetrics.BUCKET_COUNT - 1, InMemoryPermissionMetrics.bucketOf(Long.MAX_VALUE));
+
+        for (int i = 0; i < 9; i++) {
+            mMetrics.onDialogAnswered(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        mMetrics.onDialogAnswered(TimeUnit.MILLISECONDS.toNanos(3000));
+
+        InMemoryPermissionMetrics.Snapshot snapshot = mMetrics.getSnapshot();
+        assertEquals(128, snapshot.getDialogMillisAtPercentile(50d));
+        assertEquals(4096, snapshot.getDialogMillisAtPercentile(99d));
+
+        mMetrics.reset();
+        assertEquals(0, mMetrics.getSnapshot().getAnsweredDialogCount());
+    }
+}
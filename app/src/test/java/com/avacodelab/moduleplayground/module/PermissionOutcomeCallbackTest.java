@@ -0,0 +1,113 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests are answered through {@link FakePermissionBackend}, the engine runs on the test thread.
+ */
+public class PermissionOutcomeCallbackTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+
+    private FakePermissionBackend mBackend;
+    private PermissionHelper mPermissionHelper;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+        mPermissionHelper = new PermissionHelper(new Activity());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void outcome_isDeliveredOnceWithAllPartitions() throws Exception {
+        mBackend.grant(CAMERA);
+        mBackend.setState(ACCESS_FINE_LOCATION, FakePermissionBackend.STATE_DENIED_ONCE);
+        OutcomeCallback callback = new OutcomeCallback();
+
+        mPermissionHelper.checkDeviceAndRequestPermissions(1, new String[] {CAMERA, READ_CONTACTS, ACCESS_FINE_LOCATION}, callback);
+        assertTrue(callback.mOutcomes.isEmpty());
+        answerDialog();
+
+        assertEquals(1, callback.mOutcomes.size());
+        PermissionOutcome outcome = callback.mOutcomes.get(0);
+        assertEquals(1, outcome.getRequestCode());
+        assertEquals(PermissionSet.of(CAMERA), outcome.getGranted());
+        assertEquals(PermissionSet.of(CAMERA), outcome.getAlreadyGranted());
+        assertEquals(PermissionSet.of(ACCESS_FINE_LOCATION), outcome.getDenied());
+        assertEquals(PermissionSet.of(READ_CONTACTS), outcome.getNeverAskAgain());
+    }
+
+    @Test
+    public void outcome_isDeliveredImmediatelyIfGranted() throws Exception {
+        mBackend.grant(CAMERA);
+        OutcomeCallback callback = new OutcomeCallback();
+
+        mPermissionHelper.checkDeviceAndRequestPermissions(1, new String[] {CAMERA}, callback);
+
+        assertEquals(1, callback.mOutcomes.size());
+        assertTrue(callback.mOutcomes.get(0).isAllGranted());
+        assertEquals(PermissionSet.of(CAMERA), callback.mOutcomes.get(0).getAlreadyGranted());
+        assertEquals(0, mBackend.getRequestCount());
+    }
+
+    @Test
+    public void resultCallback_stillReceivesEachPartition() throws Exception {
+        mBackend.grant(CAMERA);
+        final List<String> calls = new ArrayList<>();
+
+        mPermissionHelper.checkDeviceAndRequestPermissions(1, new String[] {CAMERA, READ_CONTACTS}, new PermissionHelper.PermissionResultCallback() {
+            @Override
+            public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+                calls.add("granted " + permissionsGranted);
+            }
+
+            @Override
+            public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+                calls.add("denied " + permissionsDenied);
+            }
+
+            @Override
+            public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+                calls.add("neverAskAgain " + permissionsNeverAskAgain);
+            }
+        });
+        answerDialog();
+
+        assertEquals(2, calls.size());
+        assertEquals("granted [" + CAMERA + "]", calls.get(0));
+        assertEquals("neverAskAgain [" + READ_CONTACTS + "]", calls.get(1));
+    }
+
+    private void answerDialog() {
+        String[] permissions = mBackend.getLastRequestedPermissions();
+        mPermissionHelper.onRequestPermissionsResult(mBackend.getLastRequestCode(), permissions, mBackend.answer(permissions));
+    }
+
+    private static final class OutcomeCallback implements PermissionHelper.PermissionOutcomeCallback {
+
+        final List<PermissionOutcome> mOutcomes = new ArrayList<>();
+
+        @Override
+        public void onPermissionOutcome(PermissionOutcome outcome) {
+            mOutcomes.add(outcome);
+        }
+    }
+}
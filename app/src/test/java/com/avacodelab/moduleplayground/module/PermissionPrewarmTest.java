@@ -0,0 +1,214 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The backend sleeps in every check, like a binder call to a busy package manager. The screen is the permissions of
+ * PermissionActivity, three of them are dangerous and have to be checked.
+ */
+public class PermissionPrewarmTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String NFC = "android.permission.NFC";
+    private static final String VIBRATE = "android.permission.VIBRATE";
+
+    private static final long CHECK_MILLIS = 30L;
+    private static final int DANGEROUS_COUNT = 3;
+
+    private FakePermissionBackend mBackend;
+    private SlowBackend mSlowBackend;
+    private ExecutorService mExecutor;
+    private Activity mLauncher;
+    private Activity mActivity;
+    private PermissionStateCache.ForegroundCallbacks mForeground;
+    private PermissionSet mPermissions;
+
+    private final PermissionStateMonitor.Listener mListener = new PermissionStateMonitor.Listener() {
+        @Override
+        public void onPermissionStateChanged(PermissionStateSnapshot state, PermissionSet changed) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        mSlowBackend = new SlowBackend(mBackend);
+        PermissionHelper.setBackend(mSlowBackend);
+        PermissionStateCache.getInstance().invalidate();
+        PermissionPrewarm.clear();
+        mExecutor = Executors.newSingleThreadExecutor();
+        mLauncher = new Activity();
+        mActivity = new Activity();
+        mForeground = new PermissionStateCache.ForegroundCallbacks();
+        mForeground.onActivityStarted(mLauncher);
+        mPermissions = PermissionSet.of(CAMERA, ACCESS_FINE_LOCATION, READ_CONTACTS, NFC, VIBRATE);
+        mBackend.grant(CAMERA);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionStateMonitor.getInstance().onDestroyed(mActivity);
+        PermissionPrewarm.clear();
+        mExecutor.shutdownNow();
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void coldScreen_checksBeforeFirstFrame() throws Exception {
+        long elapsed = openScreen();
+
+        assertEquals(DANGEROUS_COUNT, mBackend.getCheckCount());
+        assertTrue(elapsed >= DANGEROUS_COUNT * CHECK_MILLIS);
+    }
+
+    @Test
+    public void prewarmedScreen_rendersFromReadyState() throws Exception {
+        PermissionPrewarm.run(mActivity, mPermissions);
+        assertEquals(DANGEROUS_COUNT, mBackend.getCheckCount());
+
+        long elapsed = openScreen();
+
+        // No check on the main thread, also not after onStart().
+        assertEquals(DANGEROUS_COUNT, mBackend.getCheckCount());
+        assertTrue("Opened in " + elapsed + " ms", elapsed < CHECK_MILLIS);
+        assertEquals(PermissionStateSnapshot.STATE_GRANTED, PermissionStateMonitor.getInstance().getSnapshot().getState(CAMERA));
+    }
+
+    @Test
+    public void runningPrewarm_isAwaitedInsteadOfChecking() throws Exception {
+        Future<Void> prewarm = mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                PermissionPrewarm.run(mActivity, mPermissions);
+                return null;
+            }
+        });
+        assertTrue(mSlowBackend.mCheckStarted.await(5, TimeUnit.SECONDS));
+
+        openScreen();
+        prewarm.get(5, TimeUnit.SECONDS);
+
+        assertEquals(DANGEROUS_COUNT, mBackend.getCheckCount());
+        assertEquals(PermissionStateSnapshot.STATE_GRANTED, PermissionStateMonitor.getInstance().getSnapshot().getState(CAMERA));
+    }
+
+    @Test
+    public void prewarm_isKeptUntilAppGoesToBackground() throws Exception {
+        PermissionPrewarm.ForegroundCallbacks callbacks = new PermissionPrewarm.ForegroundCallbacks();
+        PermissionPrewarm.run(mActivity, mPermissions);
+
+        // The launcher was resumed before the callbacks were registered.
+        callbacks.onActivityPaused(mLauncher);
+        callbacks.onActivityResumed(mActivity);
+        openScreen();
+        callbacks.onActivityStopped(mLauncher);
+        mForeground.onActivityStopped(mLauncher);
+        assertEquals(DANGEROUS_COUNT, mBackend.getCheckCount());
+
+        // The user goes to the app settings and grants a permission.
+        callbacks.onActivityPaused(mActivity);
+        callbacks.onActivityStopped(mActivity);
+        mForeground.onActivityStopped(mActivity);
+        mBackend.grant(READ_CONTACTS);
+        mForeground.onActivityStarted(mActivity);
+        assertTrue(PermissionStateMonitor.getInstance().isRefreshScheduled());
+        PermissionStateMonitor.getInstance().refresh();
+
+        assertEquals(2 * DANGEROUS_COUNT, mBackend.getCheckCount());
+        assertEquals(PermissionStateSnapshot.STATE_GRANTED, PermissionStateMonitor.getInstance().getSnapshot().getState(READ_CONTACTS));
+    }
+
+    @Test
+    public void prewarm_isDroppedWhenDialogIsAnswered() throws Exception {
+        PermissionPrewarm.run(mActivity, mPermissions);
+
+        mBackend.grant(READ_CONTACTS);
+        new PermissionHelper(mActivity).onRequestPermissionsResult(1, new String[]{READ_CONTACTS}, mBackend.answer(new String[]{READ_CONTACTS}));
+        openScreen();
+
+        assertEquals(2 * DANGEROUS_COUNT, mBackend.getCheckCount());
+        assertEquals(PermissionStateSnapshot.STATE_GRANTED, PermissionStateMonitor.getInstance().getSnapshot().getState(READ_CONTACTS));
+    }
+
+    @Test
+    public void prewarmBeforeInvalidation_isNotStored() throws Exception {
+        PermissionPrewarm.run(mActivity, mPermissions);
+
+        // Checked while the app was in the background, the user granted the permission before coming back.
+        mForeground.onActivityStopped(mLauncher);
+        mBackend.grant(READ_CONTACTS);
+        mForeground.onActivityStarted(mLauncher);
+        openScreen();
+
+        assertEquals(2 * DANGEROUS_COUNT, mBackend.getCheckCount());
+        assertEquals(PermissionStateSnapshot.STATE_GRANTED, PermissionStateMonitor.getInstance().getSnapshot().getState(READ_CONTACTS));
+    }
+
+    /**
+     * Opens the screen from the launcher: it subscribes in onCreate(), then its onStart() runs the lifecycle callbacks
+     * of the cache, then the main thread runs the refresh which they may have posted. Returns the time until the
+     * first frame.
+     */
+    private long openScreen() {
+        long start = System.nanoTime();
+        PermissionStateMonitor monitor = PermissionStateMonitor.getInstance();
+        monitor.subscribe(mActivity, mPermissions, mListener);
+        mForeground.onActivityStarted(mActivity);
+        if (monitor.isRefreshScheduled()) {
+            monitor.refresh();
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static final class SlowBackend implements PermissionBackend {
+
+        final CountDownLatch mCheckStarted = new CountDownLatch(1);
+        private final FakePermissionBackend mBackend;
+
+        SlowBackend(FakePermissionBackend backend) {
+            mBackend = backend;
+        }
+
+        @Override
+        public int checkSelfPermission(Context context, String permission) {
+            mCheckStarted.countDown();
+            try {
+                Thread.sleep(CHECK_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return mBackend.checkSelfPermission(context, permission);
+        }
+
+        @Override
+        public void requestPermissions(Activity activity, String[] permissions, int requestCode) {
+            mBackend.requestPermissions(activity, permissions, requestCode);
+        }
+
+        @Override
+        public boolean shouldShowRequestPermissionRationale(Activity activity, String permission) {
+            return mBackend.shouldShowRequestPermissionRationale(activity, permission);
+        }
+
+        @Override
+        public int getSdkInt() {
+            return mBackend.getSdkInt();
+        }
+    }
+}
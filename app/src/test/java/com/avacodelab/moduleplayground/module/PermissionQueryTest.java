@@ -0,0 +1,108 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queries run against {@link FakePermissionBackend}, the deferred requests are made from a host activity.
+ */
+public class PermissionQueryTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+
+    private FakePermissionBackend mBackend;
+    private PermissionQuery mQuery;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+        PermissionRequestEngine.getInstance().clear();
+        mQuery = PermissionQuery.from(new Activity());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionQuery.onActivityResumed(new HostActivity());
+        PermissionRequestEngine.getInstance().clear();
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void batchCheck_servesGrantedFromCache() throws Exception {
+        mBackend.grant(CAMERA);
+        PermissionSet permissions = PermissionSet.of(CAMERA, READ_CONTACTS);
+
+        assertEquals(PermissionSet.of(CAMERA), mQuery.getGranted(permissions));
+        assertEquals(2, mBackend.getCheckCount());
+
+        assertEquals(PermissionSet.of(READ_CONTACTS), mQuery.getMissing(permissions));
+        assertEquals(3, mBackend.getCheckCount());
+    }
+
+    @Test
+    public void deniedPermission_isCheckedAgain() throws Exception {
+        assertFalse(mQuery.isGranted(CAMERA));
+
+        // Granted in the app settings while no activity was started, the cache was not invalidated.
+        mBackend.grant(CAMERA);
+
+        assertTrue(mQuery.isGranted(CAMERA));
+    }
+
+    @Test
+    public void requestOnNextForeground_isMadeFromResumedActivity() throws Exception {
+        mBackend.grant(CAMERA);
+
+        assertTrue(mQuery.requestOnNextForeground(7, PermissionSet.of(CAMERA, READ_CONTACTS)));
+        assertTrue(mQuery.requestOnNextForeground(7, PermissionSet.of(READ_CONTACTS)));
+        assertEquals(1, PermissionQuery.getDeferredRequestCount());
+        assertEquals(0, mBackend.getRequestCount());
+
+        PermissionQuery.onActivityResumed(new HostActivity());
+
+        assertEquals(0, PermissionQuery.getDeferredRequestCount());
+        assertEquals(1, mBackend.getRequestCount());
+        assertEquals(7, mBackend.getLastRequestCode());
+        assertEquals(Arrays.asList(READ_CONTACTS), Arrays.asList(mBackend.getLastRequestedPermissions()));
+    }
+
+    @Test
+    public void requestOnNextForeground_isDroppedIfGranted() throws Exception {
+        assertTrue(mQuery.requestOnNextForeground(7, PermissionSet.of(CAMERA)));
+        mBackend.grant(CAMERA);
+        PermissionStateCache.getInstance().invalidate();
+
+        PermissionQuery.onActivityResumed(new HostActivity());
+
+        assertEquals(0, mBackend.getRequestCount());
+        assertFalse(mQuery.requestOnNextForeground(7, PermissionSet.of(CAMERA)));
+    }
+
+    @Test
+    public void requestOnNextForeground_waitsForHost() throws Exception {
+        assertTrue(mQuery.requestOnNextForeground(7, PermissionSet.of(CAMERA)));
+
+        PermissionQuery.onActivityResumed(new Activity());
+
+        assertEquals(1, PermissionQuery.getDeferredRequestCount());
+        assertEquals(0, mBackend.getRequestCount());
+
+        PermissionQuery.onActivityResumed(new HostActivity());
+
+        assertEquals(0, PermissionQuery.getDeferredRequestCount());
+        assertEquals(1, mBackend.getRequestCount());
+    }
+
+    public static class HostActivity extends Activity implements PermissionQuery.ForegroundHost {
+    }
+}
@@ -0,0 +1,142 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Slot assignment and the capacity of {@link PermissionRegistry}. A small table is filled instead of the registry
+ * of the process, which the other tests share.
+ */
+public class PermissionRegistryTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    private static final String UNDECLARED = "com.example.permission.UNDECLARED";
+
+    @Test
+    public void slots_areAssignedInOrderOfFirstUse() throws Exception {
+        PermissionRegistry.Table table = new PermissionRegistry.Table(4);
+
+        assertEquals(0, table.slotOf(READ_CONTACTS));
+        assertEquals(1, table.slotOf(CAMERA));
+        assertEquals(0, table.slotOf(READ_CONTACTS));
+        assertEquals(CAMERA, table.nameOf(1));
+        assertEquals(1, table.findSlot(CAMERA));
+        assertEquals(PermissionRegistry.NO_SLOT, table.findSlot(ACCESS_FINE_LOCATION));
+    }
+
+    @Test
+    public void fullTable_hasNoSlotForNewPermission() throws Exception {
+        PermissionRegistry.Table table = new PermissionRegistry.Table(2);
+        table.slotOf(CAMERA);
+        table.slotOf(READ_CONTACTS);
+
+        assertEquals(PermissionRegistry.NO_SLOT, table.trySlotOf(ACCESS_FINE_LOCATION));
+        assertEquals(PermissionRegistry.NO_SLOT, table.findSlot(ACCESS_FINE_LOCATION));
+        assertEquals(1, table.trySlotOf(READ_CONTACTS));
+        try {
+            table.slotOf(ACCESS_FINE_LOCATION);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void reservedPermission_getsSlotInFullTable() throws Exception {
+        PermissionRegistry.Table table = new PermissionRegistry.Table(2, new String[] {CAMERA});
+
+        assertEquals(0, table.trySlotOf(READ_CONTACTS));
+        assertEquals(PermissionRegistry.NO_SLOT, table.trySlotOf(ACCESS_FINE_LOCATION));
+        assertEquals(1, table.trySlotOf(CAMERA));
+    }
+
+    @Test
+    public void fullRegistry_listAdaptersReportUnregisteredAsDenied() throws Exception {
+        FakePermissionBackend backend = new FakePermissionBackend();
+        PermissionHelper.setBackend(backend);
+        PermissionRegistry.setTable(new PermissionRegistry.Table(1, new String[] {CAMERA}));
+        PermissionManifest.setTable(FakePermissionManifest.declaring(new String[] {CAMERA}));
+        PermissionStateCache.getInstance().invalidate();
+        try {
+            backend.grant(CAMERA);
+            PermissionHelper permissionHelper = new PermissionHelper(new Activity());
+
+            final List<PermissionOutcome> outcomes = new ArrayList<>();
+            permissionHelper.checkDeviceAndRequestPermissions(1, new String[] {CAMERA, UNDECLARED}, new PermissionHelper.PermissionOutcomeCallback() {
+                @Override
+                public void onPermissionOutcome(PermissionOutcome outcome) {
+                    outcomes.add(outcome);
+                }
+            });
+            PermissionOutcome outcome = permissionHelper.checkDeviceAndRequestPermissionsAsync(2, Arrays.asList(CAMERA, UNDECLARED)).get();
+            outcomes.add(outcome);
+
+            for (PermissionOutcome each : outcomes) {
+                assertEquals(PermissionSet.of(CAMERA), each.getGranted());
+                assertEquals(Arrays.asList(UNDECLARED), each.getUndeclared());
+                assertTrue(each.isDenied(UNDECLARED));
+                assertFalse(each.isAllGranted());
+            }
+
+            final List<String> calls = new ArrayList<>();
+            permissionHelper.checkDeviceAndRequestPermissions(3, Arrays.asList(CAMERA, UNDECLARED), new PermissionHelper.PermissionResultCallback() {
+                @Override
+                public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+                    calls.add("granted " + permissionsGranted);
+                }
+
+                @Override
+                public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+                    calls.add("denied " + permissionsDenied);
+                }
+
+                @Override
+                public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+                    calls.add("neverAskAgain " + permissionsNeverAskAgain);
+                }
+            });
+            assertEquals(Arrays.asList("granted [" + CAMERA + "]", "denied [" + UNDECLARED + "]"), calls);
+            assertEquals(0, backend.getRequestCount());
+        } finally {
+            PermissionRegistry.setTable(null);
+            PermissionManifest.setTable(null);
+            PermissionStateCache.getInstance().invalidate();
+            PermissionHelper.setBackend(null);
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void unknownSlot_hasNoName() throws Exception {
+        new PermissionRegistry.Table(2).nameOf(1);
+    }
+
+    @Test
+    public void registry_hasRoomForEveryBitOfMask() throws Exception {
+        assertEquals(Long.SIZE, PermissionRegistry.MAX_PERMISSIONS);
+    }
+
+    @Test
+    public void unregisteredPermission_isCheckedDirectly() throws Exception {
+        FakePermissionBackend backend = new FakePermissionBackend();
+        PermissionHelper.setBackend(backend);
+        try {
+            backend.grant(CAMERA);
+            int checkCount = backend.getCheckCount();
+
+            assertTrue(PermissionHelper.checkUncached(null, CAMERA));
+            assertTrue(PermissionHelper.checkUncached(null, CAMERA));
+            assertFalse(PermissionHelper.checkUncached(null, READ_CONTACTS));
+            assertEquals(checkCount + 3, backend.getCheckCount());
+        } finally {
+            PermissionHelper.setBackend(null);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrent requests through {@link PermissionRequestEngine}: merging of the queued requests into one dialog,
+ * the fan-out of its result, and the activity which shows the merged dialog.
+ */
+public class PermissionRequestEngineTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    private static final String UNDECLARED = "com.example.permission.UNDECLARED";
+
+    private static final int FIRST_REQUEST_CODE = 20;
+
+    private FakePermissionBackend mBackend;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionRequestEngine.getInstance().clear();
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void queuedRequests_shareOneMergedDialog() throws Exception {
+        HostActivity activity = new HostActivity();
+        PermissionHelper helper = new PermissionHelper(activity);
+        helper.checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE, new String[] {CAMERA}, activity);
+
+        String[][] requests = {
+                {READ_CONTACTS, ACCESS_FINE_LOCATION},
+                {READ_CONTACTS},
+                {ACCESS_FINE_LOCATION, CAMERA},
+                {ACCESS_FINE_LOCATION, READ_CONTACTS},
+        };
+        Recorder[] recorders = new Recorder[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            recorders[i] = new Recorder();
+            helper.checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE + 1 + i, requests[i], recorders[i]);
+        }
+        assertEquals(1, mBackend.getRequestCount());
+
+        mBackend.grant(CAMERA);
+        answerDialog(helper);
+
+        assertEquals(2, mBackend.getRequestCount());
+        String[] merged = mBackend.getLastRequestedPermissions();
+        assertEquals(2, merged.length);
+        assertEquals(new HashSet<>(Arrays.asList(READ_CONTACTS, ACCESS_FINE_LOCATION)), new HashSet<>(Arrays.asList(merged)));
+
+        mBackend.grant(READ_CONTACTS);
+        mBackend.grant(ACCESS_FINE_LOCATION);
+        answerDialog(helper);
+
+        assertEquals(2, mBackend.getRequestCount());
+        assertEquals(1, activity.mCalls);
+        for (int i = 0; i < requests.length; i++) {
+            assertEquals(1, recorders[i].mCalls);
+            assertEquals(FIRST_REQUEST_CODE + 1 + i, recorders[i].mRequestCode);
+            assertEquals(Arrays.asList(requests[i]), recorders[i].mGranted);
+        }
+        assertNull(PermissionRequestEngine.getInstance().saveState(activity));
+    }
+
+    @Test
+    public void requestInShowingDialog_joinsIt() throws Exception {
+        HostActivity activity = new HostActivity();
+        PermissionHelper helper = new PermissionHelper(activity);
+        Recorder joined = new Recorder();
+        helper.checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE, new String[] {CAMERA, READ_CONTACTS}, activity);
+        helper.checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE + 1, new String[] {READ_CONTACTS}, joined);
+
+        mBackend.grant(READ_CONTACTS);
+        answerDialog(helper);
+
+        assertEquals(1, mBackend.getRequestCount());
+        assertEquals(Arrays.asList(READ_CONTACTS), joined.mGranted);
+        assertEquals(1, joined.mCalls);
+    }
+
+    @Test
+    public void mergedDialog_isShownByActivityOfQueuedRequest() throws Exception {
+        HostActivity first = new HostActivity();
+        HostActivity second = new HostActivity();
+        new PermissionHelper(first).checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE, new String[] {CAMERA}, first);
+        new PermissionHelper(second).checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE + 1, new String[] {READ_CONTACTS}, second);
+
+        answerDialog(new PermissionHelper(first));
+
+        assertEquals(2, mBackend.getRequestCount());
+        assertSame(second, mBackend.getLastRequestActivity());
+        assertEquals(FIRST_REQUEST_CODE + 1, mBackend.getLastRequestCode());
+
+        mBackend.grant(READ_CONTACTS);
+        answerDialog(new PermissionHelper(second));
+        assertEquals(FIRST_REQUEST_CODE + 1, second.mGrantedRequestCode);
+    }
+
+    @Test
+    public void mergedDialog_waitsForResumedActivity() throws Exception {
+        HostActivity first = new HostActivity();
+        HostActivity recreating = new HostActivity();
+        new PermissionHelper(first).checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE, new String[] {CAMERA}, first);
+        new PermissionHelper(recreating).checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE + 1, new String[] {READ_CONTACTS}, recreating);
+        recreating.mChangingConfigurations = true;
+        PermissionRequestEngine.getInstance().onActivityDestroyed(recreating);
+
+        answerDialog(new PermissionHelper(first));
+        assertEquals(1, mBackend.getRequestCount());
+
+        PermissionRequestEngine.getInstance().onActivityResumed(first);
+        assertEquals(1, mBackend.getRequestCount());
+
+        HostActivity recreated = new HostActivity();
+        PermissionRequestEngine.getInstance().onActivityCreated(recreated, null);
+        PermissionRequestEngine.getInstance().onActivityResumed(recreated);
+
+        assertEquals(2, mBackend.getRequestCount());
+        assertSame(recreated, mBackend.getLastRequestActivity());
+
+        mBackend.grant(READ_CONTACTS);
+        answerDialog(new PermissionHelper(recreated));
+        assertEquals(FIRST_REQUEST_CODE + 1, recreated.mGrantedRequestCode);
+    }
+
+    @Test
+    public void newRequest_takesRequestsWaitingForActivity() throws Exception {
+        HostActivity first = new HostActivity();
+        HostActivity recreating = new HostActivity();
+        new PermissionHelper(first).checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE, new String[] {CAMERA}, first);
+        new PermissionHelper(recreating).checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE + 1, new String[] {READ_CONTACTS}, recreating);
+        recreating.mChangingConfigurations = true;
+        PermissionRequestEngine.getInstance().onActivityDestroyed(recreating);
+        answerDialog(new PermissionHelper(first));
+
+        new PermissionHelper(first).checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE + 2, new String[] {ACCESS_FINE_LOCATION}, first);
+
+        assertEquals(2, mBackend.getRequestCount());
+        assertSame(first, mBackend.getLastRequestActivity());
+        assertEquals(FIRST_REQUEST_CODE + 2, mBackend.getLastRequestCode());
+        assertEquals(new HashSet<>(Arrays.asList(READ_CONTACTS, ACCESS_FINE_LOCATION)),
+                new HashSet<>(Arrays.asList(mBackend.getLastRequestedPermissions())));
+    }
+
+    @Test
+    public void finishedDialogHost_interruptsDialogRequests() throws Exception {
+        PermissionRequestEngine engine = PermissionRequestEngine.getInstance();
+        HostActivity finished = new HostActivity();
+        HostActivity other = new HostActivity();
+        Interruptions interruptions = new Interruptions();
+        long camera = PermissionSet.of(CAMERA).mask();
+        engine.submit(finished, FIRST_REQUEST_CODE, camera, 0L, interruptions);
+        engine.submit(other, FIRST_REQUEST_CODE + 1, camera, 0L, interruptions);
+
+        engine.onActivityDestroyed(finished);
+
+        assertEquals(Arrays.asList(FIRST_REQUEST_CODE, FIRST_REQUEST_CODE + 1), interruptions.mRequestCodes);
+        assertNull(engine.saveState(other));
+
+        new PermissionHelper(other).checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE + 2, new String[] {CAMERA}, other);
+        assertEquals(2, mBackend.getRequestCount());
+        assertSame(other, mBackend.getLastRequestActivity());
+    }
+
+    @Test
+    public void recreatedDialogHost_keepsDialog() throws Exception {
+        PermissionRequestEngine engine = PermissionRequestEngine.getInstance();
+        HostActivity recreating = new HostActivity();
+        new PermissionHelper(recreating).checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE, new String[] {CAMERA}, recreating);
+        recreating.mChangingConfigurations = true;
+        engine.onActivityDestroyed(recreating);
+
+        HostActivity recreated = new HostActivity();
+        engine.onActivityCreated(recreated, null);
+        mBackend.grant(CAMERA);
+        answerDialog(new PermissionHelper(recreated));
+
+        assertEquals(1, mBackend.getRequestCount());
+        assertEquals(FIRST_REQUEST_CODE, recreated.mGrantedRequestCode);
+    }
+
+    @Test
+    public void requestWithNothingToAsk_isDeliveredWhenActivityIsResumed() throws Exception {
+        PermissionRequestEngine.SavedState state = new PermissionRequestEngine.SavedState(new String[] {CAMERA, UNDECLARED}, 1);
+        state.mRequestCodes[0] = FIRST_REQUEST_CODE;
+        state.mNeeded[0] = 2L;
+        state.mAlreadyGranted[0] = 1L;
+
+        HostActivity recreated = new HostActivity();
+        PermissionRequestEngine.getInstance().restoreState(recreated, state);
+        PermissionRequestEngine.getInstance().onActivityResumed(recreated);
+
+        assertEquals(0, mBackend.getRequestCount());
+        assertEquals(FIRST_REQUEST_CODE, recreated.mGrantedRequestCode);
+        assertEquals(2, recreated.mCalls);
+        assertNull(PermissionRequestEngine.getInstance().saveState(recreated));
+    }
+
+    @Test
+    public void throwingCallback_dropsRestOfDialogResult() throws Exception {
+        HostActivity activity = new HostActivity();
+        PermissionHelper helper = new PermissionHelper(activity);
+        Recorder dropped = new Recorder();
+        helper.checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE, new String[] {CAMERA}, new Recorder() {
+            @Override
+            public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+                throw new IllegalStateException("Callback failed");
+            }
+        });
+        helper.checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE + 1, new String[] {CAMERA}, dropped);
+
+        mBackend.grant(CAMERA);
+        try {
+            answerDialog(helper);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        helper.checkDeviceAndRequestPermissions(FIRST_REQUEST_CODE + 2, new String[] {READ_CONTACTS}, activity);
+        mBackend.grant(READ_CONTACTS);
+        answerDialog(helper);
+
+        assertEquals(FIRST_REQUEST_CODE + 2, activity.mGrantedRequestCode);
+        assertEquals(0, dropped.mCalls);
+    }
+
+    private void answerDialog(PermissionHelper helper) {
+        String[] permissions = mBackend.getLastRequestedPermissions();
+        helper.onRequestPermissionsResult(mBackend.getLastRequestCode(), permissions, mBackend.answer(permissions));
+    }
+
+    private static class Recorder implements PermissionHelper.PermissionResultCallback {
+
+        final List<String> mGranted = new ArrayList<>();
+        int mRequestCode = -1;
+        int mCalls;
+
+        @Override
+        public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+            mRequestCode = requestCode;
+            mGranted.addAll(permissionsGranted);
+            mCalls++;
+        }
+
+        @Override
+        public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+            mCalls++;
+        }
+
+        @Override
+        public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+            mCalls++;
+        }
+    }
+
+    private static class Interruptions implements PermissionRequestEngine.ResultListener {
+
+        final List<Integer> mRequestCodes = new ArrayList<>();
+
+        @Override
+        public void onPermissionResult(int requestCode, PermissionResult result) {
+            fail();
+        }
+
+        @Override
+        public void onPermissionRequestInterrupted(int requestCode) {
+            mRequestCodes.add(requestCode);
+        }
+    }
+
+    public static class HostActivity extends Activity implements PermissionHelper.PermissionResultCallback {
+
+        boolean mChangingConfigurations;
+        int mGrantedRequestCode = -1;
+        int mCalls;
+
+        @Override
+        public boolean isChangingConfigurations() {
+            return mChangingConfigurations;
+        }
+
+        @Override
+        public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+            mGrantedRequestCode = requestCode;
+            mCalls++;
+        }
+
+        @Override
+        public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+            mCalls++;
+        }
+
+        @Override
+        public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+            mCalls++;
+        }
+    }
+}
@@ -0,0 +1,462 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * The onboarding flow asks eight permissions of five groups. {@link SimulatedPlatform} shows one page per group like
+ * the platform does, and answers each page with the decision of a simulated user. A user answers the n-th page of a
+ * group the same way in every flow, so the flows are compared on the same population.
+ */
+public class PermissionRequestPlannerTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String RECORD_AUDIO = "android.permission.RECORD_AUDIO";
+    private static final String ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    private static final String ACCESS_COARSE_LOCATION = "android.permission.ACCESS_COARSE_LOCATION";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String WRITE_CONTACTS = "android.permission.WRITE_CONTACTS";
+    private static final String READ_CALENDAR = "android.permission.READ_CALENDAR";
+    private static final String WRITE_CALENDAR = "android.permission.WRITE_CALENDAR";
+
+    private static final String[] ONBOARDING = {
+            READ_CONTACTS, CAMERA, ACCESS_FINE_LOCATION, WRITE_CONTACTS,
+            READ_CALENDAR, ACCESS_COARSE_LOCATION, RECORD_AUDIO, WRITE_CALENDAR
+    };
+
+    private static final int REQUEST_CODE = 7;
+    private static final int USERS = 1000;
+    private static final int SESSIONS = 3;
+
+    private static final Executor NO_FLUSH = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+        }
+    };
+
+    private File mJournalFile;
+    private FakePermissionBackend mBackend;
+
+    /** The activity of the simulated user. The helper keeps it weakly, so it is kept here for every session. */
+    private Activity mActivity;
+
+    @Before
+    public void setUp() throws Exception {
+        mJournalFile = File.createTempFile("permission_journal", null);
+        mJournalFile.delete();
+
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+        PermissionRequestEngine.getInstance().clear();
+        PermissionManifest.setTable(FakePermissionManifest.declaring(ONBOARDING));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionManifest.setTable(null);
+        PermissionRequestEngine.getInstance().clear();
+        PermissionJournal.setInstance(null);
+        PermissionHelper.setBackend(null);
+        mJournalFile.delete();
+    }
+
+    @Test
+    public void plan_keepsGroupsTogetherAndSkipsNeverAskAgain() throws Exception {
+        long needed = PermissionSet.of(CAMERA, READ_CONTACTS, ACCESS_FINE_LOCATION, ACCESS_COARSE_LOCATION, RECORD_AUDIO, READ_CALENDAR).mask();
+        long neverAskAgain = PermissionSet.of(RECORD_AUDIO).mask();
+        long granted = PermissionSet.of(WRITE_CONTACTS).mask();
+
+        long[] stages = PermissionRequestPlanner.staged(1, false).plan(needed, neverAskAgain, granted);
+
+        assertEquals(3, stages.length);
+        long all = 0L;
+        for (long stage : stages) {
+            assertEquals(0L, stage & all);
+            all |= stage;
+        }
+        assertEquals(needed & ~neverAskAgain, all);
+
+        // The contacts group has a granted permission, it costs no page and joins the first stage.
+        assertTrue(PermissionSet.fromMask(stages[0]).contains(READ_CONTACTS));
+        assertEquals(2, PermissionSet.fromMask(stages[0]).size());
+
+        long location = PermissionSet.of(ACCESS_FINE_LOCATION, ACCESS_COARSE_LOCATION).mask();
+        boolean together = false;
+        for (long stage : stages) {
+            together |= (stage & location) == location;
+        }
+        assertTrue(together);
+
+        long[] allAtOnce = PermissionRequestPlanner.allAtOnce().plan(needed, neverAskAgain, granted);
+        assertEquals(1, allAtOnce.length);
+        assertEquals(needed & ~neverAskAgain, allAtOnce[0]);
+    }
+
+    @Test
+    public void stagedRequest_stopsAtDenial() throws Exception {
+        PermissionHelper helper = new PermissionHelper(new Activity());
+        final List<PermissionOutcome> outcomes = new ArrayList<>();
+        PermissionSet permissions = PermissionSet.of(CAMERA, READ_CONTACTS, ACCESS_FINE_LOCATION);
+
+        helper.checkDeviceAndRequestPermissions(REQUEST_CODE, permissions, PermissionRequestPlanner.staged(1, true),
+                new PermissionHelper.PermissionOutcomeCallback() {
+                    @Override
+                    public void onPermissionOutcome(PermissionOutcome outcome) {
+                        outcomes.add(outcome);
+                    }
+                });
+        assertEquals(1, mBackend.getRequestCount());
+        assertEquals(1, mBackend.getLastRequestedPermissions().length);
+
+        mBackend.setState(mBackend.getLastRequestedPermissions()[0], FakePermissionBackend.STATE_DENIED_ONCE);
+        helper.onRequestPermissionsResult(REQUEST_CODE, mBackend.getLastRequestedPermissions(),
+                mBackend.answer(mBackend.getLastRequestedPermissions()));
+
+        assertEquals(1, mBackend.getRequestCount());
+        assertEquals(1, outcomes.size());
+        assertEquals(permissions, outcomes.get(0).getDenied());
+    }
+
+    @Test
+    public void stagedRequest_deliversOneOutcome() throws Exception {
+        PermissionHelper helper = new PermissionHelper(new Activity());
+        final List<PermissionOutcome> outcomes = new ArrayList<>();
+        mBackend.grant(WRITE_CONTACTS);
+
+        helper.checkDeviceAndRequestPermissions(REQUEST_CODE, PermissionSet.of(CAMERA, READ_CONTACTS, WRITE_CONTACTS, ACCESS_FINE_LOCATION),
+                PermissionRequestPlanner.staged(1, true), new PermissionHelper.PermissionOutcomeCallback() {
+                    @Override
+                    public void onPermissionOutcome(PermissionOutcome outcome) {
+                        outcomes.add(outcome);
+                    }
+                });
+
+        for (int stage = 0; outcomes.isEmpty(); stage++) {
+            assertEquals(stage + 1, mBackend.getRequestCount());
+            String[] requested = mBackend.getLastRequestedPermissions();
+            for (String permission : requested) {
+                mBackend.grant(permission);
+            }
+            helper.onRequestPermissionsResult(REQUEST_CODE, requested, mBackend.answer(requested));
+        }
+
+        assertEquals(2, mBackend.getRequestCount());
+        assertTrue(outcomes.get(0).isAllGranted());
+        assertEquals(PermissionSet.of(WRITE_CONTACTS), outcomes.get(0).getAlreadyGranted());
+    }
+
+    @Test
+    public void interruptedStagedRequest_deniesUnaskedStages() throws Exception {
+        PermissionHelper helper = new PermissionHelper(new Activity());
+        final List<PermissionOutcome> outcomes = new ArrayList<>();
+        PermissionSet permissions = PermissionSet.of(CAMERA, READ_CONTACTS, ACCESS_FINE_LOCATION);
+
+        helper.checkDeviceAndRequestPermissions(REQUEST_CODE, permissions, PermissionRequestPlanner.staged(1, false),
+                new PermissionHelper.PermissionOutcomeCallback() {
+                    @Override
+                    public void onPermissionOutcome(PermissionOutcome outcome) {
+                        outcomes.add(outcome);
+                    }
+                });
+        String[] first = mBackend.getLastRequestedPermissions();
+        mBackend.grant(first[0]);
+        helper.onRequestPermissionsResult(REQUEST_CODE, first, mBackend.answer(first));
+        assertEquals(2, mBackend.getRequestCount());
+
+        // The second dialog is closed without an answer.
+        helper.onRequestPermissionsResult(REQUEST_CODE, new String[0], new int[0]);
+
+        assertEquals(2, mBackend.getRequestCount());
+        assertEquals(1, outcomes.size());
+        PermissionOutcome outcome = outcomes.get(0);
+        assertFalse(outcome.isAllGranted());
+        assertEquals(PermissionSet.of(first), outcome.getGranted());
+        assertEquals(permissions.difference(PermissionSet.of(first)), outcome.getDenied());
+        assertTrue(outcome.getNeverAskAgain().isEmpty());
+    }
+
+    @Test
+    public void finishingActivity_stopsStagedRequest() throws Exception {
+        FinishingActivity activity = new FinishingActivity();
+        PermissionHelper helper = new PermissionHelper(activity);
+        final List<PermissionOutcome> outcomes = new ArrayList<>();
+        PermissionSet permissions = PermissionSet.of(CAMERA, READ_CONTACTS, ACCESS_FINE_LOCATION);
+
+        helper.checkDeviceAndRequestPermissions(REQUEST_CODE, permissions, PermissionRequestPlanner.staged(1, false),
+                new PermissionHelper.PermissionOutcomeCallback() {
+                    @Override
+                    public void onPermissionOutcome(PermissionOutcome outcome) {
+                        outcomes.add(outcome);
+                    }
+                });
+        String[] first = mBackend.getLastRequestedPermissions();
+        mBackend.grant(first[0]);
+        activity.mFinishing = true;
+        helper.onRequestPermissionsResult(REQUEST_CODE, first, mBackend.answer(first));
+
+        assertEquals(1, mBackend.getRequestCount());
+        assertEquals(1, outcomes.size());
+        assertEquals(PermissionSet.of(first), outcomes.get(0).getGranted());
+        assertEquals(permissions.difference(PermissionSet.of(first)), outcomes.get(0).getDenied());
+    }
+
+    @Test
+    public void onboarding_needsFewerPromptsAndReRequests() throws Exception {
+        Stats plain = simulate(null);
+        Stats planned = simulate(PermissionRequestPlanner.allAtOnce());
+        Stats staged = simulate(PermissionRequestPlanner.staged(2, true));
+
+        String report = "plain " + plain + ", planned " + planned + ", staged " + staged;
+
+        // The same pages are shown and granted, but the never ask again permissions are not sent again.
+        assertEquals(report, plain.mPrompts, planned.mPrompts);
+        assertEquals(report, plain.mGranted, planned.mGranted);
+        assertTrue(report, plain.mReRequests > 0);
+        assertEquals(report, 0, planned.mReRequests);
+
+        // Stopping at the first denial trades pages for grants.
+        assertTrue(report, staged.mPrompts < plain.mPrompts);
+        assertEquals(report, 0, staged.mReRequests);
+    }
+
+    /**
+     * Runs the onboarding of every user: each session asks the permissions, and asks again once after the
+     * explanation if one is denied. The planner is null for the plain request.
+     */
+    private Stats simulate(PermissionRequestPlanner planner) {
+        Stats stats = new Stats();
+        PermissionSet onboarding = PermissionSet.of(ONBOARDING);
+
+        for (int user = 0; user < USERS; user++) {
+            SimulatedPlatform platform = new SimulatedPlatform(user, stats);
+            PermissionHelper.setBackend(platform);
+            PermissionJournal journal = new PermissionJournal(mJournalFile, NO_FLUSH);
+            journal.load();
+            PermissionJournal.setInstance(journal);
+            PermissionRequestEngine.getInstance().clear();
+            mActivity = new Activity();
+            PermissionHelper helper = new PermissionHelper(mActivity);
+
+            for (int session = 0; session < SESSIONS; session++) {
+                PermissionStateCache.getInstance().invalidate();
+                PermissionOutcome outcome = onboard(helper, platform, onboarding, planner);
+                if (! outcome.getDenied().isEmpty()) {
+                    outcome = onboard(helper, platform, onboarding, planner);
+                }
+                if (session == SESSIONS - 1) {
+                    stats.mGranted += outcome.getGranted().size();
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static PermissionOutcome onboard(PermissionHelper helper, SimulatedPlatform platform,
+                                             PermissionSet permissions, PermissionRequestPlanner planner) {
+        final PermissionOutcome[] result = new PermissionOutcome[1];
+        PermissionHelper.PermissionOutcomeCallback callback = new PermissionHelper.PermissionOutcomeCallback() {
+            @Override
+            public void onPermissionOutcome(PermissionOutcome outcome) {
+                result[0] = outcome;
+            }
+        };
+
+        if (planner == null) {
+            helper.checkDeviceAndRequestPermissions(REQUEST_CODE, permissions, callback);
+        } else {
+            helper.checkDeviceAndRequestPermissions(REQUEST_CODE, permissions, planner, callback);
+        }
+
+        while (result[0] == null) {
+            assertTrue("No dialog and no outcome", platform.answer(helper));
+        }
+        return result[0];
+    }
+
+    private static final class Stats {
+
+        int mRounds;
+        int mPrompts;
+        int mReRequests;
+        int mGranted;
+
+        @Override
+        public String toString() {
+            return "{rounds=" + mRounds + ", prompts=" + mPrompts + ", reRequests=" + mReRequests + ", granted=" + mGranted + "}";
+        }
+    }
+
+    /**
+     * Permission dialogs of the platform: one page per group of the request. A permission whose group has a
+     * granted permission is granted without a page, a permission which is denied with never ask again is
+     * denied without a page.
+     */
+    private static final class SimulatedPlatform implements PermissionBackend {
+
+        private static final int DENIED = 1;
+        private static final int GRANTED = 2;
+        private static final int NEVER_ASK_AGAIN = 3;
+
+        private static final Map<String, String> GROUPS = new HashMap<>();
+
+        static {
+            GROUPS.put(CAMERA, "camera");
+            GROUPS.put(RECORD_AUDIO, "microphone");
+            GROUPS.put(ACCESS_FINE_LOCATION, "location");
+            GROUPS.put(ACCESS_COARSE_LOCATION, "location");
+            GROUPS.put(READ_CONTACTS, "contacts");
+            GROUPS.put(WRITE_CONTACTS, "contacts");
+            GROUPS.put(READ_CALENDAR, "calendar");
+            GROUPS.put(WRITE_CALENDAR, "calendar");
+        }
+
+        private final int mUser;
+        private final Stats mStats;
+        private final Map<String, Integer> mStates = new HashMap<>();
+        private final Map<String, Integer> mPages = new HashMap<>();
+
+        private String[] mRequested;
+        private int mRequestCode;
+
+        SimulatedPlatform(int user, Stats stats) {
+            mUser = user;
+            mStats = stats;
+        }
+
+        /**
+         * Answers the showing dialog. Returns false if no dialog is showing.
+         */
+        boolean answer(PermissionHelper helper) {
+            String[] requested = mRequested;
+            if (requested == null) {
+                return false;
+            }
+            mRequested = null;
+
+            Map<String, List<String>> groups = new LinkedHashMap<>();
+            for (String permission : requested) {
+                List<String> members = groups.get(GROUPS.get(permission));
+                if (members == null) {
+                    members = new ArrayList<>();
+                    groups.put(GROUPS.get(permission), members);
+                }
+                members.add(permission);
+            }
+
+            for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+                if (isGroupGranted(group.getKey())) {
+                    setStates(group.getValue(), GRANTED);
+                } else if (! isAllNeverAskAgain(group.getValue())) {
+                    mStats.mPrompts++;
+                    setStates(group.getValue(), decide(group.getKey()));
+                }
+            }
+
+            int[] grantResults = new int[requested.length];
+            for (int i = 0; i < requested.length; i++) {
+                grantResults[i] = checkSelfPermission(null, requested[i]);
+            }
+            helper.onRequestPermissionsResult(mRequestCode, requested, grantResults);
+            return true;
+        }
+
+        /**
+         * The user grants or denies the first page of a group. From the second page on, never ask again is offered.
+         */
+        private int decide(String group) {
+            Integer pages = mPages.get(group);
+            int page = pages != null ? pages : 0;
+            mPages.put(group, page + 1);
+
+            double choice = new Random(mUser * 1000003L + group.hashCode() * 31L + page).nextDouble();
+            if (page == 0) {
+                return choice < 0.6 ? GRANTED : DENIED;
+            }
+            return choice < 0.4 ? GRANTED : choice < 0.7 ? DENIED : NEVER_ASK_AGAIN;
+        }
+
+        private boolean isGroupGranted(String group) {
+            for (Map.Entry<String, String> entry : GROUPS.entrySet()) {
+                if (entry.getValue().equals(group) && stateOf(entry.getKey()) == GRANTED) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isAllNeverAskAgain(List<String> permissions) {
+            for (String permission : permissions) {
+                if (stateOf(permission) != NEVER_ASK_AGAIN) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void setStates(List<String> permissions, int state) {
+            for (String permission : permissions) {
+                mStates.put(permission, state);
+            }
+        }
+
+        private int stateOf(String permission) {
+            Integer state = mStates.get(permission);
+            return state != null ? state : 0;
+        }
+
+        @Override
+        public int checkSelfPermission(Context context, String permission) {
+            return stateOf(permission) == GRANTED ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+        }
+
+        @Override
+        public void requestPermissions(Activity activity, String[] permissions, int requestCode) {
+            mStats.mRounds++;
+            for (String permission : permissions) {
+                if (stateOf(permission) == NEVER_ASK_AGAIN) {
+                    mStats.mReRequests++;
+                }
+            }
+            mRequested = permissions;
+            mRequestCode = requestCode;
+        }
+
+        @Override
+        public boolean shouldShowRequestPermissionRationale(Activity activity, String permission) {
+            return stateOf(permission) == DENIED;
+        }
+
+        @Override
+        public int getSdkInt() {
+            return Build.VERSION_CODES.M;
+        }
+    }
+
+    private static final class FinishingActivity extends Activity {
+
+        boolean mFinishing;
+
+        @Override
+        public boolean isFinishing() {
+            return mFinishing;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A request which is in the dialog when the process is killed must finish in the recreated activity,
+ * without a second dialog and without checking the permissions again.
+ * The killed process is simulated by clearing the engine and the state cache.
+ */
+public class PermissionRequestRestoreTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final int REQUEST_CODE = 11;
+
+    private FakePermissionBackend mBackend;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionRequestEngine.getInstance().clear();
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void restoredRequest_finishesWithoutSecondDialog() throws Exception {
+        HostActivity killed = new HostActivity();
+        mBackend.grant(READ_CONTACTS);
+        new PermissionHelper(killed).checkDeviceAndRequestPermissions(REQUEST_CODE, new String[] {CAMERA, READ_CONTACTS}, killed);
+        assertEquals(1, mBackend.getRequestCount());
+
+        PermissionRequestEngine.SavedState state = PermissionRequestEngine.getInstance().saveState(killed);
+        assertNotNull(state);
+        assertEquals(2, state.mNames.length);
+
+        PermissionRequestEngine.getInstance().clear();
+        PermissionStateCache.getInstance().invalidate();
+        int checkCount = mBackend.getCheckCount();
+
+        HostActivity recreated = new HostActivity();
+        PermissionRequestEngine.getInstance().restoreState(recreated, state);
+        new PermissionHelper(recreated).onRequestPermissionsResult(REQUEST_CODE,
+                new String[] {CAMERA}, new int[] {PackageManager.PERMISSION_GRANTED});
+
+        assertEquals(REQUEST_CODE, recreated.mGrantedRequestCode);
+        assertTrue(recreated.mGranted.contains(CAMERA));
+        assertTrue(recreated.mGranted.contains(READ_CONTACTS));
+        assertEquals(1, mBackend.getRequestCount());
+        assertEquals(checkCount, mBackend.getCheckCount());
+        assertTrue(killed.mGranted.isEmpty());
+    }
+
+    @Test
+    public void restoredJoinedRequests_finishWithResultOfDialog() throws Exception {
+        HostActivity killed = new HostActivity();
+        PermissionHelper helper = new PermissionHelper(killed);
+        helper.checkDeviceAndRequestPermissions(REQUEST_CODE, new String[] {CAMERA, READ_CONTACTS}, killed);
+        helper.checkDeviceAndRequestPermissions(REQUEST_CODE + 1, new String[] {CAMERA}, killed);
+        assertEquals(1, mBackend.getRequestCount());
+
+        PermissionRequestEngine.SavedState state = PermissionRequestEngine.getInstance().saveState(killed);
+        PermissionRequestEngine.getInstance().clear();
+        PermissionStateCache.getInstance().invalidate();
+
+        HostActivity recreated = new HostActivity();
+        PermissionRequestEngine.getInstance().restoreState(recreated, state);
+        new PermissionHelper(recreated).onRequestPermissionsResult(REQUEST_CODE, new String[] {CAMERA, READ_CONTACTS},
+                new int[] {PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_GRANTED});
+
+        assertEquals(3, recreated.mGranted.size());
+        assertNull(PermissionRequestEngine.getInstance().saveState(recreated));
+    }
+
+    @Test
+    public void restoredDialogWithoutRequests_isWaitedFor() throws Exception {
+        HostActivity destroyed = new HostActivity();
+        new PermissionHelper(destroyed).checkDeviceAndRequestPermissions(REQUEST_CODE, new String[] {CAMERA},
+                new PermissionHelper.PermissionResultCallback() {
+                    @Override
+                    public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+                    }
+
+                    @Override
+                    public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+                    }
+
+                    @Override
+                    public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+                    }
+                });
+        destroyed.mChangingConfigurations = true;
+        PermissionRequestEngine.getInstance().onActivityDestroyed(destroyed);
+
+        HostActivity killed = new HostActivity();
+        PermissionRequestEngine.getInstance().onActivityCreated(killed, null);
+        PermissionRequestEngine.SavedState state = PermissionRequestEngine.getInstance().saveState(killed);
+        assertNotNull(state);
+        PermissionRequestEngine.getInstance().clear();
+        PermissionStateCache.getInstance().invalidate();
+
+        HostActivity recreated = new HostActivity();
+        PermissionRequestEngine.getInstance().restoreState(recreated, state);
+        PermissionHelper helper = new PermissionHelper(recreated);
+        helper.checkDeviceAndRequestPermissions(REQUEST_CODE + 1, new String[] {READ_CONTACTS}, recreated);
+        assertEquals(1, mBackend.getRequestCount());
+
+        helper.onRequestPermissionsResult(REQUEST_CODE, new String[] {CAMERA}, new int[] {PackageManager.PERMISSION_DENIED});
+        assertEquals(2, mBackend.getRequestCount());
+        assertArrayEquals(new String[] {READ_CONTACTS}, mBackend.getLastRequestedPermissions());
+    }
+
+    @Test
+    public void destroyedDialogHost_restoresWithoutSecondDialog() throws Exception {
+        HostActivity destroyed = new HostActivity();
+        new PermissionHelper(destroyed).checkDeviceAndRequestPermissions(REQUEST_CODE, new String[] {CAMERA}, destroyed);
+
+        // "Don't keep activities": the process lives, the activity is destroyed without a configuration change.
+        PermissionRequestEngine.SavedState state = PermissionRequestEngine.getInstance().saveState(destroyed);
+        PermissionRequestEngine.getInstance().onActivityDestroyed(destroyed);
+
+        HostActivity recreated = new HostActivity();
+        PermissionRequestEngine.getInstance().restoreState(recreated, state);
+        new PermissionHelper(recreated).onRequestPermissionsResult(REQUEST_CODE,
+                new String[] {CAMERA}, new int[] {PackageManager.PERMISSION_GRANTED});
+
+        assertEquals(1, mBackend.getRequestCount());
+        assertEquals(REQUEST_CODE, recreated.mGrantedRequestCode);
+        assertTrue(destroyed.mGranted.isEmpty());
+        assertNull(PermissionRequestEngine.getInstance().saveState(recreated));
+    }
+
+    @Test
+    public void saveState_isNullWithoutRequests() throws Exception {
+        assertNull(PermissionRequestEngine.getInstance().saveState(new HostActivity()));
+    }
+
+    @Test
+    public void compressedMask_expandsToSameSlots() throws Exception {
+        long union = PermissionSet.bit(3) | PermissionSet.bit(17) | PermissionSet.bit(40);
+        long mask = PermissionSet.bit(17) | PermissionSet.bit(40);
+
+        long compressed = PermissionRequestEngine.SavedState.compress(mask, union);
+        assertEquals(6L, compressed);
+
+        long[] slots = {PermissionSet.bit(3), PermissionSet.bit(17), PermissionSet.bit(40)};
+        assertEquals(mask, PermissionRequestEngine.SavedState.expand(compressed, slots));
+    }
+
+    public static class HostActivity extends Activity implements PermissionHelper.PermissionResultCallback {
+
+        final List<String> mGranted = new ArrayList<>();
+        boolean mChangingConfigurations;
+        int mGrantedRequestCode = -1;
+
+        @Override
+        public boolean isChangingConfigurations() {
+            return mChangingConfigurations;
+        }
+
+        @Override
+        public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+            mGrantedRequestCode = requestCode;
+            mGranted.addAll(permissionsGranted);
+        }
+
+        @Override
+        public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+        }
+
+        @Override
+        public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+        }
+    }
+}
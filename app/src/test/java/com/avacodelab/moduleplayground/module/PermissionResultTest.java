@@ -0,0 +1,126 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Classification into a pooled holder must not allocate after the pool is warmed up. This is not a zero-allocation
+ * test of onRequestPermissionsResult(): only the holder is measured, the rest of the result path allocates, see
+ * {@link PermissionResult}. Allocations are counted by the per thread allocation counter of the JVM.
+ */
+public class PermissionResultTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final int REQUEST_CODE = 5;
+
+    private static final String[] PERMISSIONS = {CAMERA, FINE_LOCATION, READ_CONTACTS};
+    private static final int[] GRANT_RESULTS = {
+            PackageManager.PERMISSION_GRANTED,
+            PackageManager.PERMISSION_DENIED,
+            PackageManager.PERMISSION_DENIED
+    };
+
+    @Test
+    public void classify_partitionsResults() throws Exception {
+        long needed = PermissionSet.of(PERMISSIONS).mask();
+
+        PermissionResult result = PermissionResult.obtain();
+        result.classify(PERMISSIONS, GRANT_RESULTS, needed);
+        result.markNeverAskAgain(PermissionRegistry.slotOf(READ_CONTACTS));
+
+        assertEquals(PermissionSet.of(CAMERA).mask(), result.getGranted());
+        assertEquals(PermissionSet.of(FINE_LOCATION).mask(), result.getDenied());
+        assertEquals(PermissionSet.of(READ_CONTACTS).mask(), result.getNeverAskAgain());
+
+        result.recycle();
+    }
+
+    @Test
+    public void callbackLists_stayValidAfterCallback() throws Exception {
+        FakePermissionBackend backend = new FakePermissionBackend();
+        PermissionHelper.setBackend(backend);
+        PermissionStateCache.getInstance().invalidate();
+        try {
+            final List<List<String>> lists = new ArrayList<>();
+            PermissionHelper.PermissionResultCallback callback = new PermissionHelper.PermissionResultCallback() {
+                @Override
+                public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+                    lists.add(permissionsGranted);
+                }
+
+                @Override
+                public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+                    lists.add(permissionsDenied);
+                }
+
+                @Override
+                public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+                    lists.add(permissionsNeverAskAgain);
+                }
+            };
+
+            PermissionHelper helper = new PermissionHelper(new Activity());
+            helper.checkDeviceAndRequestPermissions(REQUEST_CODE, PERMISSIONS, callback);
+            helper.onRequestPermissionsResult(REQUEST_CODE, PERMISSIONS, GRANT_RESULTS);
+            helper.checkDeviceAndRequestPermissions(REQUEST_CODE, new String[] {FINE_LOCATION}, callback);
+            helper.onRequestPermissionsResult(REQUEST_CODE, new String[] {FINE_LOCATION}, new int[] {PackageManager.PERMISSION_GRANTED});
+
+            assertEquals(3, lists.size());
+            assertEquals(Arrays.asList(CAMERA), lists.get(0));
+            assertEquals(Arrays.asList(FINE_LOCATION, READ_CONTACTS), lists.get(1));
+            assertEquals(Arrays.asList(FINE_LOCATION), lists.get(2));
+
+            lists.get(1).remove(READ_CONTACTS);
+            assertEquals(Arrays.asList(FINE_LOCATION), lists.get(1));
+        } finally {
+            PermissionRequestEngine.getInstance().clear();
+            PermissionHelper.setBackend(null);
+        }
+    }
+
+    @Test
+    public void classify_doesNotAllocateAfterWarmUp() throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assertTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        long needed = PermissionSet.of(PERMISSIONS).mask();
+        int neverAskAgainSlot = PermissionRegistry.slotOf(READ_CONTACTS);
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < 20000; i++) {
+            dispatch(needed, neverAskAgainSlot);
+        }
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        int checksum = 0;
+        for (int i = 0; i < 10000; i++) {
+            checksum += dispatch(needed, neverAskAgainSlot);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(30000, checksum);
+        assertEquals("Bytes allocated by 10000 result dispatches", 0L, allocated);
+    }
+
+    private static int dispatch(long needed, int neverAskAgainSlot) {
+        PermissionResult result = PermissionResult.obtain();
+        result.classify(PERMISSIONS, GRANT_RESULTS, needed);
+        result.markNeverAskAgain(neverAskAgainSlot);
+
+        int count = Long.bitCount(result.getGranted()) + Long.bitCount(result.getDenied()) + Long.bitCount(result.getNeverAskAgain());
+        result.recycle();
+        return count;
+    }
+}
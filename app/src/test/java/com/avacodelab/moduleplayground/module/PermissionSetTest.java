@@ -0,0 +1,154 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+import android.content.pm.PackageManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mask operations of {@link PermissionSet} and the order of its views and of the lists given to the callbacks.
+ */
+public class PermissionSetTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    private static final int REQUEST_CODE = 13;
+
+    private FakePermissionBackend mBackend;
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+
+        // Registers the permissions in this order, so the tests below do not use the registration order.
+        PermissionSet.of(CAMERA, READ_CONTACTS, ACCESS_FINE_LOCATION);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionRequestEngine.getInstance().clear();
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void maskOperations() throws Exception {
+        PermissionSet cameraAndContacts = PermissionSet.of(CAMERA, READ_CONTACTS);
+        PermissionSet contactsAndLocation = PermissionSet.of(READ_CONTACTS, ACCESS_FINE_LOCATION);
+
+        assertEquals(PermissionSet.of(CAMERA, READ_CONTACTS, ACCESS_FINE_LOCATION), cameraAndContacts.union(contactsAndLocation));
+        assertEquals(PermissionSet.of(CAMERA), cameraAndContacts.difference(contactsAndLocation));
+        assertEquals(PermissionSet.of(READ_CONTACTS), cameraAndContacts.intersect(contactsAndLocation));
+        assertTrue(cameraAndContacts.difference(cameraAndContacts).isEmpty());
+
+        assertTrue(cameraAndContacts.contains(CAMERA));
+        assertFalse(cameraAndContacts.contains(ACCESS_FINE_LOCATION));
+        assertFalse(cameraAndContacts.contains("com.avacodelab.permission.NEVER_REGISTERED"));
+        assertTrue(cameraAndContacts.containsAll(PermissionSet.of(READ_CONTACTS)));
+        assertFalse(cameraAndContacts.containsAll(contactsAndLocation));
+        assertEquals(2, cameraAndContacts.size());
+    }
+
+    @Test
+    public void equalSets_ignoreOrder() throws Exception {
+        PermissionSet given = PermissionSet.of(ACCESS_FINE_LOCATION, CAMERA);
+        PermissionSet registered = PermissionSet.of(CAMERA, ACCESS_FINE_LOCATION);
+
+        assertEquals(registered, given);
+        assertEquals(registered.hashCode(), given.hashCode());
+    }
+
+    @Test
+    public void views_keepGivenOrderWithoutDuplicates() throws Exception {
+        PermissionSet permissions = PermissionSet.of(ACCESS_FINE_LOCATION, CAMERA, ACCESS_FINE_LOCATION, READ_CONTACTS);
+        List<String> expected = Arrays.asList(ACCESS_FINE_LOCATION, CAMERA, READ_CONTACTS);
+
+        assertEquals(expected, permissions.asList());
+        assertEquals(expected, Arrays.asList(permissions.toArray()));
+        assertEquals(expected, new ArrayList<>(permissions.asList()));
+        assertEquals(CAMERA, permissions.asList().get(1));
+        assertEquals(expected, PermissionSet.of(permissions.asList()).asList());
+        assertEquals(expected, PermissionSet.of(new ArrayList<>(expected)).asList());
+    }
+
+    @Test
+    public void operations_keepOrderOfThisSet() throws Exception {
+        PermissionSet permissions = PermissionSet.of(ACCESS_FINE_LOCATION, READ_CONTACTS, CAMERA);
+
+        assertEquals(Arrays.asList(ACCESS_FINE_LOCATION, CAMERA),
+                permissions.difference(PermissionSet.of(READ_CONTACTS)).asList());
+        assertEquals(Arrays.asList(ACCESS_FINE_LOCATION, CAMERA),
+                permissions.intersect(PermissionSet.of(CAMERA, ACCESS_FINE_LOCATION)).asList());
+        assertEquals(Arrays.asList(ACCESS_FINE_LOCATION, CAMERA, READ_CONTACTS),
+                PermissionSet.of(ACCESS_FINE_LOCATION, CAMERA).union(PermissionSet.of(READ_CONTACTS, CAMERA)).asList());
+    }
+
+    @Test
+    public void setFromMask_isInRegistrationOrder() throws Exception {
+        long mask = PermissionSet.of(ACCESS_FINE_LOCATION, CAMERA).mask();
+
+        assertEquals(Arrays.asList(CAMERA, ACCESS_FINE_LOCATION), PermissionSet.fromMask(mask).asList());
+    }
+
+    @Test
+    public void callbackLists_keepRequestedOrder() throws Exception {
+        mBackend.grant(READ_CONTACTS);
+        HostActivity activity = new HostActivity();
+        PermissionHelper helper = new PermissionHelper(activity);
+
+        helper.checkDeviceAndRequestPermissions(REQUEST_CODE,
+                new String[] {ACCESS_FINE_LOCATION, READ_CONTACTS, CAMERA}, activity);
+        helper.onRequestPermissionsResult(REQUEST_CODE, new String[] {CAMERA, ACCESS_FINE_LOCATION},
+                new int[] {PackageManager.PERMISSION_GRANTED, PackageManager.PERMISSION_GRANTED});
+
+        assertEquals(Arrays.asList(ACCESS_FINE_LOCATION, READ_CONTACTS, CAMERA), activity.mGranted);
+    }
+
+    @Test
+    public void grantedRequest_keepsRequestedOrder() throws Exception {
+        mBackend.grant(CAMERA);
+        mBackend.grant(ACCESS_FINE_LOCATION);
+        HostActivity activity = new HostActivity();
+
+        new PermissionHelper(activity).checkDeviceAndRequestPermissions(REQUEST_CODE,
+                new String[] {ACCESS_FINE_LOCATION, CAMERA}, activity);
+
+        assertEquals(Arrays.asList(ACCESS_FINE_LOCATION, CAMERA), activity.mGranted);
+    }
+
+    @Test
+    public void emptyInput_isEmptySet() throws Exception {
+        assertSame(PermissionSet.EMPTY, PermissionSet.of());
+        assertSame(PermissionSet.EMPTY, PermissionSet.of(Collections.<String>emptyList()));
+        assertTrue(PermissionSet.EMPTY.asList().isEmpty());
+    }
+
+    public static class HostActivity extends Activity implements PermissionHelper.PermissionResultCallback {
+
+        final List<String> mGranted = new ArrayList<>();
+
+        @Override
+        public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+            mGranted.addAll(permissionsGranted);
+        }
+
+        @Override
+        public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+        }
+
+        @Override
+        public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+        }
+    }
+}
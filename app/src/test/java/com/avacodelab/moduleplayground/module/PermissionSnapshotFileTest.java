@@ -0,0 +1,229 @@
+package com.avacodelab.moduleplayground.module;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * The other process is a second JVM which runs {@link Writer}, with the test classpath.
+ */
+public class PermissionSnapshotFileTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String ACCESS_FINE_LOCATION = "android.permission.ACCESS_FINE_LOCATION";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+    private static final String RECORD_AUDIO = "android.permission.RECORD_AUDIO";
+    private static final String READ_CALENDAR = "android.permission.READ_CALENDAR";
+
+    private static final int WRITES = 20000;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("permission_snapshot", null);
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void answers_arePublishedWithVersion() throws Exception {
+        PermissionSnapshotFile writer = new PermissionSnapshotFile(mFile, myPid(), DIRECT);
+        PermissionSnapshotFile reader = new PermissionSnapshotFile(mFile, myPid() + 1, DIRECT);
+        assertNull(reader.read());
+
+        writer.publish(PermissionSet.of(CAMERA).mask(), PermissionSet.of(READ_CONTACTS).mask(), 0L);
+        PermissionSnapshotFile.State state = reader.read();
+        assertEquals(1L, state.mVersion);
+        assertEquals(PermissionSet.of(CAMERA).mask(), state.maskOf(PermissionStateSnapshot.STATE_GRANTED));
+
+        writer.publish(PermissionSet.of(READ_CONTACTS).mask(), 0L, PermissionSet.of(ACCESS_FINE_LOCATION).mask());
+        state = reader.read();
+        assertEquals(2L, state.mVersion);
+        assertEquals(PermissionSet.of(CAMERA, READ_CONTACTS).mask(), state.maskOf(PermissionStateSnapshot.STATE_GRANTED));
+        assertEquals(PermissionSet.of(ACCESS_FINE_LOCATION).mask(), state.maskOf(PermissionStateSnapshot.STATE_NEVER_ASK_AGAIN));
+        assertEquals(PermissionSet.of(CAMERA).mask(), reader.grantedMask(PermissionSet.of(CAMERA, ACCESS_FINE_LOCATION).mask()));
+    }
+
+    @Test
+    public void check_usesOnlyStateReadOnExecutor() throws Exception {
+        PermissionSnapshotFile writer = new PermissionSnapshotFile(mFile, myPid(), DIRECT);
+        writer.publish(PermissionSet.of(CAMERA).mask(), 0L, 0L);
+        long permissions = PermissionSet.of(CAMERA, READ_CONTACTS).mask();
+
+        QueuedExecutor executor = new QueuedExecutor();
+        PermissionSnapshotFile reader = new PermissionSnapshotFile(mFile, myPid() + 1, executor);
+        assertEquals(0L, reader.grantedMask(permissions));
+        assertEquals(0L, reader.grantedMask(permissions));
+        assertEquals(1, executor.mTasks.size());
+
+        executor.runAll();
+        assertEquals(PermissionSet.of(CAMERA).mask(), reader.grantedMask(permissions));
+        assertTrue(executor.mTasks.isEmpty());
+
+        // The state which is behind the file is used until the executor read the new version.
+        writer.publish(PermissionSet.of(READ_CONTACTS).mask(), 0L, 0L);
+        assertEquals(PermissionSet.of(CAMERA).mask(), reader.grantedMask(permissions));
+        executor.runAll();
+        assertEquals(permissions, reader.grantedMask(permissions));
+    }
+
+    @Test
+    public void tornWrite_isNotRead() throws Exception {
+        PermissionSnapshotFile writer = new PermissionSnapshotFile(mFile, myPid(), DIRECT);
+        writer.publish(PermissionSet.of(CAMERA).mask(), 0L, 0L);
+
+        // The writer died in the middle of the next write.
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, PermissionSnapshotFile.SIZE);
+        buffer.putLong(PermissionSnapshotFile.OFFSET_SEQUENCE, 3L);
+        buffer.put(PermissionSnapshotFile.OFFSET_CONTENT + 4, (byte) 7);
+        assertNull(PermissionSnapshotFile.read(buffer));
+
+        // A complete sequence with the content which does not match its CRC.
+        buffer.putLong(PermissionSnapshotFile.OFFSET_SEQUENCE, 4L);
+        assertNull(PermissionSnapshotFile.read(buffer));
+        file.close();
+
+        // The next write repairs the file, the unreadable state is lost.
+        writer.publish(PermissionSet.of(READ_CONTACTS).mask(), 0L, 0L);
+        PermissionSnapshotFile.State state = new PermissionSnapshotFile(mFile, myPid(), DIRECT).read();
+        assertEquals(3L, state.mVersion);
+        assertEquals(PermissionSet.of(READ_CONTACTS).mask(), state.maskOf(PermissionStateSnapshot.STATE_GRANTED));
+    }
+
+    @Test
+    public void grantsOfDeadWriter_areNotMergedIntoNewWrite() throws Exception {
+        // An earlier process had the pid of this one, it started at another time.
+        long earlierStartTime = PermissionSnapshotFile.startTimeOf(myPid()) - 1L;
+        PermissionSnapshotFile deadWriter = new PermissionSnapshotFile(mFile, myPid(), earlierStartTime, DIRECT);
+        deadWriter.publish(PermissionSet.of(CAMERA).mask(), PermissionSet.of(READ_CONTACTS).mask(), 0L);
+
+        PermissionSnapshotFile reader = new PermissionSnapshotFile(mFile, myPid() + 1, DIRECT);
+        assertNull(reader.read());
+
+        new PermissionSnapshotFile(mFile, myPid(), DIRECT).publish(PermissionSet.of(ACCESS_FINE_LOCATION).mask(), 0L, 0L);
+
+        PermissionSnapshotFile.State state = reader.read();
+        assertEquals(PermissionSet.of(ACCESS_FINE_LOCATION).mask(), state.maskOf(PermissionStateSnapshot.STATE_GRANTED));
+        assertEquals(PermissionSet.of(READ_CONTACTS).mask(), state.maskOf(PermissionStateSnapshot.STATE_DENIED));
+    }
+
+    @Test
+    public void startTime_identifiesLiveProcess() throws Exception {
+        assertTrue(PermissionSnapshotFile.startTimeOf(myPid()) > 0L);
+        assertEquals(PermissionSnapshotFile.startTimeOf(myPid()), PermissionSnapshotFile.startTimeOf(myPid()));
+        assertEquals(0L, PermissionSnapshotFile.startTimeOf(-1));
+    }
+
+    @Test
+    public void otherProcess_neverSeesTornState() throws Exception {
+        PermissionSet permissions = PermissionSet.of(CAMERA, ACCESS_FINE_LOCATION, READ_CONTACTS, RECORD_AUDIO, READ_CALENDAR);
+        Process writer = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                Writer.class.getName(), mFile.getPath(), String.valueOf(WRITES))
+                .inheritIO()
+                .start();
+
+        PermissionSnapshotFile reader = new PermissionSnapshotFile(mFile, myPid(), DIRECT);
+        long lastVersion = 0L;
+        int reads = 0;
+        boolean exited = false;
+        while (! exited) {
+            exited = ! isAlive(writer);
+
+            PermissionSnapshotFile.State state = reader.read();
+            if (state == null) {
+                continue;
+            }
+
+            long granted = state.maskOf(PermissionStateSnapshot.STATE_GRANTED);
+            long denied = state.maskOf(PermissionStateSnapshot.STATE_DENIED);
+            assertTrue("Version " + state.mVersion + " after " + lastVersion, state.mVersion >= lastVersion);
+            assertEquals(permissions.mask(), granted | denied);
+            assertEquals(state.mVersion % 2 == 1 ? permissions.mask() : 0L, granted);
+
+            lastVersion = state.mVersion;
+            reads++;
+        }
+
+        assertEquals(0, writer.waitFor());
+        assertTrue(reads > 0);
+        assertEquals(WRITES, reader.read().mVersion);
+
+        // A process which starts after the writer died does not trust the state, its permissions may be revoked.
+        assertNull(new PermissionSnapshotFile(mFile, myPid(), DIRECT).read());
+    }
+
+    private static final class QueuedExecutor implements Executor {
+
+        final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            while (! mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+    }
+
+    private static boolean isAlive(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private static int myPid() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        return Integer.parseInt(name.substring(0, name.indexOf('@')));
+    }
+
+    /**
+     * Publishes the permissions as granted in odd versions and as denied in even versions.
+     */
+    public static final class Writer {
+
+        public static void main(String[] args) {
+            long permissions = PermissionSet.of(CAMERA, ACCESS_FINE_LOCATION, READ_CONTACTS, RECORD_AUDIO, READ_CALENDAR).mask();
+            PermissionSnapshotFile snapshotFile = new PermissionSnapshotFile(new File(args[0]), myPid(), DIRECT);
+
+            for (int i = 0, writes = Integer.parseInt(args[1]); i < writes; i++) {
+                if (i % 2 == 0) {
+                    snapshotFile.publish(permissions, 0L, 0L);
+                } else {
+                    snapshotFile.publish(0L, permissions, 0L);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Epochs of {@link PermissionStateCache}: invalidation drops every cached result, and a result which was checked
+ * before an invalidation is not stored. Only a return of the app to the foreground invalidates, not a screen change.
+ */
+public class PermissionStateCacheTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+
+    private PermissionStateCache mCache;
+    private int mCamera;
+    private int mContacts;
+
+    @Before
+    public void setUp() throws Exception {
+        mCache = PermissionStateCache.getInstance();
+        mCache.invalidate();
+        mCamera = PermissionRegistry.slotOf(CAMERA);
+        mContacts = PermissionRegistry.slotOf(READ_CONTACTS);
+    }
+
+    @Test
+    public void put_isCachedInItsEpoch() throws Exception {
+        int epoch = mCache.snapshot().mEpoch;
+        mCache.put(mCamera, true, epoch);
+        mCache.put(mContacts, false, epoch);
+
+        PermissionStateCache.Snapshot snapshot = mCache.snapshot();
+        assertEquals(epoch, snapshot.mEpoch);
+        assertEquals(PermissionStateCache.STATE_GRANTED, snapshot.get(mCamera));
+        assertEquals(PermissionStateCache.STATE_DENIED, snapshot.get(mContacts));
+    }
+
+    @Test
+    public void invalidate_startsNewEpochWithoutResults() throws Exception {
+        int epoch = mCache.snapshot().mEpoch;
+        mCache.put(mCamera, true, epoch);
+
+        mCache.invalidate();
+
+        PermissionStateCache.Snapshot snapshot = mCache.snapshot();
+        assertEquals(epoch + 1, snapshot.mEpoch);
+        assertEquals(0L, snapshot.mChecked);
+        assertEquals(PermissionStateCache.STATE_UNKNOWN, snapshot.get(mCamera));
+    }
+
+    @Test
+    public void staleWrites_areDropped() throws Exception {
+        int staleEpoch = mCache.snapshot().mEpoch;
+        mCache.invalidate();
+        int epoch = mCache.snapshot().mEpoch;
+        mCache.put(mContacts, true, epoch);
+
+        mCache.put(mCamera, true, staleEpoch);
+        long mask = PermissionSet.bit(mCamera) | PermissionSet.bit(mContacts);
+        mCache.putAll(mask, 0L, staleEpoch);
+
+        PermissionStateCache.Snapshot snapshot = mCache.snapshot();
+        assertEquals(epoch, snapshot.mEpoch);
+        assertEquals(PermissionStateCache.STATE_UNKNOWN, snapshot.get(mCamera));
+        assertEquals(PermissionStateCache.STATE_GRANTED, snapshot.get(mContacts));
+    }
+
+    @Test
+    public void putAll_keepsOtherSlots() throws Exception {
+        int epoch = mCache.snapshot().mEpoch;
+        mCache.put(mContacts, true, epoch);
+
+        mCache.putAll(PermissionSet.bit(mCamera), PermissionSet.bit(mCamera), epoch);
+
+        PermissionStateCache.Snapshot snapshot = mCache.snapshot();
+        assertEquals(PermissionStateCache.STATE_GRANTED, snapshot.get(mCamera));
+        assertEquals(PermissionStateCache.STATE_GRANTED, snapshot.get(mContacts));
+    }
+
+    @Test
+    public void invalidate_tellsListenersUntilRemoved() throws Exception {
+        final AtomicInteger invalidations = new AtomicInteger();
+        PermissionStateCache.InvalidationListener listener = new PermissionStateCache.InvalidationListener() {
+            @Override
+            public void onInvalidated() {
+                invalidations.incrementAndGet();
+            }
+        };
+
+        mCache.addInvalidationListener(listener);
+        mCache.addInvalidationListener(listener);
+        mCache.invalidate();
+        assertEquals(1, invalidations.get());
+
+        mCache.removeInvalidationListener(listener);
+        mCache.invalidate();
+        assertEquals(1, invalidations.get());
+    }
+
+    @Test
+    public void screenChanges_keepEpoch() throws Exception {
+        PermissionStateCache.ForegroundCallbacks callbacks = new PermissionStateCache.ForegroundCallbacks();
+        Activity launcher = new Activity();
+        Activity screen = new Activity();
+        int epoch = mCache.snapshot().mEpoch;
+
+        // The launcher was started before the callbacks were registered.
+        callbacks.onActivityStarted(screen);
+        callbacks.onActivityStopped(launcher);
+        callbacks.onActivityStarted(launcher);
+        callbacks.onActivityStopped(screen);
+
+        assertEquals(epoch, mCache.snapshot().mEpoch);
+    }
+
+    @Test
+    public void returnFromBackground_invalidates() throws Exception {
+        PermissionStateCache.ForegroundCallbacks callbacks = new PermissionStateCache.ForegroundCallbacks();
+        Activity screen = new Activity();
+        callbacks.onActivityStarted(screen);
+        int epoch = mCache.snapshot().mEpoch;
+
+        // The user goes to the app settings and comes back.
+        callbacks.onActivityStopped(screen);
+        assertEquals(epoch, mCache.snapshot().mEpoch);
+        callbacks.onActivityStarted(screen);
+
+        assertEquals(epoch + 1, mCache.snapshot().mEpoch);
+    }
+
+    @Test
+    public void recreation_keepsEpoch() throws Exception {
+        PermissionStateCache.ForegroundCallbacks callbacks = new PermissionStateCache.ForegroundCallbacks();
+        RecreatingActivity recreating = new RecreatingActivity();
+        callbacks.onActivityStarted(recreating);
+        int epoch = mCache.snapshot().mEpoch;
+
+        recreating.mChangingConfigurations = true;
+        callbacks.onActivityStopped(recreating);
+        callbacks.onActivityStarted(new Activity());
+
+        assertEquals(epoch, mCache.snapshot().mEpoch);
+    }
+
+    private static final class RecreatingActivity extends Activity {
+
+        boolean mChangingConfigurations;
+
+        @Override
+        public boolean isChangingConfigurations() {
+            return mChangingConfigurations;
+        }
+    }
+}
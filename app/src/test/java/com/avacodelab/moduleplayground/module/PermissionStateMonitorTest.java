@@ -0,0 +1,120 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The main thread handler does not run on the JVM, so the refresh pass is called directly.
+ */
+public class PermissionStateMonitorTest {
+
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String READ_CONTACTS = "android.permission.READ_CONTACTS";
+
+    private FakePermissionBackend mBackend;
+    private Activity mActivity;
+    private final List<PermissionSet> mChanges = new ArrayList<>();
+
+    private final PermissionStateMonitor.Listener mListener = new PermissionStateMonitor.Listener() {
+        @Override
+        public void onPermissionStateChanged(PermissionStateSnapshot state, PermissionSet changed) {
+            mChanges.add(changed);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionStateCache.getInstance().invalidate();
+        mActivity = new Activity();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        PermissionStateMonitor.getInstance().onDestroyed(mActivity);
+        PermissionHelper.setBackend(null);
+    }
+
+    @Test
+    public void subscriber_isCalledOnlyForChanges() throws Exception {
+        PermissionStateMonitor monitor = PermissionStateMonitor.getInstance();
+        monitor.subscribe(mActivity, PermissionSet.of(CAMERA, READ_CONTACTS), mListener);
+        assertEquals(1, mChanges.size());
+
+        PermissionStateCache.getInstance().invalidate();
+        monitor.refresh();
+        assertEquals(1, mChanges.size());
+
+        mBackend.grant(CAMERA);
+        PermissionStateCache.getInstance().invalidate();
+        monitor.refresh();
+
+        assertEquals(2, mChanges.size());
+        assertEquals(PermissionSet.of(CAMERA), mChanges.get(1));
+        assertEquals(PermissionStateSnapshot.STATE_GRANTED, monitor.getSnapshot().getState(CAMERA));
+    }
+
+    @Test
+    public void deniedAndNeverAskAgain_areDistinguished() throws Exception {
+        PermissionStateMonitor monitor = PermissionStateMonitor.getInstance();
+        monitor.subscribe(mActivity, PermissionSet.of(CAMERA, READ_CONTACTS), mListener);
+
+        mBackend.setState(CAMERA, FakePermissionBackend.STATE_DENIED_ONCE);
+        long denied = PermissionSet.of(CAMERA, READ_CONTACTS).mask();
+        monitor.onPermissionsDenied(denied, PermissionSet.of(READ_CONTACTS).mask());
+        PermissionStateCache.getInstance().invalidate();
+        monitor.refresh();
+
+        PermissionStateSnapshot snapshot = monitor.getSnapshot();
+        assertEquals(PermissionStateSnapshot.STATE_DENIED, snapshot.getState(CAMERA));
+        assertEquals(PermissionStateSnapshot.STATE_NEVER_ASK_AGAIN, snapshot.getState(READ_CONTACTS));
+    }
+
+    @Test
+    public void invalidations_areCoalescedIntoOnePass() throws Exception {
+        PermissionStateMonitor monitor = PermissionStateMonitor.getInstance();
+        monitor.subscribe(mActivity, PermissionSet.of(CAMERA), mListener);
+        int checkCount = mBackend.getCheckCount();
+
+        PermissionStateCache.getInstance().invalidate();
+        PermissionStateCache.getInstance().invalidate();
+        assertTrue(monitor.isRefreshScheduled());
+        assertEquals(checkCount, mBackend.getCheckCount());
+
+        monitor.refresh();
+        assertFalse(monitor.isRefreshScheduled());
+        assertEquals(checkCount + 1, mBackend.getCheckCount());
+    }
+
+    @Test
+    public void withoutSubscribers_noPassIsScheduled() throws Exception {
+        PermissionStateMonitor monitor = PermissionStateMonitor.getInstance();
+        monitor.subscribe(mActivity, PermissionSet.of(CAMERA), mListener).unsubscribe();
+
+        PermissionStateCache.getInstance().invalidate();
+
+        assertFalse(monitor.isRefreshScheduled());
+    }
+
+    @Test
+    public void destroyedActivity_isUnsubscribed() throws Exception {
+        PermissionStateMonitor monitor = PermissionStateMonitor.getInstance();
+        monitor.subscribe(mActivity, PermissionSet.of(CAMERA), mListener);
+        monitor.onDestroyed(mActivity);
+
+        mBackend.grant(CAMERA);
+        PermissionStateCache.getInstance().invalidate();
+        monitor.refresh();
+
+        assertEquals(1, mChanges.size());
+    }
+}
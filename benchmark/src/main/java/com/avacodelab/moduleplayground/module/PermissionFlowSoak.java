@@ -0,0 +1,65 @@
+package com.avacodelab.moduleplayground.module;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.math.BigInteger;
+
+/**
+ *  Soak gate of the request flows of {@link PermissionHelper}: runs {@link PermissionFlowSimulator} and exits with
+ *  1 if an invariant was violated. <br><br>
+ *
+ *  Reports the throughput and the bytes allocated per flow on the simulating thread. The allocation includes the
+ *  callbacks and bookkeeping of the simulator, so it is meant to be compared between runs, not read as the cost of
+ *  a request. A short run with another seed warms up the JIT first. <br><br>
+ *
+ *  Arguments: the number of flows and the seed, or "--replay" and the sequence seed of a reported violation.
+ */
+
+public final class PermissionFlowSoak {
+
+    private static final long WARM_UP_FLOWS = 100000L;
+
+    private PermissionFlowSoak() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        File journalFile = File.createTempFile("permission_journal", null);
+        journalFile.delete();
+
+        if (args.length == 2 && "--replay".equals(args[0])) {
+            long sequenceSeed = new BigInteger(args[1], 16).longValue();
+            PermissionFlowSimulator.Report report = new PermissionFlowSimulator(journalFile).replay(sequenceSeed);
+            System.out.println(report);
+            System.exit(report.mViolationCount == 0L ? 0 : 1);
+        }
+
+        long flows = args.length > 0 ? Long.parseLong(args[0]) : 1000000L;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 1L;
+
+        new PermissionFlowSimulator(journalFile).run(~seed, Math.min(WARM_UP_FLOWS, flows / 10));
+
+        long allocatedBefore = allocatedBytes();
+        PermissionFlowSimulator.Report report = new PermissionFlowSimulator(journalFile).run(seed, flows);
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        System.out.println("Permission flow soak, seed " + seed);
+        System.out.println(report);
+        if (allocatedBefore >= 0L) {
+            System.out.println(String.format("%.1f bytes allocated per flow", (double) allocated / report.mFlows));
+        }
+        System.exit(report.mViolationCount == 0L ? 0 : 1);
+    }
+
+    /**
+     * Returns the bytes allocated by this thread so far, or -1 if the JVM does not measure it.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1L;
+    }
+}
@@ -0,0 +1,174 @@
+package com.avacodelab.moduleplayground.module;
+
+import android.app.Activity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  Throughput of the {@link PermissionHelper} hot paths against {@link FakePermissionBackend}. <br><br>
+ *
+ *  The permission count is the number of permissions in one call. Half of them are granted, so
+ *  requests always go through the request engine. All of them are declared as dangerous in the manifest table of
+ *  the benchmark, see {@link FakePermissionManifest}, so none is denied for being undeclared and every one is
+ *  checked. Run with "-prof gc" to see the allocation rate.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PermissionHelperBenchmark {
+
+    private static final String[] ALL_PERMISSIONS = {
+            "android.permission.CAMERA",
+            "android.permission.ACCESS_FINE_LOCATION",
+            "android.permission.READ_CONTACTS",
+            "android.permission.RECORD_AUDIO",
+            "android.permission.READ_CALENDAR",
+            "android.permission.WRITE_CALENDAR",
+            "android.permission.READ_PHONE_STATE",
+            "android.permission.SEND_SMS",
+            "android.permission.READ_EXTERNAL_STORAGE",
+            "android.permission.BODY_SENSORS"
+    };
+
+    private static final int REQUEST_CODE = 1;
+
+    @Param({"1", "5", "10"})
+    public int permissionCount;
+
+    private FakePermissionBackend mBackend;
+    private Activity mActivity;
+    private PermissionHelper mPermissionHelper;
+    private String[] mPermissions;
+    private List<String> mPermissionList;
+    private String[] mNeededPermissions;
+    private int[] mGrantResults;
+    private BlackholeCallback mCallback;
+    private PermissionRequestEngine.ResultListener mListener;
+
+    @Setup(Level.Trial)
+    public void setUp(Blackhole blackhole) {
+        mBackend = new FakePermissionBackend();
+        PermissionHelper.setBackend(mBackend);
+        PermissionManifest.setTable(FakePermissionManifest.declaring(ALL_PERMISSIONS));
+
+        mPermissions = Arrays.copyOf(ALL_PERMISSIONS, permissionCount);
+        mPermissionList = Arrays.asList(mPermissions);
+        for (int i = 0; i < mPermissions.length; i += 2) {
+            mBackend.grant(mPermissions[i]);
+        }
+
+        mActivity = new Activity();
+        mPermissionHelper = new PermissionHelper(mActivity);
+        mCallback = new BlackholeCallback(blackhole);
+        mListener = new PermissionRequestEngine.CallbackListener(mCallback, PermissionSet.of(mPermissionList).order());
+
+        // Sends one request to learn which permissions the engine asks for.
+        mPermissionHelper.checkDeviceAndRequestPermissions(REQUEST_CODE, mPermissionList, mCallback);
+        mNeededPermissions = mBackend.getLastRequestedPermissions();
+        if (mNeededPermissions == null) {
+            mNeededPermissions = new String[0];
+        } else {
+            mGrantResults = mBackend.answer(mNeededPermissions);
+            mPermissionHelper.onRequestPermissionsResult(mBackend.getLastRequestCode(), mNeededPermissions, mGrantResults);
+        }
+        if (mGrantResults == null) {
+            mGrantResults = new int[0];
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        PermissionManifest.setTable(null);
+        PermissionHelper.setBackend(null);
+    }
+
+    /**
+     * Check, request and result of one call. Needed to keep the request engine empty between calls.
+     */
+    @Benchmark
+    public void checkDeviceAndRequestPermissions() {
+        mPermissionHelper.checkDeviceAndRequestPermissions(REQUEST_CODE, mPermissionList, mCallback);
+        if (mNeededPermissions.length > 0) {
+            mPermissionHelper.onRequestPermissionsResult(REQUEST_CODE, mNeededPermissions, mGrantResults);
+        }
+    }
+
+    /**
+     * Same as {@link #checkDeviceAndRequestPermissions()} with a cold permission state cache, so every
+     * permission goes to the backend.
+     */
+    @Benchmark
+    public void checkDeviceAndRequestPermissions_cacheMiss() {
+        PermissionStateCache.getInstance().invalidate();
+        checkDeviceAndRequestPermissions();
+    }
+
+    /**
+     * Only the result side. The request is submitted to the engine directly, without checking the permissions.
+     */
+    @Benchmark
+    public void onRequestPermissionsResult() {
+        if (mNeededPermissions.length == 0) {
+            return;
+        }
+        PermissionRequestEngine.getInstance().submit(mActivity, REQUEST_CODE,
+                PermissionSet.of(mNeededPermissions).mask(), 0L, mListener);
+        mPermissionHelper.onRequestPermissionsResult(REQUEST_CODE, mNeededPermissions, mGrantResults);
+    }
+
+    @Benchmark
+    public boolean isPermissionGranted() {
+        return PermissionHelper.isPermissionGranted(mActivity, mPermissions);
+    }
+
+    @Benchmark
+    public boolean isPermissionGranted_cacheMiss() {
+        PermissionStateCache.getInstance().invalidate();
+        return PermissionHelper.isPermissionGranted(mActivity, mPermissions);
+    }
+
+    private static final class BlackholeCallback implements PermissionHelper.PermissionResultCallback {
+
+        private final Blackhole mBlackhole;
+
+        BlackholeCallback(Blackhole blackhole) {
+            mBlackhole = blackhole;
+        }
+
+        @Override
+        public void permissionsGranted(int requestCode, List<String> permissionsGranted) {
+            mBlackhole.consume(permissionsGranted.size());
+        }
+
+        @Override
+        public void permissionsDenied(int requestCode, List<String> permissionsDenied) {
+            mBlackhole.consume(permissionsDenied.size());
+        }
+
+        @Override
+        public void permissionsNeverAskAgain(int requestCode, List<String> permissionsNeverAskAgain) {
+            mBlackhole.consume(permissionsNeverAskAgain.size());
+        }
+    }
+}